@@ -0,0 +1,168 @@
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentLengthStrategy;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.ResponseContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Measures response body throughput and allocation of the proxy's upstream to client copy, with
+ * {@link BodyRelay} disabled (httpcore entity copy) and enabled.
+ *
+ * Usage: BodyRelayBenchmark [body bytes] [iterations]
+ */
+public class BodyRelayBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int bodySize = args.length >= 1 ? Integer.parseInt(args[0]) : 4 * 1024 * 1024;
+        final int iterations = args.length >= 2 ? Integer.parseInt(args[1]) : 200;
+
+        System.out.println("body bytes: " + bodySize + " iterations: " + iterations);
+        for (boolean chunked : new boolean[] {false, true}) {
+            for (boolean relay : new boolean[] {false, true}) {
+                run(bodySize, iterations / 5, chunked, relay);
+                final Result result = run(bodySize, iterations, chunked, relay);
+                System.out.printf("%-14s %-8s %10.1f MB/s %12.1f bytes allocated/response%n",
+                        chunked ? "chunked" : "content-length", relay ? "relay" : "copy",
+                        result.megabytesPerSec, result.bytesAllocatedPerResponse);
+            }
+        }
+    }
+
+    private static class Result {
+        double megabytesPerSec;
+        double bytesAllocatedPerResponse;
+    }
+
+    private static Result run(int bodySize, int iterations, boolean chunked, boolean relayEnabled) throws Exception {
+        final byte[] body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+
+        try (ServerSocket originSocket = new ServerSocket(0);
+             ServerSocket proxySocket = new ServerSocket(0)) {
+            final Thread origin = daemon(() -> serveOrigin(originSocket, body, chunked));
+            origin.start();
+
+            // The client side of the proxy just drains everything it receives.
+            final Socket clientSide = new Socket("localhost", proxySocket.getLocalPort());
+            final Thread drain = daemon(() -> drain(clientSide));
+            drain.start();
+
+            final BodyRelay relay = new BodyRelay(relayEnabled, 64 * 1024, 4);
+            final RelayClientConnection upstream = new RelayClientConnection(8 * 1024);
+            upstream.bind(new Socket("localhost", originSocket.getLocalPort()));
+            final RelayServerConnection client = new RelayServerConnection(8 * 1024);
+            client.bind(proxySocket.accept());
+
+            final ResponseContent responseContent = new ResponseContent();
+            final HttpContext context = new BasicHttpContext();
+            final com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final long tid = Thread.currentThread().getId();
+
+            final long allocatedBefore = threads.getThreadAllocatedBytes(tid);
+            final long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                upstream.sendRequestHeader(new BasicHttpRequest("GET", "/asset", HttpVersion.HTTP_1_1));
+                upstream.flush();
+                final HttpResponse targetResponse = upstream.receiveResponseHeader();
+                upstream.receiveResponseEntity(targetResponse);
+
+                final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+                response.setEntity(relay.wrap(targetResponse.getEntity(), upstream, client));
+                responseContent.process(response, context);
+                client.sendResponseHeader(response);
+                client.sendResponseEntity(response);
+                client.flush();
+                if (upstream.getIncomingLength() == ContentLengthStrategy.IDENTITY) {
+                    throw new IllegalStateException("Unexpected close delimited body");
+                }
+            }
+            final long elapsed = System.nanoTime() - start;
+            final long allocated = threads.getThreadAllocatedBytes(tid) - allocatedBefore;
+
+            upstream.shutdown();
+            client.shutdown();
+            clientSide.close();
+
+            final Result result = new Result();
+            result.megabytesPerSec = (double) bodySize * iterations / (1024 * 1024) / (elapsed / 1e9);
+            result.bytesAllocatedPerResponse = (double) allocated / iterations;
+            return result;
+        }
+    }
+
+    private static Thread daemon(Runnable r) {
+        final Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Answers every request on a single keep-alive connection with the same body.
+     */
+    private static void serveOrigin(ServerSocket serverSocket, byte[] body, boolean chunked) {
+        try (Socket socket = serverSocket.accept()) {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            final String head = "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n" +
+                    (chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + body.length + "\r\n") + "\r\n";
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            response.write(head.getBytes(StandardCharsets.US_ASCII));
+            if (chunked) {
+                final int chunkSize = 16 * 1024;
+                for (int off = 0; off < body.length; off += chunkSize) {
+                    final int len = Math.min(chunkSize, body.length - off);
+                    response.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    response.write(body, off, len);
+                    response.write('\r');
+                    response.write('\n');
+                }
+                response.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            } else {
+                response.write(body);
+            }
+            final byte[] responseBytes = response.toByteArray();
+            while (skipRequestHead(in)) {
+                out.write(responseBytes);
+                out.flush();
+            }
+        } catch (final IOException ignore) {
+        }
+    }
+
+    private static boolean skipRequestHead(InputStream in) throws IOException {
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3))
+                    ? matched + 1 : 0;
+            if (matched == 4) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void drain(Socket socket) {
+        final byte[] buf = new byte[64 * 1024];
+        try (InputStream in = socket.getInputStream()) {
+            while (in.read(buf) != -1) {
+                // discard
+            }
+        } catch (final IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * HTTP/1.1 load generator with one thread per connection, in closed loop, where each connection
+ * sends its next request as soon as the previous response is complete, or in open loop at a fixed
+ * rate of requests per second spread over the connections.
+ *
+ * In open loop, latency is measured from the time a request was scheduled to be sent rather than
+ * from when it was actually sent. A stalled response then counts against the requests queued up
+ * behind it as well, which corrects for coordinated omission: a closed loop generator backs off
+ * while the server stalls and so never records most of the requests the stall would have delayed.
+ */
+class LoadGenerator {
+    private static final long HIGHEST_TRACKABLE_MICROS = 60000000L;
+
+    private final String host;
+    private final int port;
+    private final String path;
+    private final int connections;
+    private final double requestsPerSec;
+    private final boolean keepAlive;
+
+    /**
+     * @param requestsPerSec total rate in open loop, or 0 for closed loop
+     */
+    LoadGenerator(String host, int port, String path, int connections, double requestsPerSec, boolean keepAlive) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.connections = connections;
+        this.requestsPerSec = requestsPerSec;
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Generates load for the given time and waits for the responses in flight.
+     */
+    Result run(long durationMillis) throws InterruptedException {
+        return run(durationMillis, () -> { });
+    }
+
+    /**
+     * Like {@link #run(long)}, and runs {@code beforeClose} once the last responses are in but before
+     * the connections are closed.
+     */
+    Result run(long durationMillis, Runnable beforeClose) throws InterruptedException {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(connections);
+        final CountDownLatch close = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final long end = start + durationMillis * 1000000L;
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            // Stagger the open loop schedules, so that connections do not all send at once.
+            final long first = requestsPerSec > 0 ? start + (long) (i * 1e9 / requestsPerSec) : start;
+            final Thread t = new Thread(() -> generate(first, end, result, done, close), "loadgen-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        done.await();
+        result.elapsedNanos = System.nanoTime() - start;
+        beforeClose.run();
+        close.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        return result;
+    }
+
+    private void generate(long first, long end, Result result, CountDownLatch done, CountDownLatch close) {
+        final long intervalNanos = requestsPerSec > 0 ? (long) (connections * 1e9 / requestsPerSec) : 0;
+        final byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n" +
+                (keepAlive ? "" : "Connection: close\r\n") + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        final byte[] buffer = new byte[64 * 1024];
+        final StringBuilder line = new StringBuilder();
+        Connection conn = null;
+        long intended = first;
+        while (true) {
+            long now = System.nanoTime();
+            if (intervalNanos > 0) {
+                if (intended >= end) {
+                    break;
+                }
+                while (now < intended) {
+                    LockSupport.parkNanos(intended - now);
+                    now = System.nanoTime();
+                }
+            } else if (now >= end) {
+                break;
+            }
+            final long sent = intervalNanos > 0 ? intended : now;
+            intended += intervalNanos;
+            try {
+                if (conn == null) {
+                    conn = new Connection(host, port);
+                }
+                conn.out.write(request);
+                conn.out.flush();
+                final int status = conn.readResponse(line, buffer);
+                result.latencies.record((System.nanoTime() - sent) / 1000L);
+                result.completed.increment();
+                if (status >= 400) {
+                    result.errors.increment();
+                }
+                if (!keepAlive || conn.closing) {
+                    conn.close();
+                    conn = null;
+                }
+            } catch (IOException e) {
+                result.errors.increment();
+                if (conn != null) {
+                    conn.close();
+                    conn = null;
+                }
+            }
+        }
+        done.countDown();
+        try {
+            close.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    static final class Result {
+        final LogLinearHistogram latencies = new LogLinearHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+        final LongAdder completed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        long elapsedNanos;
+
+        double requestsPerSec() {
+            return completed.sum() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Latency percentiles in microseconds.
+         */
+        long[] percentiles(double... percentiles) {
+            final long[] merged = new long[latencies.length()];
+            latencies.drain().addTo(merged);
+            final long[] values = new long[percentiles.length];
+            for (int i = 0; i < percentiles.length; i++) {
+                values[i] = latencies.valueAtPercentile(merged, percentiles[i]);
+            }
+            return values;
+        }
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        boolean closing;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Reads a response and discards its body, returning the status code.
+         */
+        int readResponse(StringBuilder line, byte[] buffer) throws IOException {
+            readLine(line);
+            if (line.length() < 12) {
+                throw new IOException("Malformed status line: " + line);
+            }
+            final int status = Integer.parseInt(line.substring(9, 12));
+            long contentLength = -1;
+            boolean chunked = false;
+            closing = false;
+            while (readLine(line) > 0) {
+                if (startsWithIgnoreCase(line, "content-length:")) {
+                    contentLength = Long.parseLong(line.substring(15).trim());
+                } else if (startsWithIgnoreCase(line, "transfer-encoding:")) {
+                    chunked = line.indexOf("chunked") > 0;
+                } else if (startsWithIgnoreCase(line, "connection:")) {
+                    closing = line.indexOf("close") > 0;
+                }
+            }
+            if (chunked) {
+                long size;
+                while ((size = readChunkSize(line)) > 0) {
+                    skip(size + 2, buffer);
+                }
+                while (readLine(line) > 0) {
+                    // Trailers
+                }
+            } else if (contentLength >= 0) {
+                skip(contentLength, buffer);
+            } else {
+                while (in.read(buffer) >= 0) {
+                    // Body delimited by the end of the connection.
+                }
+                closing = true;
+            }
+            return status;
+        }
+
+        private int readLine(StringBuilder line) throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.length();
+        }
+
+        private long readChunkSize(StringBuilder line) throws IOException {
+            readLine(line);
+            final int semicolon = line.indexOf(";");
+            return Long.parseLong((semicolon >= 0 ? line.substring(0, semicolon) : line.toString()).trim(), 16);
+        }
+
+        private static boolean startsWithIgnoreCase(StringBuilder line, String prefix) {
+            return line.length() >= prefix.length() && line.substring(0, prefix.length()).equalsIgnoreCase(prefix);
+        }
+
+        private void skip(long bytes, byte[] buffer) throws IOException {
+            while (bytes > 0) {
+                final int n = in.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+                if (n < 0) {
+                    throw new EOFException("Connection closed in body");
+                }
+                bytes -= n;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.ServerSocket;
+
+/**
+ * End to end benchmark of the proxy, served in-process in the given mode in front of a
+ * {@link StubOrigin} and driven by a {@link LoadGenerator}. Reports throughput, latency percentiles
+ * and the allocation rate of the proxy's threads. The response cache is disabled unless
+ * proxy.cache.maxBytes is set, so that every request goes upstream.
+ *
+ * Configured with system properties, see README.
+ */
+public class ProxyLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final String mode = System.getProperty("bench.mode", "blocking");
+        final int connections = Integer.getInteger("bench.connections", 16);
+        final double rate = Double.parseDouble(System.getProperty("bench.rate", "0"));
+        final long warmupMillis = Long.getLong("bench.warmupSecs", 5L) * 1000L;
+        final long durationMillis = Long.getLong("bench.durationSecs", 20L) * 1000L;
+        final long latencyMillis = Long.getLong("bench.origin.latencyMillis", 0L);
+        final int bodyBytes = Integer.getInteger("bench.origin.bodyBytes", 1024);
+        final boolean originKeepAlive = Boolean.parseBoolean(System.getProperty("bench.origin.keepAlive", "true"));
+        final boolean chunked = Boolean.getBoolean("bench.origin.chunked");
+        final boolean clientKeepAlive = Boolean.parseBoolean(System.getProperty("bench.keepAlive", "true"));
+
+        if (System.getProperty("proxy.cache.maxBytes") == null) {
+            System.setProperty("proxy.cache.maxBytes", "0");
+        }
+
+        try (StubOrigin origin = new StubOrigin(latencyMillis, bodyBytes, originKeepAlive, chunked)) {
+            final Router router = new Router(RouteTable.parse(
+                    new StringReader("default 127.0.0.1:" + origin.getPort() + "\n")));
+            final int port = freePort();
+            final Thread listener = SimpleReverseProxy.createListener(port, mode, router,
+                    AccessLog.fromSystemProperties(), RequestTracer.fromSystemProperties(), null);
+            listener.setDaemon(true);
+            listener.start();
+            Thread.sleep(500);
+
+            System.out.printf("mode: %s connections: %d %s origin latency: %d ms body: %d bytes%s%s%n",
+                    mode, connections, rate > 0 ? "open loop at " + rate + " requests/s" : "closed loop",
+                    latencyMillis, bodyBytes, chunked ? " chunked" : "",
+                    originKeepAlive && clientKeepAlive ? "" : " without keep-alive");
+            final LoadGenerator generator =
+                    new LoadGenerator("127.0.0.1", port, "/bench", connections, rate, clientKeepAlive);
+            generator.run(warmupMillis);
+            // Let the proxy threads of the warmup connections end before counting allocation.
+            Thread.sleep(500);
+
+            final long allocatedBefore = proxyAllocatedBytes();
+            final long[] allocatedAfter = new long[1];
+            final LoadGenerator.Result result = generator.run(durationMillis,
+                    () -> allocatedAfter[0] = proxyAllocatedBytes());
+
+            final long[] latencies = result.percentiles(50, 99, 99.9, 100);
+            final long completed = result.completed.sum();
+            System.out.printf("requests: %d errors: %d throughput: %.0f requests/s%n",
+                    completed, result.errors.sum(), result.requestsPerSec());
+            System.out.printf("latency p50: %.3f p99: %.3f p99.9: %.3f max: %.3f millisecs%n",
+                    latencies[0] / 1000.0, latencies[1] / 1000.0, latencies[2] / 1000.0, latencies[3] / 1000.0);
+            if (allocatedBefore >= 0) {
+                final long allocated = allocatedAfter[0] - allocatedBefore;
+                System.out.printf("proxy allocation: %.1f MB/s %.0f bytes/request%n",
+                        allocated * 1e9 / result.elapsedNanos / (1024 * 1024),
+                        completed > 0 ? (double) allocated / completed : 0.0);
+            } else {
+                System.out.println("proxy allocation: not available");
+            }
+        }
+        // The proxy's listener and reactor threads do not stop by themselves.
+        System.exit(0);
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Bytes allocated so far by live threads other than those of the load generator, the stub origin
+     * and this one, or -1 if the JVM does not count them. Threads that end in between are missed,
+     * which is why it is read before the load generator closes its connections. Virtual threads are
+     * not counted.
+     */
+    private static long proxyAllocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        final long[] ids = threads.getAllThreadIds();
+        final ThreadInfo[] infos = threads.getThreadInfo(ids);
+        final long[] allocated = threads.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null || allocated[i] < 0 || ids[i] == Thread.currentThread().getId()) {
+                continue;
+            }
+            final String name = infos[i].getThreadName();
+            if (!name.startsWith("loadgen-") && !name.startsWith("stub-origin")) {
+                total += allocated[i];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * In-process upstream for benchmarks that answers every request with the same canned response,
+ * after an optional delay. It parses no more of a request than it needs to find its end, so that
+ * it costs the proxy under test as little CPU as possible.
+ */
+class StubOrigin implements AutoCloseable {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final long latencyMillis;
+    private final boolean keepAlive;
+    private final byte[] head;
+    private final byte[] body;
+    private final boolean chunked;
+    private volatile boolean closed;
+
+    /**
+     * @param latencyMillis delay before each response is sent
+     * @param bodyBytes     size of each response body
+     * @param keepAlive     whether connections are kept open for further requests
+     * @param chunked       whether bodies are sent with chunked transfer encoding instead of a Content-Length
+     */
+    StubOrigin(long latencyMillis, int bodyBytes, boolean keepAlive, boolean chunked) throws IOException {
+        this(new ServerSocket(0), latencyMillis, bodyBytes, keepAlive, chunked);
+    }
+
+    /**
+     * @param serverSocket bound socket to accept on, such as a TLS server socket
+     */
+    StubOrigin(ServerSocket serverSocket, long latencyMillis, int bodyBytes, boolean keepAlive, boolean chunked) {
+        this.serverSocket = serverSocket;
+        this.latencyMillis = latencyMillis;
+        this.keepAlive = keepAlive;
+        this.chunked = chunked;
+        this.body = new byte[bodyBytes];
+        Arrays.fill(body, (byte) 'x');
+        this.head = ("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                (chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + bodyBytes + "\r\n") +
+                (keepAlive ? "" : "Connection: close\r\n") +
+                "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        final Thread acceptor = new Thread(this::accept, "stub-origin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final Thread t = new Thread(() -> serve(socket), "stub-origin");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Stub origin accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            final InputStream in = new BufferedInputStream(s.getInputStream());
+            final OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+            do {
+                if (!skipRequest(in)) {
+                    return;
+                }
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                writeResponse(out);
+            } while (keepAlive);
+        } catch (IOException | InterruptedException e) {
+            // The client went away.
+        }
+    }
+
+    // Reads up to the end of the request head, benchmark requests have no body. False at end of stream.
+    private static boolean skipRequest(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            final int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return true;
+    }
+
+    private void writeResponse(OutputStream out) throws IOException {
+        out.write(head);
+        if (chunked) {
+            for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                final int length = Math.min(CHUNK_SIZE, body.length - offset);
+                out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(body, offset, length);
+                out.write('\r');
+                out.write('\n');
+            }
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        } else {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+}
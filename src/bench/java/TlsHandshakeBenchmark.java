@@ -0,0 +1,144 @@
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures what connecting to an https upstream costs the proxy, with full and with resumed TLS
+ * handshakes, against a plain TCP connect. Connections are opened by {@link UpstreamConnFactory} to a
+ * {@link StubOrigin} that terminates TLS with {@link ServerTls} and a self-signed certificate made
+ * by keytool for the run. Full handshakes get a fresh SSL context, and so an empty session cache,
+ * for every connection; resumed handshakes share one. Every connection sends a request before it
+ * is closed, as TLS 1.3 hands out session tickets after the handshake.
+ *
+ * The protocol version can be pinned with -Djdk.tls.client.protocols=TLSv1.2.
+ *
+ * Usage: TlsHandshakeBenchmark [connections] [EC|RSA]
+ */
+public class TlsHandshakeBenchmark {
+    private static final String PASSWORD = "changeit";
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length >= 1 ? Integer.parseInt(args[0]) : 2000;
+        final String keyAlgorithm = args.length >= 2 ? args[1] : "EC";
+
+        final Path dir = Files.createTempDirectory("tls-bench");
+        final Path keystore = dir.resolve("origin.p12");
+        try {
+            generateKeystore(keystore, keyAlgorithm);
+            // The self-signed certificate is its own trust anchor.
+            System.setProperty("proxy.upstream.tls.truststore", keystore.toString());
+            System.setProperty("proxy.upstream.tls.truststorePassword", PASSWORD);
+            final ServerTls serverTls = new ServerTls(
+                    new ReloadingKeyManager(keystore, "PKCS12", PASSWORD.toCharArray(), 0),
+                    20480, 86400, 10000, new TlsHandshakes());
+
+            try (StubOrigin plain = new StubOrigin(0, 64, true, false);
+                 StubOrigin secure = new StubOrigin(serverTls.createServerSocket(0, false), 0, 64, true, false)) {
+                final HttpHost plainHost = new HttpHost("localhost", plain.getPort(), "http");
+                final HttpHost secureHost = new HttpHost("localhost", secure.getPort(), "https");
+
+                System.out.println("connections: " + iterations + " key: " + keyAlgorithm);
+                for (final Case c : new Case[]{new Case("tcp", plainHost, false),
+                        new Case("tls full", secureHost, true), new Case("tls resumed", secureHost, false)}) {
+                    c.run(iterations / 5);
+                    final long[] micros = c.run(iterations);
+                    Arrays.sort(micros);
+                    System.out.printf("%-12s mean: %7.1f p50: %7d p99: %7d microsecs per connect, " +
+                                    "full handshakes: %d resumed: %d%n",
+                            c.name, Arrays.stream(micros).average().orElse(0), micros[micros.length / 2],
+                            micros[(int) (micros.length * 0.99)], c.handshakes.getCount(TlsHandshakes.UPSTREAM, false),
+                            c.handshakes.getCount(TlsHandshakes.UPSTREAM, true));
+                }
+            } finally {
+                serverTls.shutdown();
+            }
+        } finally {
+            Files.deleteIfExists(keystore);
+            Files.delete(dir);
+        }
+    }
+
+    private static void generateKeystore(Path keystore, String keyAlgorithm) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "origin", "-keyalg", keyAlgorithm,
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD));
+        command.addAll("RSA".equalsIgnoreCase(keyAlgorithm)
+                ? Arrays.asList("-keysize", "2048") : Arrays.asList("-groupname", "secp256r1"));
+        final Process keytool = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = keytool.getInputStream()) {
+            in.transferTo(output);
+        }
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+    }
+
+    private static final class Case {
+        final String name;
+        final HttpHost host;
+        // Whether every connection gets an SSL context, and session cache, of its own.
+        final boolean fresh;
+        final TlsHandshakes handshakes = new TlsHandshakes();
+        UpstreamConnFactory shared;
+
+        Case(String name, HttpHost host, boolean fresh) {
+            this.name = name;
+            this.host = host;
+            this.fresh = fresh;
+        }
+
+        UpstreamConnFactory factory() {
+            return new UpstreamConnFactory(SocketConfig.custom().setTcpNoDelay(true).setSoTimeout(5000).build(),
+                    5000, 8 * 1024, UpstreamTls.fromSystemProperties(handshakes));
+        }
+
+        long[] run(int iterations) throws Exception {
+            final long[] micros = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                final UpstreamConnFactory factory;
+                if (fresh) {
+                    factory = factory();
+                } else {
+                    if (shared == null) {
+                        shared = factory();
+                    }
+                    factory = shared;
+                }
+                final long start = System.nanoTime();
+                final HttpClientConnection conn = factory.create(host);
+                micros[i] = (System.nanoTime() - start) / 1000;
+                try {
+                    final BasicHttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+                    request.setHeader(HTTP.TARGET_HOST, host.toHostString());
+                    conn.sendRequestHeader(request);
+                    conn.flush();
+                    final HttpResponse response = conn.receiveResponseHeader();
+                    conn.receiveResponseEntity(response);
+                    EntityUtils.consume(response.getEntity());
+                } finally {
+                    conn.close();
+                }
+            }
+            return micros;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package bench;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The proxy's own per request work, without socket I/O and httpcore message parsing: the tracker
+ * interceptors, URI keying, routing and balancing, and hop-by-hop header filtering of the request
+ * and response. Run with {@code -prof gc} for the bytes allocated per request; the trial also fails
+ * if a request allocates more than {@link #MAX_BYTES_PER_REQUEST}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyHotPathBenchmark {
+    // The execution time header added to each response is the only allocation left.
+    private static final long MAX_BYTES_PER_REQUEST = 64;
+
+    private static final MethodHandle STATUS_CODE_TRACKER = Internals.constructor("StatusCodeTracker");
+    private static final MethodHandle HISTOGRAM_TRACKER =
+            Internals.constructor("HistogramResponseTimeTracker", long.class, int.class);
+    private static final MethodHandle TRACKED_URIS = Internals.constructor("TrackedUris", int.class, int.class);
+    private static final MethodHandle DEFAULT_ROUTES = Internals.method("RouteTable", "defaults");
+    private static final MethodHandle KEY = Internals.method("TrackedUris", "key", String.class);
+    private static final MethodHandle REQUEST_CONTEXT = Internals.method("RequestContext", "get", HttpContext.class);
+    private static final MethodHandle SET_URI = Internals.method("RequestContext", "setUri", String.class);
+    private static final MethodHandle MATCH = Internals.method("RouteTable", "match", String.class, String.class);
+    private static final MethodHandle SELECT = Internals.method("Route", "select");
+    private static final MethodHandle BEGIN = Internals.method("UpstreamHost", "begin");
+    private static final MethodHandle END = Internals.method("UpstreamHost", "end", long.class, int.class);
+    private static final MethodHandle STRIP = Internals.method("HopByHopHeaders", "strip",
+            org.apache.http.HttpMessage.class);
+    private static final MethodHandle COPY = Internals.method("HopByHopHeaders", "copy",
+            org.apache.http.HttpMessage.class, org.apache.http.HttpMessage.class);
+
+    private static final String HOST = "api.netflix.com";
+    private static final String URI = "/titles/80100172/images?size=large";
+
+    private HttpResponseInterceptor statusCodeTracker;
+    private HttpRequestInterceptor requestTimer;
+    private HttpResponseInterceptor responseTimer;
+    private Object trackedUris;
+    private Object routes;
+    private HttpContext context;
+    private Header[] requestHeaders;
+    private HttpRequest request;
+    private HttpResponse targetResponse;
+    private HttpResponse response;
+
+    @Setup
+    public void setUp() throws Throwable {
+        statusCodeTracker = (HttpResponseInterceptor) (Object) STATUS_CODE_TRACKER.invokeExact();
+        final Object timeTracker = (Object) HISTOGRAM_TRACKER.invokeExact(60000000L, 2);
+        requestTimer = (HttpRequestInterceptor) timeTracker;
+        responseTimer = (HttpResponseInterceptor) timeTracker;
+        trackedUris = (Object) TRACKED_URIS.invokeExact(1000, 10);
+        routes = (Object) DEFAULT_ROUTES.invokeExact();
+        context = new BasicHttpContext();
+
+        requestHeaders = new Header[] {
+                new BasicHeader("Host", HOST),
+                new BasicHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64)"),
+                new BasicHeader("Accept", "application/json"),
+                new BasicHeader("Accept-Encoding", "gzip, deflate"),
+                new BasicHeader("Cookie", "NetflixId=v%3D2%26ct%3DBQAOAAEBEA"),
+                new BasicHeader("Connection", "keep-alive"),
+        };
+        request = new BasicHttpRequest("GET", URI, HttpVersion.HTTP_1_1);
+        targetResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        targetResponse.setHeaders(new Header[] {
+                new BasicHeader("Date", "Sat, 17 Oct 2026 07:08:17 GMT"),
+                new BasicHeader("Content-Type", "application/json"),
+                new BasicHeader("Content-Length", "1432"),
+                new BasicHeader("Cache-Control", "max-age=60"),
+                new BasicHeader("ETag", "\"5f3a9c\""),
+                new BasicHeader("Connection", "keep-alive"),
+                new BasicHeader("Keep-Alive", "timeout=5"),
+        });
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    }
+
+    @Benchmark
+    public HttpResponse proxyRequest() throws Throwable {
+        request.setHeaders(requestHeaders);
+        requestTimer.process(request, context);
+
+        SET_URI.invokeExact((Object) REQUEST_CONTEXT.invokeExact((Object) context),
+                (Object) KEY.invokeExact(trackedUris, (Object) URI));
+        final Object upstream = (Object) SELECT.invokeExact((Object) MATCH.invokeExact(routes, (Object) HOST,
+                (Object) URI));
+        final long start = (long) BEGIN.invokeExact(upstream);
+        STRIP.invokeExact((Object) request);
+        response.setStatusLine(targetResponse.getStatusLine());
+        COPY.invokeExact((Object) targetResponse, (Object) response);
+        END.invokeExact(upstream, start, 200);
+
+        statusCodeTracker.process(response, context);
+        responseTimer.process(response, context);
+        return response;
+    }
+
+    @TearDown(Level.Trial)
+    public void checkAllocation() throws Throwable {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long tid = Thread.currentThread().getId();
+        final int requests = 100000;
+        final long before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < requests; i++) {
+            proxyRequest();
+        }
+        final long bytesPerRequest = (threads.getThreadAllocatedBytes(tid) - before) / requests;
+        System.out.println("bytes allocated per request: " + bytesPerRequest);
+        if (bytesPerRequest > MAX_BYTES_PER_REQUEST) {
+            throw new IllegalStateException("Proxy hot path allocates " + bytesPerRequest +
+                    " bytes per request, expected at most " + MAX_BYTES_PER_REQUEST);
+        }
+    }
+}
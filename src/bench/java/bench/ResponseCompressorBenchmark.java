@@ -0,0 +1,96 @@
+package bench;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression of a JSON response body streamed through the pooled deflaters, against a
+ * {@link GZIPOutputStream} created per response. Run with {@code -prof gc} for the bytes allocated
+ * per response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCompressorBenchmark {
+    private static final MethodHandle COMPRESSOR = Internals.constructor("ResponseCompressor",
+            int.class, int.class, String[].class, int.class, long.class);
+    private static final MethodHandle COMPRESS = Internals.method("ResponseCompressor", "compress",
+            HttpRequest.class, HttpResponse.class);
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    @Param({"2048", "65536"})
+    public int bodyBytes;
+
+    private Object compressor;
+    private HttpRequest request;
+    private HttpResponse response;
+    private byte[] body;
+    private OutputStream sink;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Throwable {
+        compressor = (Object) COMPRESSOR.invokeExact(1024, 6, (Object) new String[] {"application/json"}, 16, 0L);
+        request = new BasicHttpRequest("GET", "/titles/80100172", HttpVersion.HTTP_1_1);
+        request.addHeader("Accept-Encoding", "gzip, deflate, br");
+        response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; json.length() < bodyBytes; i++) {
+            json.append("{\"id\":").append(80100172 + i).append(",\"title\":\"Title ").append(i)
+                    .append("\",\"rating\":").append(i % 5).append("},");
+        }
+        body = json.substring(0, bodyBytes).getBytes("US-ASCII");
+        sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(len);
+            }
+        };
+    }
+
+    @Benchmark
+    public void pooled() throws Throwable {
+        response.setHeaders(NO_HEADERS);
+        response.setHeader("Content-Type", "application/json");
+        response.setEntity(new ByteArrayEntity(body));
+        COMPRESS.invokeExact(compressor, (Object) request, (Object) response);
+        response.getEntity().writeTo(sink);
+    }
+
+    @Benchmark
+    public void perResponse() throws Exception {
+        try (GZIPOutputStream gzip = new GZIPOutputStream(sink)) {
+            gzip.write(body);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.Reference;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a response time under 32 thread contention, for the fixed slots tracker and the
+ * log-linear histogram tracker. The retained size of each tracker per URI is printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+public class ResponseTimeTrackerBenchmark {
+    private static final MethodHandle FIXED_SLOTS = Internals.constructor("FixedSlotsResponseTimeTracker");
+    private static final MethodHandle HISTOGRAM =
+            Internals.constructor("HistogramResponseTimeTracker", long.class, int.class);
+    private static final MethodHandle ADD =
+            Internals.method("ResponseTimeTracker", "add", String.class, long.class, long.class);
+
+    private static final String[] URIS = {"/healthcheck", "/account/geo", "/test", "/browse"};
+
+    @Param({"fixed-slots", "histogram"})
+    public String tracker;
+
+    private Object instance;
+
+    @Setup
+    public void setUp() throws Throwable {
+        instance = create(tracker);
+        System.out.println(tracker + " retained bytes per URI: " + footprint(tracker));
+    }
+
+    /**
+     * Per thread stream of log-normally distributed latencies around 1 ms, precomputed so that
+     * generating them is not part of the measurement.
+     */
+    @State(Scope.Thread)
+    public static class Latencies {
+        final long[] micros = new long[4096];
+        // Response end time passed to the trackers, as read by the proxy for each response.
+        final long now = System.nanoTime();
+        int next;
+
+        @Setup
+        public void setUp() {
+            final Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < micros.length; i++) {
+                micros[i] = (long) Math.exp(7 + random.nextGaussian());
+            }
+        }
+
+        long next() {
+            return micros[next++ & (micros.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public void record(Latencies latencies) throws Throwable {
+        final long nanos = latencies.next() * 1000L;
+        ADD.invokeExact(instance, (Object) URIS[(int) (nanos >> 10) & 3], latencies.now - nanos, latencies.now);
+    }
+
+    private static Object create(String tracker) throws Throwable {
+        return tracker.equals("histogram")
+                ? (Object) HISTOGRAM.invokeExact(60000000L, 2)
+                : (Object) FIXED_SLOTS.invokeExact();
+    }
+
+    // Heap growth of one tracker after recording into 1000 URIs, divided by the number of URIs.
+    private static long footprint(String tracker) throws Throwable {
+        final int uris = 1000;
+        final long before = usedHeap();
+        final Object instance = create(tracker);
+        final Random random = new Random(42);
+        for (int i = 0; i < uris; i++) {
+            final String uri = "/footprint/" + i;
+            for (int j = 0; j < 100; j++) {
+                final long now = System.nanoTime();
+                ADD.invokeExact(instance, (Object) uri, now - (long) Math.exp(14 + random.nextGaussian()), now);
+            }
+        }
+        final long after = usedHeap();
+        Reference.reachabilityFence(instance);
+        return (after - before) / uris;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
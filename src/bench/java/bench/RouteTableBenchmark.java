@@ -0,0 +1,78 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookup cost as the number of rules grows. Lookups should stay flat: they depend on the
+ * length of the path, not on the number of routes. Run with -prof gc to check they do not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+    private static final MethodHandle PARSE = Internals.method("RouteTable", "parse", Reader.class);
+    private static final MethodHandle MATCH = Internals.method("RouteTable", "match", String.class, String.class);
+
+    @Param({"10", "1000", "10000"})
+    public int routes;
+
+    private Object table;
+    private String exactUri;
+    private String prefixUri;
+    private String hostName;
+
+    @Setup
+    public void setUp() throws Throwable {
+        final StringBuilder config = new StringBuilder();
+        for (int i = 0; i < routes; i++) {
+            config.append("exact /service").append(i).append("/healthcheck upstream").append(i % 16).append('\n');
+            config.append("prefix /service").append(i).append("/ upstream").append(i % 16).append(":8080\n");
+            config.append("host api").append(i).append(".example.com upstream").append(i % 16).append('\n');
+        }
+        config.append("default www.netflix.com\n");
+        table = (Object) PARSE.invokeExact((Object) new StringReader(config.toString()));
+
+        final int target = routes / 2;
+        exactUri = "/service" + target + "/healthcheck";
+        prefixUri = "/service" + target + "/titles/80100172/images?size=large";
+        hostName = "API" + target + ".example.com:443";
+    }
+
+    @Benchmark
+    public Object exact() throws Throwable {
+        return (Object) MATCH.invokeExact(table, (Object) null, (Object) exactUri);
+    }
+
+    @Benchmark
+    public Object prefixWithQuery() throws Throwable {
+        return (Object) MATCH.invokeExact(table, (Object) null, (Object) prefixUri);
+    }
+
+    @Benchmark
+    public Object host() throws Throwable {
+        return (Object) MATCH.invokeExact(table, (Object) hostName, (Object) "/browse");
+    }
+
+    @Benchmark
+    public Object fallThroughToDefault() throws Throwable {
+        return (Object) MATCH.invokeExact(table, (Object) "www.example.com", (Object) "/browse/genre/83");
+    }
+}
@@ -0,0 +1,75 @@
+package bench;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of counting a response's status code under 32 thread contention, with each thread cycling
+ * through a mix of URIs and status codes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(32)
+public class StatusCodeTrackerBenchmark {
+    private static final MethodHandle STATUS_CODE_TRACKER = Internals.constructor("StatusCodeTracker");
+    private static final MethodHandle REQUEST_CONTEXT = Internals.method("RequestContext", "get", HttpContext.class);
+    private static final MethodHandle SET_URI = Internals.method("RequestContext", "setUri", String.class);
+
+    private static final String[] URIS = {"/healthcheck", "/account/geo", "/test", "/browse"};
+    private static final int[] STATUS_CODES = {200, 200, 200, 304, 404, 200, 503, 200};
+
+    private HttpResponseInterceptor tracker;
+
+    @Setup
+    public void setUp() throws Throwable {
+        tracker = (HttpResponseInterceptor) (Object) STATUS_CODE_TRACKER.invokeExact();
+    }
+
+    /**
+     * Per thread requests, one for each URI and status code.
+     */
+    @State(Scope.Thread)
+    public static class Requests {
+        final HttpContext[] contexts = new HttpContext[URIS.length * STATUS_CODES.length];
+        final HttpResponse[] responses = new HttpResponse[contexts.length];
+        int next;
+
+        @Setup
+        public void setUp() throws Throwable {
+            for (int i = 0; i < contexts.length; i++) {
+                contexts[i] = new BasicHttpContext();
+                SET_URI.invokeExact((Object) REQUEST_CONTEXT.invokeExact((Object) contexts[i]),
+                        (Object) URIS[i % URIS.length]);
+                responses[i] = new BasicHttpResponse(HttpVersion.HTTP_1_1, STATUS_CODES[i / URIS.length], null);
+            }
+        }
+    }
+
+    @Benchmark
+    public void count(Requests requests) throws Exception {
+        final int i = requests.next++ & (requests.contexts.length - 1);
+        tracker.process(requests.responses[i], requests.contexts[i]);
+    }
+}
@@ -0,0 +1,139 @@
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes a line per response to a size rotated access log, without the request threads ever
+ * waiting on the file, see {@link RecordLog}. Records hold the route, upstream and URI as numbers
+ * standing for their names.
+ *
+ * Each line has the time of the response head, route, upstream, tracked URI, status, microseconds
+ * from request head to response head, and body bytes when they are known up front, or - if not:
+ *
+ *     2026-10-17T07:47:13.123Z "prefix /static/" http://static1:8080 /static/app.js 200 1234 5120
+ */
+@ThreadSafe
+class AccessLog extends RecordLog implements HttpResponseInterceptor, Tracker {
+    // Longs per record: time, duration, bytes, and status and names packed 16 bits each.
+    private static final int RECORD_LONGS = 4;
+    // Time, three names, three numbers of up to 20 digits, separators and newline.
+    private static final int MAX_LINE_BYTES = 24 + 3 * MAX_NAME_BYTES + 3 * 21 + 8;
+
+    /**
+     * @param bufferRecords      records the ring holds, rounded up to a power of two
+     * @param bufferBytes        formatted bytes collected before they are written to the file
+     * @param maxFileBytes       size at which the file is rotated
+     * @param maxFiles           rotated files kept besides the current one
+     * @param flushIntervalMillis how long the writer sleeps when it finds no records
+     */
+    public AccessLog(Path file, int bufferRecords, int bufferBytes, long maxFileBytes, int maxFiles,
+                     long flushIntervalMillis) throws IOException {
+        super("access log", file, RECORD_LONGS, MAX_LINE_BYTES, bufferRecords, bufferBytes, maxFileBytes, maxFiles,
+                flushIntervalMillis);
+    }
+
+    /**
+     * Access log configured from system properties, or null when no file is configured.
+     */
+    public static AccessLog fromSystemProperties() throws IOException {
+        final String file = System.getProperty("proxy.accessLog.file");
+        if (file == null) {
+            return null;
+        }
+        return new AccessLog(Paths.get(file),
+                Integer.getInteger("proxy.accessLog.bufferRecords", 65536),
+                Integer.getInteger("proxy.accessLog.bufferBytes", 256 * 1024),
+                Long.getLong("proxy.accessLog.maxFileBytes", 100L * 1024 * 1024),
+                Integer.getInteger("proxy.accessLog.maxFiles", 5),
+                Long.getLong("proxy.accessLog.flushIntervalMillis", 100L));
+    }
+
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        final int status = response.getStatusLine().getStatusCode();
+        // An informational response is followed by the final one, which is logged.
+        if (status < HttpStatus.SC_OK) {
+            return;
+        }
+        final RequestContext requestContext = RequestContext.get(context);
+        final HttpEntity entity = response.getEntity();
+        log(System.currentTimeMillis(),
+                (System.nanoTime() - requestContext.getStartNanos()) / 1000L,
+                entity == null ? 0 : entity.getContentLength(),
+                status,
+                id(requestContext.getRoute()),
+                id(requestContext.getUpstream()),
+                id(requestContext.getUri()));
+    }
+
+    /**
+     * Stores a record, or drops it if the writer has fallen a full ring behind.
+     *
+     * @param bytes body bytes, or -1 if not known
+     */
+    void log(long timeMillis, long durationMicros, long bytes, int status, int route, int upstream, int uri) {
+        final long seq = claim();
+        if (seq < 0) {
+            return;
+        }
+        final int base = base(seq);
+        records[base] = timeMillis;
+        records[base + 1] = durationMicros;
+        records[base + 2] = bytes;
+        records[base + 3] = (long) (status & 0xFFFF) << 48 | (long) route << 32 | (long) upstream << 16 | uri;
+        publish(seq);
+    }
+
+    @Override
+    protected byte[] encode(String name) {
+        // Quoted if it has a space, as route names do.
+        return (name.indexOf(' ') >= 0 ? '"' + name + '"' : name).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void format(int base, byte[][] names) {
+        final long timeMillis = records[base];
+        final long packed = records[base + 3];
+        writeTime(timeMillis);
+        buffer.put((byte) ' ');
+        writeName(names, (int) (packed >>> 32) & 0xFFFF);
+        buffer.put((byte) ' ');
+        writeName(names, (int) (packed >>> 16) & 0xFFFF);
+        buffer.put((byte) ' ');
+        writeName(names, (int) packed & 0xFFFF);
+        buffer.put((byte) ' ');
+        writeNumber((packed >>> 48) & 0xFFFF);
+        buffer.put((byte) ' ');
+        writeNumber(records[base + 1]);
+        buffer.put((byte) ' ');
+        final long bytes = records[base + 2];
+        if (bytes < 0) {
+            buffer.put(NONE);
+        } else {
+            writeNumber(bytes);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping access log statistics...");
+        System.out.println("Written: " + written + " dropped: " + dropped + " rotations: " + rotations);
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_access_log_records", "counter", "Access log lines written.");
+        writer.sample("proxy_access_log_records_total", written.sum());
+        writer.family("proxy_access_log_dropped", "counter", "Access log records dropped because the buffer was full.");
+        writer.sample("proxy_access_log_dropped_total", dropped.sum());
+        writer.family("proxy_access_log_rotations", "counter", "Times the access log file was rotated.");
+        writer.sample("proxy_access_log_rotations_total", rotations.sum());
+    }
+}
@@ -0,0 +1,175 @@
+import com.google.common.io.ByteStreams;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.protocol.ResponseServer;
+import org.apache.http.protocol.UriHttpRequestHandlerMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the metrics of all trackers at /metrics in the OpenMetrics text format, on a port of its
+ * own so that scrapes neither compete with proxied traffic nor are reachable through the routes.
+ * Connections are served one at a time, one request each, on this thread.
+ *
+ * A {@link StatsSnapshot} of the proxy is served at /stats/snapshot, and /stats/merge answers a
+ * POST of concatenated snapshots, such as those of a fleet of proxies, with their merge.
+ *
+ * The listener is bound to the loopback address unless configured otherwise, as it answers
+ * anyone who can reach it.
+ */
+class AdminListenerThread extends Thread {
+    private static final Logger LOG = Logger.getLogger(AdminListenerThread.class.getName());
+    private static final int SO_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_MERGE_BYTES = 64 * 1024 * 1024;
+
+    private final ServerSocket serversocket;
+    private final HttpService httpService;
+
+    public AdminListenerThread(final InetAddress bindAddress, final int port, final List<Tracker> trackers,
+                               final StatsSnapshotter snapshotter) throws IOException {
+        super("admin-listener");
+        this.serversocket = new ServerSocket(port, 50, bindAddress);
+        final UriHttpRequestHandlerMapper registry = new UriHttpRequestHandlerMapper();
+        registry.register("/metrics", new MetricsHandler(trackers));
+        registry.register("/stats/snapshot", (request, response, context) ->
+                setSnapshot(response, snapshotter.take()));
+        registry.register("/stats/merge", AdminListenerThread::merge);
+        final HttpProcessor httpproc = new ImmutableHttpProcessor(
+                new ResponseDate(),
+                new ResponseServer("Reverse proxy"),
+                new ResponseContent(),
+                new ResponseConnControl());
+        this.httpService = new HttpService(httpproc, registry);
+    }
+
+    /**
+     * Admin listener configured from system properties, or null when it is disabled.
+     */
+    public static AdminListenerThread fromSystemProperties(final List<Tracker> trackers,
+                                                           final StatsSnapshotter snapshotter) throws IOException {
+        final int port = Integer.getInteger("proxy.admin.port", 9090);
+        if (port <= 0) {
+            return null;
+        }
+        return new AdminListenerThread(InetAddress.getByName(System.getProperty("proxy.admin.bindAddress", "127.0.0.1")),
+                port, trackers, snapshotter);
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Serving metrics on " + this.serversocket.getLocalSocketAddress());
+        while (!Thread.interrupted()) {
+            final DefaultBHttpServerConnection conn = new DefaultBHttpServerConnection(8 * 1024);
+            try {
+                final Socket socket = this.serversocket.accept();
+                socket.setSoTimeout(SO_TIMEOUT_MILLIS);
+                conn.bind(socket);
+                this.httpService.handleRequest(conn, new BasicHttpContext(null));
+            } catch (final InterruptedIOException | ConnectionClosedException ex) {
+                LOG.fine("Admin connection timed out or closed: " + ex.getMessage());
+            } catch (final IOException | HttpException ex) {
+                LOG.log(Level.WARNING, "Error serving admin request", ex);
+            } finally {
+                try {
+                    conn.shutdown();
+                } catch (final IOException ignore) {}
+            }
+        }
+    }
+
+    public void shutdown() {
+        interrupt();
+        try {
+            this.serversocket.close();
+        } catch (final IOException ignore) {}
+    }
+
+    private static void merge(final HttpRequest request, final HttpResponse response, final HttpContext context)
+            throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            response.setStatusCode(HttpStatus.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        final HttpEntity body = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (body == null || body.getContentLength() > MAX_MERGE_BYTES) {
+            response.setStatusCode(body == null ? HttpStatus.SC_BAD_REQUEST : HttpStatus.SC_REQUEST_TOO_LONG);
+            return;
+        }
+        // The length is only declared for a body that is not chunked, so the read is capped as well.
+        final byte[] bytes;
+        try (InputStream in = body.getContent()) {
+            bytes = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_MERGE_BYTES + 1L));
+        }
+        if (bytes.length > MAX_MERGE_BYTES) {
+            response.setStatusCode(HttpStatus.SC_REQUEST_TOO_LONG);
+            return;
+        }
+        try {
+            setSnapshot(response, StatsSnapshot.readAll(ByteBuffer.wrap(bytes)));
+        } catch (IOException | IllegalArgumentException ex) {
+            response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+            response.setEntity(new ByteArrayEntity((ex.getMessage() + "\n").getBytes(), ContentType.TEXT_PLAIN));
+        }
+    }
+
+    private static void setSnapshot(final HttpResponse response, final StatsSnapshot snapshot) {
+        response.setEntity(new ByteArrayEntity(snapshot.toByteArray(), ContentType.APPLICATION_OCTET_STREAM));
+        response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+    }
+
+    /**
+     * Renders every scrape into the same buffers, which is safe as requests are served one at a time.
+     */
+    static class MetricsHandler implements HttpRequestHandler {
+        private final List<Tracker> trackers;
+        private final MetricsWriter writer = new MetricsWriter();
+
+        MetricsHandler(final List<Tracker> trackers) {
+            this.trackers = trackers;
+        }
+
+        @Override
+        public void handle(final HttpRequest request, final HttpResponse response, final HttpContext context) {
+            writer.reset();
+            for (Tracker tracker : trackers) {
+                try {
+                    tracker.collect(writer);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Error collecting metrics of " + tracker.getClass().getName(), e);
+                }
+            }
+            writer.finish();
+            final ByteArrayEntity entity = new ByteArrayEntity(writer.getBytes(), 0, writer.getLength());
+            entity.setContentType(MetricsWriter.CONTENT_TYPE);
+            response.setEntity(entity);
+            response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+        }
+    }
+}
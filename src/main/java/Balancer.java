@@ -0,0 +1,132 @@
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the upstream host for each request of a route. Selection only reads and updates atomic
+ * counters, so worker threads never wait on each other to pick a host.
+ */
+abstract class Balancer {
+    static final String ROUND_ROBIN = "round-robin";
+    static final String LEAST_OUTSTANDING = "least-outstanding";
+    static final String POWER_OF_TWO_CHOICES = "p2c";
+
+    protected final UpstreamHost[] hosts;
+
+    protected Balancer(List<UpstreamHost> hosts) {
+        this.hosts = hosts.toArray(new UpstreamHost[0]);
+    }
+
+    public static Balancer create(String policy, List<UpstreamHost> hosts) {
+        switch (policy) {
+            case ROUND_ROBIN:
+                return new RoundRobin(hosts);
+            case LEAST_OUTSTANDING:
+                return new LeastOutstanding(hosts);
+            case POWER_OF_TWO_CHOICES:
+                return new PowerOfTwoChoices(hosts);
+            default:
+                throw new IllegalArgumentException("Unknown balancer: " + policy);
+        }
+    }
+
+    /**
+     * @return the host to send the request to, or null when every host has been ejected
+     */
+    public UpstreamHost select() {
+        return select(null);
+    }
+
+    /**
+     * @param exclude host that must not be picked, one a request is already outstanding on, or null
+     * @return the host to send the request to, or null when every other host has been ejected
+     */
+    public UpstreamHost select(UpstreamHost exclude) {
+        final UpstreamHost chosen = hosts.length == 1 ? hosts[0] : choose();
+        if (chosen != exclude && chosen.allowRequest()) {
+            return chosen;
+        }
+        // The balancer's pick is ejected or excluded, fall back to any other host still in service.
+        final int start = ThreadLocalRandom.current().nextInt(hosts.length);
+        for (int i = 0; i < hosts.length; i++) {
+            final UpstreamHost host = hosts[(start + i) % hosts.length];
+            if (host != chosen && host != exclude && host.allowRequest()) {
+                return host;
+            }
+        }
+        return null;
+    }
+
+    protected abstract UpstreamHost choose();
+
+    static class RoundRobin extends Balancer {
+        private final AtomicInteger next = new AtomicInteger();
+
+        RoundRobin(List<UpstreamHost> hosts) {
+            super(hosts);
+        }
+
+        @Override
+        protected UpstreamHost choose() {
+            return hosts[(next.getAndIncrement() & Integer.MAX_VALUE) % hosts.length];
+        }
+    }
+
+    /**
+     * Host with the fewest requests in flight. The scan starts at a random host so that ties do
+     * not all go to the first one.
+     */
+    static class LeastOutstanding extends Balancer {
+        LeastOutstanding(List<UpstreamHost> hosts) {
+            super(hosts);
+        }
+
+        @Override
+        protected UpstreamHost choose() {
+            final int start = ThreadLocalRandom.current().nextInt(hosts.length);
+            UpstreamHost best = hosts[start];
+            int bestOutstanding = best.getOutstanding();
+            for (int i = 1; i < hosts.length && bestOutstanding > 0; i++) {
+                final UpstreamHost host = hosts[(start + i) % hosts.length];
+                final int outstanding = host.getOutstanding();
+                if (outstanding < bestOutstanding) {
+                    best = host;
+                    bestOutstanding = outstanding;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Compares two random hosts by average latency times requests in flight and takes the cheaper
+     * one. An idle host without a recent latency sample is preferred so that it gets probed, but
+     * only one probe at a time is sent to it.
+     */
+    static class PowerOfTwoChoices extends Balancer {
+        PowerOfTwoChoices(List<UpstreamHost> hosts) {
+            super(hosts);
+        }
+
+        @Override
+        protected UpstreamHost choose() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final int first = random.nextInt(hosts.length);
+            int second = random.nextInt(hosts.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            final long now = System.nanoTime();
+            return cost(hosts[first], now) <= cost(hosts[second], now) ? hosts[first] : hosts[second];
+        }
+
+        private static long cost(UpstreamHost host, long now) {
+            final long latency = host.getLatencyMicros(now);
+            final int outstanding = host.getOutstanding();
+            if (latency < 0) {
+                return outstanding == 0 ? 0 : Long.MAX_VALUE;
+            }
+            return (latency + 1) * (outstanding + 1);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.MalformedChunkCodingException;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.entity.ContentLengthStrategy;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.io.SessionInputBuffer;
+import org.apache.http.io.SessionOutputBuffer;
+import org.apache.http.util.CharArrayBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Relays upstream response bodies that need no transformation straight from the upstream socket
+ * to the client socket, bypassing httpcore's session buffers on both sides. Content-Length bodies
+ * are copied verbatim and chunked bodies keep their chunk boundaries. Copy buffers are pooled
+ * rather than allocated per response, and are shared with request bodies, see {@link UploadLimits}.
+ */
+@ThreadSafe
+class BodyRelay {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final boolean enabled;
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> bufferPool;
+
+    public BodyRelay(boolean enabled, int bufferSize, int maxPooledBuffers) {
+        this.enabled = enabled;
+        this.bufferSize = bufferSize;
+        this.bufferPool = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    public static BodyRelay fromSystemProperties() {
+        return new BodyRelay(
+                Boolean.parseBoolean(System.getProperty("proxy.relay.enabled", "true")),
+                Integer.getInteger("proxy.relay.bufferSize", 64 * 1024),
+                Integer.getInteger("proxy.relay.maxPooledBuffers", 256));
+    }
+
+    /**
+     * Returns an entity that relays the body when both connections allow it, otherwise the entity itself.
+     */
+    public HttpEntity wrap(HttpEntity entity, HttpConnection upstream, HttpConnection client) {
+        if (!enabled || !(upstream instanceof RelayClientConnection) || !(client instanceof RelayServerConnection)) {
+            return entity;
+        }
+        return new RelayEntity(entity, (RelayClientConnection) upstream, (RelayServerConnection) client);
+    }
+
+    /**
+     * A buffer from the pool, to be given back with {@link #releaseBuffer}.
+     */
+    byte[] acquireBuffer() {
+        final byte[] buf = bufferPool.poll();
+        return buf != null ? buf : new byte[bufferSize];
+    }
+
+    void releaseBuffer(byte[] buf) {
+        bufferPool.offer(buf);
+    }
+
+    private class RelayEntity extends HttpEntityWrapper {
+        private final RelayClientConnection upstream;
+        private final RelayServerConnection client;
+
+        RelayEntity(HttpEntity entity, RelayClientConnection upstream, RelayServerConnection client) {
+            super(entity);
+            this.upstream = upstream;
+            this.client = client;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            final long inLen = upstream.getIncomingLength();
+            final long outLen = client.getOutgoingLength();
+            final boolean fixed = inLen >= 0 && inLen == outLen;
+            final boolean chunked = inLen == ContentLengthStrategy.CHUNKED && outLen == ContentLengthStrategy.CHUNKED;
+            if (!fixed && !chunked) {
+                wrappedEntity.writeTo(outstream);
+                return;
+            }
+
+            // Push out the response head buffered by the client connection before writing around it.
+            outstream.flush();
+            final Copier copier = new Copier(upstream, client.getRawOutputStream(), acquireBuffer());
+            try {
+                if (fixed) {
+                    copier.copy(inLen);
+                } else {
+                    copier.copyChunked();
+                }
+                // Trailing chunk framing goes through the session buffer, so that it leaves in one
+                // packet with the last chunk written when the client connection closes outstream.
+                copier.finish(client.getOutputBuffer());
+            } finally {
+                releaseBuffer(copier.buf);
+            }
+        }
+    }
+
+    /**
+     * Copies from upstream to client through a single buffer. Bytes already buffered by the upstream
+     * session are consumed first so that the body is read in order.
+     */
+    private static class Copier {
+        private final SessionInputBuffer inbuffer;
+        private final RelayClientConnection upstream;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buf;
+        private final CharArrayBuffer line = new CharArrayBuffer(16);
+        private int pos;
+
+        Copier(RelayClientConnection upstream, OutputStream out, byte[] buf) throws IOException {
+            this.upstream = upstream;
+            this.inbuffer = upstream.getInputBuffer();
+            this.in = upstream.getRawInputStream();
+            this.out = out;
+            this.buf = buf;
+        }
+
+        void copy(long remaining) throws IOException {
+            while (remaining > 0) {
+                if (pos == buf.length) {
+                    flush();
+                }
+                final int want = (int) Math.min(buf.length - pos, remaining);
+                final int buffered = upstream.getBufferedLength();
+                final int n = buffered > 0
+                        ? inbuffer.read(buf, pos, Math.min(want, buffered))
+                        : in.read(buf, pos, want);
+                if (n < 0) {
+                    throw new ConnectionClosedException("Premature end of upstream message body");
+                }
+                pos += n;
+                remaining -= n;
+                // Forward what has arrived rather than waiting for the buffer to fill up.
+                flush();
+            }
+        }
+
+        void copyChunked() throws IOException {
+            while (true) {
+                final long size = readChunkSize();
+                if (size == 0) {
+                    // Trailers are dropped, as they are by the hop-by-hop filter.
+                    do {
+                        readLine();
+                    } while (line.length() > 0);
+                    return;
+                }
+                appendChunkHeader(size);
+                copy(size);
+                readLine();
+                if (line.length() > 0) {
+                    throw new MalformedChunkCodingException("CRLF expected at end of chunk");
+                }
+                append(CRLF);
+            }
+        }
+
+        private long readChunkSize() throws IOException {
+            readLine();
+            int end = line.indexOf(';');
+            if (end < 0) {
+                end = line.length();
+            }
+            int i = 0;
+            while (i < end && line.charAt(i) == ' ') {
+                i++;
+            }
+            long size = 0;
+            final int start = i;
+            for (; i < end; i++) {
+                final int digit = Character.digit(line.charAt(i), 16);
+                if (digit < 0) {
+                    break;
+                }
+                size = (size << 4) + digit;
+            }
+            if (i == start || i - start > 15) {
+                throw new MalformedChunkCodingException("Bad chunk header");
+            }
+            return size;
+        }
+
+        // Body bytes are forwarded as soon as they are read, only chunk framing may be held back
+        // here until it can go out together with the next chunk's data.
+        private void readLine() throws IOException {
+            line.clear();
+            if (inbuffer.readLine(line) < 0) {
+                throw new ConnectionClosedException("Premature end of chunk coded message body");
+            }
+        }
+
+        private void appendChunkHeader(long size) throws IOException {
+            int digits = 1;
+            for (long v = size >>> 4; v != 0; v >>>= 4) {
+                digits++;
+            }
+            if (buf.length - pos < digits + CRLF.length) {
+                flush();
+            }
+            for (int i = digits - 1; i >= 0; i--) {
+                buf[pos++] = HEX[(int) (size >>> (i * 4)) & 0xf];
+            }
+            append(CRLF);
+        }
+
+        private void append(byte[] bytes) throws IOException {
+            if (buf.length - pos < bytes.length) {
+                flush();
+            }
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void flush() throws IOException {
+            if (pos > 0) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+        }
+
+        void finish(SessionOutputBuffer outbuffer) throws IOException {
+            if (pos > 0) {
+                outbuffer.write(buf, 0, pos);
+                pos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the requests in flight to a limit that adapts to their latency, in the manner of TCP
+ * Vegas. Latency is smoothed into a moving average and compared with a baseline, the lowest
+ * average seen, which stands for the latency without queueing. While the average stays within a
+ * tolerance of the baseline the limit grows by its square root; as it rises above, the limit
+ * shrinks in proportion, and it is cut back outright on requests dropped for lack of capacity.
+ * The limit only follows latency while at least half of it is in use, latency says nothing about a
+ * limit that is not being reached.
+ *
+ * The baseline is allowed to rise, at most doubling per probe interval, so that it follows
+ * upstreams that become slower for good but not queueing that lasts.
+ *
+ * Acquiring and releasing are atomic counter updates. The limit is updated by whichever thread
+ * releases a request while no other is updating it, samples that arrive meanwhile are skipped.
+ */
+@ThreadSafe
+class ConcurrencyLimiter {
+    // Weight of a new sample in the latency average.
+    private static final double SMOOTHING = 0.1;
+    // How often the baseline may rise.
+    private static final long PROBE_NANOS = 30L * 1000 * 1000 * 1000;
+    // Weight of a newly computed limit against the current one.
+    private static final double LIMIT_SMOOTHING = 0.2;
+    // Factor the limit is cut by when a request is dropped.
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int limit;
+
+    private final AtomicBoolean updating = new AtomicBoolean();
+    // Guarded by updating.
+    private double estimate;
+    private double averageNanos;
+    private double baselineNanos;
+    private long probeStartNanos;
+
+    /**
+     * @param tolerance how far latency may rise above its baseline before the limit shrinks
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.estimate = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+        this.limit = (int) estimate;
+    }
+
+    /**
+     * Admits a request unless the limit has been reached. An admitted request must be released.
+     */
+    public boolean tryAcquire() {
+        if (inFlight.incrementAndGet() > limit) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases a request without sampling its latency.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @param latencyNanos time the request took
+     * @param dropped      whether the request failed for lack of capacity, such as a timeout
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        final int current = inFlight.getAndDecrement();
+        if (updating.compareAndSet(false, true)) {
+            try {
+                update(latencyNanos, current, dropped);
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    private void update(long latencyNanos, int current, boolean dropped) {
+        final long now = System.nanoTime();
+        if (averageNanos == 0) {
+            averageNanos = Math.max(latencyNanos, 1);
+            baselineNanos = averageNanos;
+            probeStartNanos = now;
+            return;
+        }
+        averageNanos += (latencyNanos - averageNanos) * SMOOTHING;
+        if (now - probeStartNanos >= PROBE_NANOS) {
+            probeStartNanos = now;
+            baselineNanos = Math.min(baselineNanos * 2, averageNanos);
+        } else if (averageNanos < baselineNanos) {
+            baselineNanos = averageNanos;
+        }
+
+        double next;
+        if (dropped) {
+            next = estimate * BACKOFF;
+        } else if (current < estimate / 2) {
+            return;
+        } else {
+            final double gradient = Math.max(0.5, Math.min(1.0, tolerance * baselineNanos / averageNanos));
+            next = estimate * gradient + Math.sqrt(estimate);
+            next = estimate * (1 - LIMIT_SMOOTHING) + next * LIMIT_SMOOTHING;
+        }
+        estimate = Math.max(minLimit, Math.min(next, maxLimit));
+        limit = (int) estimate;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
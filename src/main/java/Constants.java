@@ -1,7 +1,6 @@
 
 
 public class Constants {
-    public static final String HTTP_REQUEST_URI = "http.proxy.request.uri";
-    public static final String HTTP_REQUEST_START_TIME = "http.proxy.request.start_time";
+    public static final String HTTP_REQUEST_CONTEXT = "http.proxy.request.context";
     public static final String EXECUTION_TIME_HEADER_KEY = "X-execution.time";
 }
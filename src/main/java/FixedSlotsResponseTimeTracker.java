@@ -9,7 +9,8 @@ import java.util.stream.Collectors;
 
 /**
  * Approximate response time tracker that uses fixed slots and hence bounded memory
- * for tracking response times.
+ * for tracking response times. The proxy uses {@link HistogramResponseTimeTracker}, this one is
+ * kept as the baseline of the response time tracker benchmarks.
 */
 @ThreadSafe
 public class FixedSlotsResponseTimeTracker extends ResponseTimeTracker {
@@ -0,0 +1,155 @@
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HTTP;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Actively probes every upstream of the current route table on a fixed schedule. A probe is a GET
+ * of the probe path on a fresh connection; only a 2xx response counts as healthy. Results feed
+ * the hosts' circuit breakers alongside the outcomes of proxied requests. An ejected host is not
+ * probed until its ejection is over, and then the probe may be its half open trial.
+ */
+@ThreadSafe
+class HealthChecker implements Tracker {
+    private final Router router;
+    private final String probePath;
+    private final UpstreamConnFactory connFactory;
+    private final ScheduledThreadPoolExecutor scheduler;
+    // Hosts with a probe queued or running, which are not probed again until it is done.
+    private final Set<UpstreamHost> probing = ConcurrentHashMap.newKeySet();
+
+    public HealthChecker(Router router, String probePath, long intervalMillis, int timeoutMillis, UpstreamTls tls) {
+        this.router = router;
+        this.probePath = probePath;
+        this.connFactory = new UpstreamConnFactory(SocketConfig.custom().setSoTimeout(timeoutMillis).build(),
+                timeoutMillis, 1024, tls);
+        // Probes of different hosts run side by side, so that one hanging host does not hold up the rest.
+        this.scheduler = new ScheduledThreadPoolExecutor(2, r -> {
+            final Thread t = new Thread(r, "upstream-health-check");
+            t.setDaemon(true);
+            return t;
+        });
+        if (intervalMillis > 0) {
+            this.scheduler.scheduleWithFixedDelay(this::probeAll, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Health checker configured from system properties, see README for the property names.
+     */
+    public static HealthChecker fromSystemProperties(Router router, UpstreamTls tls) {
+        return new HealthChecker(router,
+                System.getProperty("proxy.health.probePath", "/healthcheck"),
+                Long.getLong("proxy.health.probeIntervalMillis", 5000L),
+                Integer.getInteger("proxy.health.probeTimeoutMillis", 1000),
+                tls);
+    }
+
+    private void probeAll() {
+        for (UpstreamHost upstream : router.getTable().getUpstreams()) {
+            if (!probing.add(upstream)) {
+                continue;
+            }
+            scheduler.execute(() -> {
+                try {
+                    // Skipped while the host is ejected or a request is its trial.
+                    if (!upstream.allowRequest()) {
+                        return;
+                    }
+                    boolean healthy = false;
+                    try {
+                        healthy = probe(upstream);
+                    } finally {
+                        if (healthy) {
+                            upstream.recordProbeSuccess();
+                        } else {
+                            upstream.recordFailure();
+                        }
+                    }
+                } finally {
+                    probing.remove(upstream);
+                }
+            });
+        }
+    }
+
+    boolean probe(UpstreamHost upstream) {
+        HttpClientConnection conn = null;
+        try {
+            conn = connFactory.create(upstream.getHost());
+            final BasicHttpRequest request = new BasicHttpRequest("GET", probePath, HttpVersion.HTTP_1_1);
+            request.setHeader(HTTP.TARGET_HOST, upstream.getHost().toHostString());
+            request.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+            conn.sendRequestHeader(request);
+            conn.flush();
+            final HttpResponse response = conn.receiveResponseHeader();
+            final int status = response.getStatusLine().getStatusCode();
+            return status >= 200 && status < 300;
+        } catch (final IOException | HttpException ex) {
+            return false;
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.shutdown();
+                } catch (final IOException ignore) {}
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping upstream health statistics...");
+        final long now = System.nanoTime();
+        for (UpstreamHost upstream : router.getTable().getUpstreams()) {
+            final long latency = upstream.getLatencyMicros(now);
+            System.out.println("Upstream: " + upstream + " circuit: " + upstream.getCircuitState() +
+                    " outstanding: " + upstream.getOutstanding() +
+                    " latency: " + (latency < 0 ? "-" : latency / 1000 + " millisecs") +
+                    " ejections: " + upstream.getEjections());
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        final ImmutableSet<UpstreamHost> upstreams = router.getTable().getUpstreams();
+        final long now = System.nanoTime();
+        writer.family("proxy_upstream_circuit", "gauge", "1 for the current state of the upstream's circuit breaker.");
+        for (UpstreamHost upstream : upstreams) {
+            final String current = upstream.getCircuitState();
+            for (String state : UpstreamHost.STATE_NAMES) {
+                writer.sample("proxy_upstream_circuit", "upstream", upstream.toString(), "state", state,
+                        state.equals(current) ? 1 : 0);
+            }
+        }
+        writer.family("proxy_upstream_outstanding_requests", "gauge", "Requests in flight to the upstream.");
+        for (UpstreamHost upstream : upstreams) {
+            writer.sample("proxy_upstream_outstanding_requests", "upstream", upstream.toString(),
+                    upstream.getOutstanding());
+        }
+        writer.family("proxy_upstream_latency_seconds", "gauge", "Moving average of the upstream's latency.");
+        for (UpstreamHost upstream : upstreams) {
+            final long latency = upstream.getLatencyMicros(now);
+            if (latency >= 0) {
+                writer.sample("proxy_upstream_latency_seconds", "upstream", upstream.toString(), latency / 1e6);
+            }
+        }
+        writer.family("proxy_upstream_ejections", "counter", "Times the upstream's circuit opened.");
+        for (UpstreamHost upstream : upstreams) {
+            writer.sample("proxy_upstream_ejections_total", "upstream", upstream.toString(), upstream.getEjections());
+        }
+    }
+}
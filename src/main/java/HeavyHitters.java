@@ -0,0 +1,122 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate top-K most frequent keys in fixed memory. Frequencies are counted in a Count-Min
+ * sketch, which never undercounts, and the K keys with the highest estimates are kept as
+ * candidates. Counting is lock free; a lock is only taken when a key's estimate overtakes the
+ * lowest candidate, which happens rarely once the heavy hitters have settled.
+ */
+@ThreadSafe
+class HeavyHitters {
+    private static final int DEPTH = 4;
+
+    private final int k;
+    private final int widthMask;
+    private final AtomicLongArray sketch;
+    private final ConcurrentHashMap<String, Boolean> candidates = new ConcurrentHashMap<>();
+    // Lowest candidate estimate once there are K candidates, keys below it are not offered.
+    private volatile long admissionThreshold;
+
+    /**
+     * @param width counters per sketch row, rounded up to a power of two
+     */
+    public HeavyHitters(int k, int width) {
+        this.k = k;
+        this.widthMask = (width <= 1 ? 1 : Integer.highestOneBit(width - 1) << 1) - 1;
+        this.sketch = new AtomicLongArray(DEPTH * (widthMask + 1));
+    }
+
+    public void add(String key) {
+        final int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, sketch.incrementAndGet(index(hash, row)));
+        }
+        if (estimate > admissionThreshold && !candidates.containsKey(key)) {
+            offer(key, estimate);
+        }
+    }
+
+    public long estimate(String key) {
+        final int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, sketch.get(index(hash, row)));
+        }
+        return estimate;
+    }
+
+    // Row hashes are derived from two mixes of the key's hash code (Kirsch-Mitzenmacher).
+    private int index(int hash, int row) {
+        final int h1 = hash * 0x9E3779B9;
+        final int h2 = Integer.reverse(hash) * 0x85EBCA6B | 1;
+        return row * (widthMask + 1) + ((h1 + row * h2) >>> 8 & widthMask);
+    }
+
+    private synchronized void offer(String key, long estimate) {
+        if (candidates.containsKey(key)) {
+            return;
+        }
+        if (candidates.size() >= k) {
+            String lowest = null;
+            long lowestEstimate = Long.MAX_VALUE;
+            for (String candidate : candidates.keySet()) {
+                final long e = estimate(candidate);
+                if (e < lowestEstimate) {
+                    lowest = candidate;
+                    lowestEstimate = e;
+                }
+            }
+            if (estimate <= lowestEstimate) {
+                admissionThreshold = lowestEstimate;
+                return;
+            }
+            candidates.remove(lowest);
+        }
+        candidates.put(key, Boolean.TRUE);
+        if (candidates.size() >= k) {
+            long lowestEstimate = Long.MAX_VALUE;
+            for (String candidate : candidates.keySet()) {
+                lowestEstimate = Math.min(lowestEstimate, estimate(candidate));
+            }
+            admissionThreshold = lowestEstimate;
+        }
+    }
+
+    /**
+     * Candidates in no particular order, see {@link #estimate(String)} for their counts.
+     */
+    public Set<String> candidates() {
+        return candidates.keySet();
+    }
+
+    /**
+     * Candidates and their estimated counts, highest first.
+     */
+    public List<Map.Entry<String, Long>> top() {
+        final List<Map.Entry<String, Long>> top = new ArrayList<>();
+        for (String candidate : candidates.keySet()) {
+            top.add(Map.entry(candidate, estimate(candidate)));
+        }
+        top.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return top;
+    }
+
+    /**
+     * Forgets all counts, so that the next {@link #top()} reflects only what is added from now on.
+     */
+    public synchronized void reset() {
+        candidates.clear();
+        admissionThreshold = 0;
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Response time tracker with microsecond resolution and bounded relative error, reporting
+ * percentiles over sliding windows of the last 10 seconds, 1 minute and 5 minutes of completed
+ * 10 second intervals.
+ *
+ * Each URI records into the {@link LogLinearHistogram} of the current interval. When an interval
+ * ends its counts are drained into a sparse snapshot kept in a ring covering the longest window,
+ * and the windows are merged from the ring on read. Intervals roll over lazily on the first record
+ * or read after they end, so idle URIs cost nothing.
+ *
+ * For export, drained intervals are also folded into cumulative counts over a fixed set of
+ * Prometheus style bucket bounds, with the sum estimated from the bucket midpoints.
+ */
+@ThreadSafe
+class HistogramResponseTimeTracker extends ResponseTimeTracker {
+    // Intervals are counted on the System.nanoTime() clock that response times are measured with,
+    // so that recording does not have to read another clock.
+    private static final long INTERVAL_NANOS = 10000000000L;
+    // Windows reported, in intervals.
+    private static final int[] WINDOWS = {1, 6, 30};
+    private static final String[] WINDOW_NAMES = {"10s", "1m", "5m"};
+    // Upper bounds of the exported buckets, the last one being +Inf.
+    private static final long[] BOUND_MICROS = {500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+            500000, 1000000, 2500000, 5000000, 10000000, 30000000, 60000000};
+    private static final String[] BOUND_NAMES = {"0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5", "1.0", "2.5", "5.0", "10.0", "30.0", "60.0", "+Inf"};
+
+    private final long highestTrackableMicros;
+    private final int significantDigits;
+    // What is tracked, for the stats dump, and the exported family, its help and the label of the keys.
+    private final String description;
+    private final String metric;
+    private final String help;
+    private final String label;
+    // Never recorded into, gives the bucket layout shared by all histograms for merging and percentiles.
+    private final LogLinearHistogram layout;
+    // Exported bucket of each histogram index, and the midpoint of each index in seconds.
+    private final int[] boundIndexes;
+    private final double[] midSeconds;
+    private final ConcurrentHashMap<String, WindowedHistogram> uriResponseTime = new ConcurrentHashMap<>();
+    // Scratch for collect, guarded by this.
+    private final long[] bucketCounts = new long[BOUND_NAMES.length];
+
+    public HistogramResponseTimeTracker(long highestTrackableMicros, int significantDigits) {
+        this(highestTrackableMicros, significantDigits, "response time", "proxy_response_time_seconds",
+                "Time to respond to requests, per URI.", "uri");
+    }
+
+    /**
+     * Tracker of durations under keys other than URIs, which are recorded through
+     * {@link #add(String, long, long)} rather than as an interceptor.
+     */
+    HistogramResponseTimeTracker(long highestTrackableMicros, int significantDigits, String description,
+                                 String metric, String help, String label) {
+        this.highestTrackableMicros = highestTrackableMicros;
+        this.significantDigits = significantDigits;
+        this.description = description;
+        this.metric = metric;
+        this.help = help;
+        this.label = label;
+        this.layout = new LogLinearHistogram(highestTrackableMicros, significantDigits);
+        this.boundIndexes = new int[layout.length()];
+        this.midSeconds = new double[layout.length()];
+        long lowest = 0;
+        for (int i = 0; i < layout.length(); i++) {
+            final long highest = layout.highestValueAt(i);
+            int bound = 0;
+            while (bound < BOUND_MICROS.length && BOUND_MICROS[bound] < highest) {
+                bound++;
+            }
+            boundIndexes[i] = bound;
+            midSeconds[i] = (lowest + Math.min(highest, highestTrackableMicros)) / 2e6;
+            lowest = highest + 1;
+        }
+    }
+
+    /**
+     * Tracker configured from system properties, see README for the property names.
+     */
+    public static HistogramResponseTimeTracker fromSystemProperties() {
+        return new HistogramResponseTimeTracker(
+                Long.getLong("proxy.stats.maxTrackableMillis", 60000L) * 1000L,
+                Integer.getInteger("proxy.stats.significantDigits", 2));
+    }
+
+    @Override
+    protected void add(String uri, long startNanos, long endNanos) {
+        final long epoch = epoch(endNanos);
+        histogram(uri, epoch).record((endNanos - startNanos) / 1000L, epoch);
+    }
+
+    /**
+     * Interval of a System.nanoTime() reading, which may be negative, so the division is floored.
+     */
+    private static long epoch(long nanos) {
+        return Math.floorDiv(nanos, INTERVAL_NANOS);
+    }
+
+    private WindowedHistogram histogram(String uri, long epoch) {
+        WindowedHistogram histogram = uriResponseTime.get(uri);
+        if (histogram == null) {
+            histogram = uriResponseTime.computeIfAbsent(uri, k -> new WindowedHistogram(epoch));
+        }
+        return histogram;
+    }
+
+    public long getHighestTrackableMicros() {
+        return highestTrackableMicros;
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    /**
+     * Adds the histogram of every URI since the start, at full resolution, to the snapshot.
+     */
+    public void saveTo(StatsSnapshot snapshot) {
+        for (ConcurrentHashMap.Entry<String, WindowedHistogram> pair : uriResponseTime.entrySet()) {
+            snapshot.addResponseTimes(pair.getKey(), pair.getValue().total());
+        }
+    }
+
+    /**
+     * Adds the histograms saved in the snapshot to the counts since the start. The windows are left
+     * as they are, they only cover the last minutes. The histograms are added under the keys
+     * trackedUris admits them as.
+     *
+     * @throws IllegalArgumentException if the snapshot's histograms have another layout
+     */
+    public void restoreFrom(StatsSnapshot snapshot, TrackedUris trackedUris) {
+        if (snapshot.getHighestTrackableMicros() != highestTrackableMicros
+                || snapshot.getSignificantDigits() != significantDigits) {
+            throw new IllegalArgumentException("Saved response times have another histogram layout");
+        }
+        final long epoch = epoch(System.nanoTime());
+        for (Map.Entry<String, LogLinearHistogram.Snapshot> entry : snapshot.getResponseTimes().entrySet()) {
+            final LogLinearHistogram.Snapshot saved = entry.getValue();
+            if (saved.size() > 0 && saved.indexAt(saved.size() - 1) >= layout.length()) {
+                throw new IllegalArgumentException("Saved response times of " + entry.getKey() + " are out of range");
+            }
+            histogram(trackedUris.restoredKey(entry.getKey()), epoch).restore(saved);
+        }
+    }
+
+    @Override
+    protected void add(String uri, Long durationMillisecs) {
+        final long now = System.nanoTime();
+        add(uri, now - durationMillisecs * 1000000L, now);
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping " + description + " statistics...");
+        final long epoch = epoch(System.nanoTime());
+        for (ConcurrentHashMap.Entry<String, WindowedHistogram> pair : uriResponseTime.entrySet()) {
+            final WindowedHistogram histogram = pair.getValue();
+            for (int w = 0; w < WINDOWS.length; w++) {
+                final long[] merged = histogram.merge(epoch, WINDOWS[w]);
+                long count = 0;
+                for (long c : merged) {
+                    count += c;
+                }
+                if (count == 0) {
+                    continue;
+                }
+                final StringBuilder line = new StringBuilder(label.toUpperCase()).append(": ").append(pair.getKey())
+                        .append(" last ").append(WINDOW_NAMES[w]).append(" count: ").append(count);
+                for (Integer percentile : PERCENTILES) {
+                    line.append(' ').append(percentile).append("th: ").append(String.format("%.3f",
+                            layout.valueAtPercentile(merged, percentile) / 1000.0));
+                }
+                System.out.println(line.append(" millisecs"));
+            }
+        }
+    }
+
+    public synchronized void collect(MetricsWriter writer) {
+        writer.family(metric, "histogram", help);
+        for (ConcurrentHashMap.Entry<String, WindowedHistogram> pair : uriResponseTime.entrySet()) {
+            final String key = pair.getKey();
+            final double sum = pair.getValue().cumulative(bucketCounts);
+            long count = 0;
+            for (int b = 0; b < bucketCounts.length; b++) {
+                count += bucketCounts[b];
+                writer.sample(metric + "_bucket", label, key, "le", BOUND_NAMES[b], count);
+            }
+            writer.sample(metric + "_count", label, key, count);
+            writer.sample(metric + "_sum", label, key, sum);
+        }
+    }
+
+    private static final class Interval {
+        final long epoch;
+        final LogLinearHistogram histogram;
+
+        Interval(long epoch, LogLinearHistogram histogram) {
+            this.epoch = epoch;
+            this.histogram = histogram;
+        }
+    }
+
+    private final class WindowedHistogram {
+        final AtomicReference<Interval> current;
+        // Completed intervals, slot floorMod(epoch, length). Guarded by this.
+        final LogLinearHistogram.Snapshot[] ring = new LogLinearHistogram.Snapshot[WINDOWS[WINDOWS.length - 1]];
+        final long[] ringEpochs = new long[ring.length];
+        // The histogram of the interval before last, drained and ready for reuse. Guarded by this.
+        LogLinearHistogram spare;
+        // Counts per exported bucket and estimated sum in seconds of all drained intervals. Guarded by this.
+        final long[] drainedBuckets = new long[BOUND_NAMES.length];
+        double drainedSeconds;
+        // Full resolution counts of all drained intervals, for snapshots. Guarded by this.
+        LogLinearHistogram.Snapshot drained = LogLinearHistogram.Snapshot.EMPTY;
+
+        WindowedHistogram(long epoch) {
+            current = new AtomicReference<>(new Interval(epoch,
+                    new LogLinearHistogram(highestTrackableMicros, significantDigits)));
+        }
+
+        void record(long micros, long epoch) {
+            Interval interval = current.get();
+            if (interval.epoch < epoch) {
+                interval = roll(epoch);
+            }
+            interval.histogram.record(micros);
+        }
+
+        synchronized Interval roll(long epoch) {
+            final Interval ended = current.get();
+            if (ended.epoch >= epoch) {
+                return ended;
+            }
+            final LogLinearHistogram next = spare != null
+                    ? spare : new LogLinearHistogram(highestTrackableMicros, significantDigits);
+            final Interval started = new Interval(epoch, next);
+            current.set(started);
+            // Writers that fetched the ended interval just before the swap may still record into it,
+            // those values are drained with the next interval instead.
+            final int slot = (int) Math.floorMod(ended.epoch, (long) ring.length);
+            ring[slot] = ended.histogram.drain();
+            ringEpochs[slot] = ended.epoch;
+            drainedSeconds += ring[slot].addTo(drainedBuckets, boundIndexes, midSeconds);
+            drained = drained.merge(ring[slot]);
+            spare = ended.histogram;
+            return started;
+        }
+
+        /**
+         * Counts of the last {@code intervals} completed intervals before {@code epoch}.
+         */
+        synchronized long[] merge(long epoch, int intervals) {
+            roll(epoch);
+            final long[] merged = new long[layout.length()];
+            for (int i = 0; i < ring.length; i++) {
+                if (ring[i] != null && ringEpochs[i] >= epoch - intervals && ringEpochs[i] < epoch) {
+                    ring[i].addTo(merged);
+                }
+            }
+            return merged;
+        }
+
+        /**
+         * Sets the counts per exported bucket since the start, including the current interval, and
+         * returns their estimated sum in seconds. Never decreases from one call to the next.
+         */
+        synchronized double cumulative(long[] buckets) {
+            System.arraycopy(drainedBuckets, 0, buckets, 0, buckets.length);
+            return drainedSeconds + current.get().histogram.addTo(buckets, boundIndexes, midSeconds);
+        }
+
+        /**
+         * Full resolution counts since the start, including the current interval.
+         */
+        synchronized LogLinearHistogram.Snapshot total() {
+            return drained.merge(current.get().histogram.snapshot());
+        }
+
+        /**
+         * Counts the saved histogram as drained, so that it shows in the totals but not in the windows.
+         */
+        synchronized void restore(LogLinearHistogram.Snapshot saved) {
+            drained = drained.merge(saved);
+            drainedSeconds += saved.addTo(drainedBuckets, boundIndexes, midSeconds);
+        }
+    }
+}
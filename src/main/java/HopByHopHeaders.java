@@ -0,0 +1,102 @@
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpMessage;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Removes the headers that apply to a single connection, and so must not be forwarded, in one pass
+ * over the message's headers. Besides the standard hop-by-hop headers these are the framing headers,
+ * which are set again for the next hop, and the headers the Connection header lists.
+ */
+final class HopByHopHeaders {
+    static final Header[] NONE = new Header[0];
+
+    private HopByHopHeaders() {
+    }
+
+    /**
+     * Removes hop-by-hop headers from a request, and its Host header so that the upstream gets its own.
+     */
+    static void strip(final HttpMessage request) {
+        final String connection = connectionTokens(request);
+        for (final HeaderIterator it = request.headerIterator(); it.hasNext(); ) {
+            final String name = it.nextHeader().getName();
+            if (isHopByHop(name, connection) || name.equalsIgnoreCase(HTTP.TARGET_HOST)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Replaces the headers of {@code to} with the end to end headers of {@code from}.
+     */
+    static void copy(final HttpMessage from, final HttpMessage to) {
+        final String connection = connectionTokens(from);
+        to.setHeaders(NONE);
+        for (final HeaderIterator it = from.headerIterator(); it.hasNext(); ) {
+            final Header header = it.nextHeader();
+            if (!isHopByHop(header.getName(), connection)) {
+                to.addHeader(header);
+            }
+        }
+    }
+
+    private static String connectionTokens(final HttpMessage message) {
+        final Header connection = message.getFirstHeader(HTTP.CONN_DIRECTIVE);
+        return connection != null ? connection.getValue() : null;
+    }
+
+    static boolean isHopByHop(final String name, final String connectionTokens) {
+        switch (name.length()) {
+            case 2:
+                return name.equalsIgnoreCase("TE") || isListed(name, connectionTokens);
+            case 7:
+                return name.equalsIgnoreCase("Trailer") || name.equalsIgnoreCase("Upgrade")
+                        || isListed(name, connectionTokens);
+            case 8:
+                return name.equalsIgnoreCase("Trailers") || isListed(name, connectionTokens);
+            case 10:
+                return name.equalsIgnoreCase(HTTP.CONN_DIRECTIVE) || name.equalsIgnoreCase(HTTP.CONN_KEEP_ALIVE)
+                        || isListed(name, connectionTokens);
+            case 14:
+                return name.equalsIgnoreCase(HTTP.CONTENT_LEN) || isListed(name, connectionTokens);
+            case 17:
+                return name.equalsIgnoreCase(HTTP.TRANSFER_ENCODING) || isListed(name, connectionTokens);
+            case 18:
+                return name.equalsIgnoreCase("Proxy-Authenticate") || isListed(name, connectionTokens);
+            case 19:
+                return name.equalsIgnoreCase("Proxy-Authorization") || isListed(name, connectionTokens);
+            default:
+                return isListed(name, connectionTokens);
+        }
+    }
+
+    /**
+     * Whether the name is one of the comma separated tokens, compared without allocating.
+     */
+    static boolean isListed(final String name, final String tokens) {
+        if (tokens == null) {
+            return false;
+        }
+        int start = 0;
+        while (start < tokens.length()) {
+            int end = tokens.indexOf(',', start);
+            if (end < 0) {
+                end = tokens.length();
+            }
+            int first = start;
+            int last = end;
+            while (first < last && tokens.charAt(first) <= ' ') {
+                first++;
+            }
+            while (last > first && tokens.charAt(last - 1) <= ' ') {
+                last--;
+            }
+            if (last - first == name.length() && tokens.regionMatches(true, first, name, 0, name.length())) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+}
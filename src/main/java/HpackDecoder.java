@@ -0,0 +1,121 @@
+import org.apache.http.annotation.NotThreadSafe;
+
+/**
+ * Decodes the header blocks a client sends on one HTTP/2 connection, RFC 7541. Blocks must be
+ * decoded in the order they arrive, as each may change the dynamic table the next one refers to.
+ */
+@NotThreadSafe
+final class HpackDecoder {
+
+    interface Listener {
+        void header(String name, String value) throws Http2Exception;
+    }
+
+    private final HpackTable table;
+    // The table size advertised in our settings, the client may not use a larger one.
+    private final int maxTableSize;
+    private final StringBuilder string = new StringBuilder();
+    private byte[] block;
+    private int pos;
+    private int end;
+
+    HpackDecoder(final int maxTableSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Decodes a complete header block. Once the fields add up to more than {@code maxListSize}, as
+     * counted for SETTINGS_MAX_HEADER_LIST_SIZE, the rest are decoded but not passed on, so that the
+     * dynamic table stays in step with the client's.
+     *
+     * @return whether all fields were passed to the listener
+     */
+    boolean decode(final byte[] block, final int off, final int len, final int maxListSize,
+                   final Listener listener) throws Http2Exception {
+        this.block = block;
+        this.pos = off;
+        this.end = off + len;
+        long listSize = 0;
+        boolean fieldSeen = false;
+        try {
+            while (pos < end) {
+                final int b = block[pos] & 0xFF;
+                final String name;
+                final String value;
+                if ((b & 0x80) != 0) {
+                    final int index = readInt(7);
+                    name = table.name(index);
+                    value = table.value(index);
+                } else if ((b & 0x40) != 0) {
+                    final int index = readInt(6);
+                    name = index == 0 ? readString() : table.name(index);
+                    value = readString();
+                    table.add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    // Dynamic table size updates come first in a block.
+                    final int size = readInt(5);
+                    if (fieldSeen || size > maxTableSize) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                                "Invalid dynamic table size update: " + size);
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // Literal without indexing or never indexed, the same to a decoder.
+                    final int index = readInt(4);
+                    name = index == 0 ? readString() : table.name(index);
+                    value = readString();
+                }
+                fieldSeen = true;
+                listSize += HpackTable.entrySize(name, value);
+                if (listSize <= maxListSize) {
+                    listener.header(name, value);
+                }
+            }
+        } finally {
+            this.block = null;
+        }
+        return listSize <= maxListSize;
+    }
+
+    private int readInt(final int prefixBits) throws Http2Exception {
+        final int max = (1 << prefixBits) - 1;
+        int value = block[pos++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        int b;
+        do {
+            if (pos == end || shift > 21) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid integer in header block");
+            }
+            b = block[pos++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private String readString() throws Http2Exception {
+        if (pos == end) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        }
+        final boolean huffman = (block[pos] & 0x80) != 0;
+        final int length = readInt(7);
+        if (length > end - pos) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        }
+        string.setLength(0);
+        if (huffman) {
+            Huffman.decode(block, pos, length, string);
+        } else {
+            for (int i = pos; i < pos + length; i++) {
+                string.append((char) (block[i] & 0xFF));
+            }
+        }
+        pos += length;
+        return string.toString();
+    }
+}
@@ -0,0 +1,105 @@
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.annotation.NotThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Encodes the header blocks sent to a client on one HTTP/2 connection, RFC 7541. Blocks must be
+ * sent in the order they are encoded. Fields are indexed in the dynamic table unless their values
+ * rarely repeat, and strings are Huffman coded when that makes them shorter.
+ */
+@NotThreadSafe
+final class HpackEncoder {
+    // Largest dynamic table used, whatever the client allows.
+    static final int MAX_TABLE_SIZE = 4096;
+
+    // Values that seldom repeat, indexing them would only push useful entries out of the table.
+    private static final Set<String> UNINDEXED = ImmutableSet.of(
+            "age", "content-length", "date", "etag", "expires", "last-modified", "location",
+            Constants.EXECUTION_TIME_HEADER_KEY.toLowerCase(Locale.ROOT));
+    // Never indexed, so that their values cannot be guessed from the table, RFC 7541 section 7.1.
+    private static final Set<String> SENSITIVE = ImmutableSet.of(
+            "authorization", "cookie", "proxy-authorization", "set-cookie");
+
+    private final HpackTable table = new HpackTable(MAX_TABLE_SIZE);
+    // Smallest table size since the last block, or -1, the client must see it before the final one.
+    private int smallestSize = -1;
+
+    /**
+     * Applies the client's SETTINGS_HEADER_TABLE_SIZE, signalled at the start of the next block.
+     */
+    void setMaxTableSize(final int size) {
+        final int maxSize = Math.min(size, MAX_TABLE_SIZE);
+        if (maxSize == table.getMaxSize()) {
+            return;
+        }
+        smallestSize = smallestSize < 0 ? maxSize : Math.min(smallestSize, maxSize);
+        table.setMaxSize(maxSize);
+    }
+
+    /**
+     * Starts a header block.
+     */
+    void begin(final ByteArrayOutputStream out) {
+        if (smallestSize >= 0) {
+            if (smallestSize < table.getMaxSize()) {
+                writeInt(out, 0x20, 5, smallestSize);
+            }
+            writeInt(out, 0x20, 5, table.getMaxSize());
+            smallestSize = -1;
+        }
+    }
+
+    /**
+     * Encodes a field, the name must be lower case.
+     */
+    void header(final ByteArrayOutputStream out, final String name, final String value) {
+        final int index = table.find(name, value);
+        if (index > 0) {
+            writeInt(out, 0x80, 7, index);
+            return;
+        }
+        if (SENSITIVE.contains(name)) {
+            writeInt(out, 0x10, 4, -index);
+        } else if (UNINDEXED.contains(name) || HpackTable.entrySize(name, value) > table.getMaxSize() / 2) {
+            writeInt(out, 0x00, 4, -index);
+        } else {
+            writeInt(out, 0x40, 6, -index);
+            table.add(name, value);
+        }
+        if (index == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int flags, final int prefixBits, int value) {
+        final int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(final ByteArrayOutputStream out, final String s) {
+        final int huffmanLength = Huffman.encodedLength(s);
+        if (huffmanLength < s.length()) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            Huffman.encode(s, out);
+        } else {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Header table of one direction of an HTTP/2 connection, RFC 7541 section 2.3: the static table
+ * followed by the dynamic table of recently indexed fields, newest first. Sizes count the octets of
+ * ISO-8859-1 names and values.
+ */
+final class HpackTable {
+    static final String[][] STATIC = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+    // Size overhead of an entry besides its name and value.
+    static final int ENTRY_OVERHEAD = 32;
+
+    // Index of the first static entry of each name, entries of the same name are adjacent.
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    static {
+        for (int i = STATIC.length; i > 0; i--) {
+            STATIC_NAMES.put(STATIC[i - 1][0], i);
+        }
+    }
+
+    // Ring buffer of dynamic entries, from the oldest at first.
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int first;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    HpackTable(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Number of entries, static and dynamic.
+     */
+    int length() {
+        return STATIC.length + count;
+    }
+
+    String name(final int index) throws Http2Exception {
+        if (index <= STATIC.length) {
+            return STATIC[checkIndex(index) - 1][0];
+        }
+        return names[position(checkIndex(index))];
+    }
+
+    String value(final int index) throws Http2Exception {
+        if (index <= STATIC.length) {
+            return STATIC[checkIndex(index) - 1][1];
+        }
+        return values[position(checkIndex(index))];
+    }
+
+    private int checkIndex(final int index) throws Http2Exception {
+        if (index < 1 || index > length()) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header table index out of range: " + index);
+        }
+        return index;
+    }
+
+    private int position(final int index) {
+        return (first + count - (index - STATIC.length)) & (names.length - 1);
+    }
+
+    /**
+     * Index of the entry with the name and value, or minus the index of an entry with just the
+     * name, or 0 if there is neither.
+     */
+    int find(final String name, final String value) {
+        int nameIndex = 0;
+        final Integer staticIndex = STATIC_NAMES.get(name);
+        if (staticIndex != null) {
+            for (int i = staticIndex; i <= STATIC.length && STATIC[i - 1][0].equals(name); i++) {
+                if (STATIC[i - 1][1].equals(value)) {
+                    return i;
+                }
+            }
+            nameIndex = staticIndex;
+        }
+        for (int i = STATIC.length + 1; i <= length(); i++) {
+            final int position = position(i);
+            if (names[position].equals(name)) {
+                if (values[position].equals(value)) {
+                    return i;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = i;
+                }
+            }
+        }
+        return -nameIndex;
+    }
+
+    /**
+     * Adds an entry as the newest, evicting the oldest ones to make room. An entry larger than the
+     * table empties it and is not added.
+     */
+    void add(final String name, final String value) {
+        final int entrySize = entrySize(name, value);
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+        if (count == names.length) {
+            grow();
+        }
+        final int position = (first + count) & (names.length - 1);
+        names[position] = name;
+        values[position] = value;
+        count++;
+        size += entrySize;
+    }
+
+    void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    static int entrySize(final String name, final String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    private void evict(final int targetSize) {
+        while (count > 0 && size > targetSize) {
+            size -= entrySize(names[first], values[first]);
+            names[first] = null;
+            values[first] = null;
+            first = (first + 1) & (names.length - 1);
+            count--;
+        }
+    }
+
+    private void grow() {
+        final String[] newNames = new String[names.length * 2];
+        final String[] newValues = new String[names.length * 2];
+        for (int i = 0; i < count; i++) {
+            newNames[i] = names[(first + i) & (names.length - 1)];
+            newValues[i] = values[(first + i) & (names.length - 1)];
+        }
+        names = newNames;
+        values = newValues;
+        first = 0;
+    }
+}
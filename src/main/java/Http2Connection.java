@@ -0,0 +1,1046 @@
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ProtocolException;
+import org.apache.http.UnsupportedHttpVersionException;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One HTTP/2 client connection, RFC 7540. The connection's thread reads frames and starts a thread
+ * per stream, which runs the request through the service's protocol processor and handler and
+ * writes the response. Frames are written under a lock on the output stream, which also guards
+ * the HPACK encoder, as header blocks must go out in the order they were encoded.
+ *
+ * Request bodies are buffered per stream up to the initial window size, and window updates are
+ * sent as the handler reads them, so a client cannot send faster than the upstream accepts. The
+ * connection window is replenished as soon as data arrives, the stream windows bound the buffers.
+ * Response bodies are sent within the client's connection and stream windows.
+ */
+class Http2Connection {
+    private static final Logger LOG = Logger.getLogger(Http2Connection.class.getName());
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    // Frame size limit of both sides unless raised by settings, the proxy never raises its own.
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    // RFC 6585, which httpcore predates.
+    private static final int REQUEST_HEADER_FIELDS_TOO_LARGE = 431;
+
+    private final Http2Service service;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final HpackDecoder decoder;
+    // Guarded by out.
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final BlockBuffer headerBlock = new BlockBuffer();
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+
+    private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+    // Read and written by the connection thread only.
+    private final byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private final BlockBuffer requestBlock = new BlockBuffer();
+    private final HeaderCollector collector = new HeaderCollector();
+    private int lastStreamId;
+    private boolean goingAway;
+
+    // Send windows and settings of the client, guarded by the connection.
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+
+    Http2Connection(final Http2Service service, final Socket socket, final InputStream in) throws IOException {
+        this.service = service;
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(in, DEFAULT_MAX_FRAME_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), FRAME_HEADER_LENGTH + DEFAULT_MAX_FRAME_SIZE);
+        this.decoder = new HpackDecoder(HpackEncoder.MAX_TABLE_SIZE);
+    }
+
+    /**
+     * Reads frames until the client closes the connection or breaks the protocol.
+     */
+    void serve(final HttpRequest upgrade) throws IOException {
+        try {
+            writeSettings();
+            if (upgrade != null) {
+                // Stream 1 carries the upgrade request, its settings are the client's initial ones.
+                final Header settings = upgrade.getFirstHeader("HTTP2-Settings");
+                final byte[] initialSettings = Http2Service.decodeSettings(settings.getValue());
+                applySettings(initialSettings, initialSettings.length);
+                if (!Http2Service.readPreface(new PushbackInputStream(in, Http2Service.PREFACE.length))) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Missing connection preface");
+                }
+                lastStreamId = 1;
+                startStream(1, upgrade, null);
+            }
+            readFrames();
+        } catch (final Http2Exception ex) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("HTTP/2 connection error: " + ex.getMessage());
+            }
+            writeGoAway(ex.getErrorCode(), ex.getMessage());
+        } catch (final EOFException ex) {
+            // The client closed the connection.
+        } finally {
+            close();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        boolean first = true;
+        while (true) {
+            in.readFully(frameHeader);
+            final int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+            final int type = frameHeader[3] & 0xFF;
+            final int flags = frameHeader[4] & 0xFF;
+            final int streamId = readInt(frameHeader, 5) & MAX_WINDOW_SIZE;
+            if (length > payload.length) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " octets");
+            }
+            in.readFully(payload, 0, length);
+            if (first && type != SETTINGS) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Preface must be followed by SETTINGS");
+            }
+            first = false;
+            try {
+                readFrame(type, flags, streamId, length);
+            } catch (final Http2Exception ex) {
+                if (ex.getStreamId() == 0) {
+                    throw ex;
+                }
+                resetStream(ex.getStreamId(), ex.getErrorCode());
+            }
+        }
+    }
+
+    private void readFrame(final int type, final int flags, final int streamId, final int length) throws IOException {
+        switch (type) {
+            case DATA:
+                readData(flags, streamId, length);
+                break;
+            case HEADERS:
+                readHeaders(flags, streamId, length);
+                break;
+            case PRIORITY:
+                requireStream(streamId);
+                requireLength(length, 5, streamId);
+                break;
+            case RST_STREAM:
+                requireStream(streamId);
+                requireLength(length, 4, 0);
+                if (streamId > lastStreamId) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+                }
+                final Stream reset = streams.get(streamId);
+                if (reset != null) {
+                    reset.reset();
+                }
+                break;
+            case SETTINGS:
+                requireConnection(streamId);
+                if ((flags & FLAG_ACK) != 0) {
+                    requireLength(length, 0, 0);
+                } else {
+                    if (length % 6 != 0) {
+                        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " octets");
+                    }
+                    applySettings(payload, length);
+                    writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+                }
+                break;
+            case PING:
+                requireConnection(streamId);
+                requireLength(length, 8, 0);
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                }
+                break;
+            case GOAWAY:
+                requireConnection(streamId);
+                // Streams in progress complete, the client closes the connection once it has their responses.
+                goingAway = true;
+                break;
+            case WINDOW_UPDATE:
+                requireLength(length, 4, 0);
+                readWindowUpdate(streamId, readInt(payload, 0) & MAX_WINDOW_SIZE);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case CONTINUATION:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+            default:
+                // Unknown frame types are ignored.
+                break;
+        }
+    }
+
+    private void readData(final int flags, final int streamId, final int length) throws IOException {
+        requireStream(streamId);
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        }
+        if (length > 0) {
+            writeWindowUpdate(0, length);
+        }
+        int offset = 0;
+        int dataLength = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            final int padding = length > 0 ? payload[0] & 0xFF : length;
+            if (padding >= length) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+            }
+            offset = 1;
+            dataLength = length - 1 - padding;
+        }
+        final Stream stream = streams.get(streamId);
+        if (stream == null || stream.body == null || stream.remoteClosed) {
+            throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream " + streamId);
+        }
+        stream.body.append(payload, offset, dataLength);
+        // Padding is not buffered, so it goes back to the stream window at once.
+        if (length > dataLength && (flags & FLAG_END_STREAM) == 0) {
+            writeWindowUpdate(streamId, length - dataLength);
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            stream.body.end();
+        }
+    }
+
+    private void readHeaders(int flags, final int streamId, final int length) throws IOException {
+        requireStream(streamId);
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            final int padding = length > 0 ? payload[0] & 0xFF : length;
+            offset = 1;
+            end = length - padding;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset > end) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+        }
+        requestBlock.reset();
+        requestBlock.write(payload, offset, end - offset);
+        // The rest of the block follows in CONTINUATION frames, with nothing in between.
+        while ((flags & FLAG_END_HEADERS) == 0) {
+            in.readFully(frameHeader);
+            final int continuationLength =
+                    ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+            if (frameHeader[3] != CONTINUATION || (readInt(frameHeader, 5) & MAX_WINDOW_SIZE) != streamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION of stream " + streamId);
+            }
+            if (continuationLength > payload.length) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + continuationLength + " octets");
+            }
+            if (requestBlock.size() + continuationLength > 4 * service.getMaxHeaderListSize()) {
+                throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+            }
+            in.readFully(payload, 0, continuationLength);
+            requestBlock.write(payload, 0, continuationLength);
+            flags |= frameHeader[4] & FLAG_END_HEADERS;
+        }
+
+        collector.reset();
+        final boolean complete = decoder.decode(requestBlock.array(), 0, requestBlock.size(),
+                service.getMaxHeaderListSize(), collector);
+        final boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        final Stream existing = streams.get(streamId);
+        if (existing != null || streamId <= lastStreamId) {
+            // Trailers, which are not forwarded.
+            if (existing == null || existing.remoteClosed) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+            }
+            if (!endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            }
+            existing.remoteClosed = true;
+            if (existing.body != null) {
+                existing.body.end();
+            }
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Client opened even stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if (goingAway || streams.size() >= service.getMaxConcurrentStreams()) {
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Stream refused");
+        }
+        if (!complete) {
+            writeHeaders(streamId, REQUEST_HEADER_FIELDS_TOO_LARGE, null, true);
+            if (!endStream) {
+                writeRstStream(streamId, Http2Exception.NO_ERROR);
+            }
+            return;
+        }
+        final HttpRequest request = collector.toRequest(streamId, endStream);
+        startStream(streamId, request, endStream ? null : new RequestBody(streamId));
+    }
+
+    private void startStream(final int streamId, final HttpRequest request, final RequestBody body) {
+        final Stream stream;
+        synchronized (this) {
+            stream = new Stream(streamId, request, body, peerInitialWindowSize);
+        }
+        stream.remoteClosed = body == null;
+        if (body != null) {
+            body.stream = stream;
+            ((HttpEntityEnclosingRequest) request).setEntity(new InputStreamEntity(body, collector.contentLength));
+        }
+        streams.put(streamId, stream);
+        service.getThreadFactory().newThread(stream).start();
+    }
+
+    private void readWindowUpdate(final int streamId, final int increment) throws IOException {
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Window increment of 0");
+        }
+        synchronized (this) {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                final Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private void applySettings(final byte[] settings, final int length) throws IOException {
+        for (int i = 0; i < length; i += 6) {
+            final int id = ((settings[i] & 0xFF) << 8) | (settings[i + 1] & 0xFF);
+            final long value = readInt(settings, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (out) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid ENABLE_PUSH " + value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        // Changes the windows of open streams by the difference, RFC 7540 section 6.9.2.
+                        final long delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = (int) value;
+                        for (final Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE " + value);
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS limits pushed streams, which the proxy does not send, and
+                    // MAX_HEADER_LIST_SIZE is advisory. Unknown settings are ignored.
+                    break;
+            }
+        }
+    }
+
+    private static void requireStream(final int streamId) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame requires a stream");
+        }
+    }
+
+    private static void requireConnection(final int streamId) throws Http2Exception {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame must not have a stream");
+        }
+    }
+
+    private static void requireLength(final int length, final int expected, final int streamId) throws Http2Exception {
+        if (length != expected) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "Frame of " + length + " octets");
+        }
+    }
+
+    private static int readInt(final byte[] b, final int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private void resetStream(final int streamId, final int errorCode) throws IOException {
+        final Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.reset();
+        }
+        writeRstStream(streamId, errorCode);
+    }
+
+    private void close() {
+        closed = true;
+        for (final Stream stream : streams.values()) {
+            stream.reset();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (final IOException ignore) {}
+    }
+
+    // Writing, frames go out whole under the lock on out.
+
+    private void writeSettings() throws IOException {
+        final byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, service.getMaxConcurrentStreams());
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, service.getInitialWindowSize());
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, service.getMaxHeaderListSize());
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+        // The connection window only needs to cover the stream windows, which bound the buffered bodies.
+        final long connectionWindow = Math.min((long) service.getMaxConcurrentStreams() * service.getInitialWindowSize(),
+                MAX_WINDOW_SIZE);
+        if (connectionWindow > DEFAULT_WINDOW_SIZE) {
+            writeWindowUpdate(0, (int) (connectionWindow - DEFAULT_WINDOW_SIZE));
+        }
+    }
+
+    private static void putSetting(final byte[] b, final int off, final int id, final int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        putInt(b, off + 2, value);
+    }
+
+    private static void putInt(final byte[] b, final int off, final int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private void writeFrame(final int type, final int flags, final int streamId,
+                            final byte[] b, final int off, final int len) throws IOException {
+        synchronized (out) {
+            writeFrameHeader(type, flags, streamId, len);
+            out.write(b, off, len);
+            out.flush();
+        }
+    }
+
+    // Caller holds the lock on out.
+    private void writeFrameHeader(final int type, final int flags, final int streamId, final int length)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(streamId >>> 24);
+        out.write(streamId >>> 16);
+        out.write(streamId >>> 8);
+        out.write(streamId);
+    }
+
+    private void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+        final byte[] b = new byte[4];
+        putInt(b, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, b, 0, 4);
+    }
+
+    private void writeRstStream(final int streamId, final int errorCode) throws IOException {
+        final byte[] b = new byte[4];
+        putInt(b, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, b, 0, 4);
+    }
+
+    private void writeGoAway(final int errorCode, final String message) {
+        final byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final byte[] b = new byte[8 + Math.min(debug.length, 256)];
+        putInt(b, 0, lastStreamId);
+        putInt(b, 4, errorCode);
+        System.arraycopy(debug, 0, b, 8, b.length - 8);
+        try {
+            writeFrame(GOAWAY, 0, 0, b, 0, b.length);
+        } catch (final IOException ignore) {
+            // The connection is closed next anyway.
+        }
+    }
+
+    /**
+     * Writes a response head. Connection specific headers have no place in HTTP/2 and are dropped,
+     * apart from Content-Length which HTTP/2 allows.
+     */
+    private void writeHeaders(final int streamId, final int status, final HttpResponse response,
+                              final boolean endStream) throws IOException {
+        synchronized (out) {
+            headerBlock.reset();
+            encoder.begin(headerBlock);
+            encoder.header(headerBlock, ":status", Integer.toString(status));
+            if (response != null) {
+                for (final Header header : response.getAllHeaders()) {
+                    final String name = header.getName();
+                    if (name.equalsIgnoreCase(HTTP.CONTENT_LEN) || !HopByHopHeaders.isHopByHop(name, null)) {
+                        encoder.header(headerBlock, name.toLowerCase(Locale.ROOT), header.getValue());
+                    }
+                }
+            }
+            final int maxFrameSize = peerMaxFrameSize;
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                final int length = Math.min(headerBlock.size() - offset, maxFrameSize);
+                int flags = offset + length == headerBlock.size() ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrameHeader(type, flags, streamId, length);
+                out.write(headerBlock.array(), offset, length);
+                offset += length;
+                type = CONTINUATION;
+            } while (offset < headerBlock.size());
+            out.flush();
+        }
+    }
+
+    /**
+     * Takes up to {@code wanted} octets of the connection and stream send windows, waiting for the
+     * client to open them if they are closed.
+     */
+    private int reserveSendWindow(final Stream stream, final int wanted) throws IOException {
+        synchronized (this) {
+            while (true) {
+                if (closed || stream.reset) {
+                    throw new IOException("Stream " + stream.id + " closed");
+                }
+                final long available = Math.min(connectionSendWindow, stream.sendWindow);
+                if (available > 0) {
+                    final int n = (int) Math.min(wanted, available);
+                    connectionSendWindow -= n;
+                    stream.sendWindow -= n;
+                    return n;
+                }
+                try {
+                    wait();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the send window");
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives access to the buffer of a ByteArrayOutputStream, so that frames are written from it
+     * without a copy.
+     */
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Collects the fields of a request header block, RFC 7540 section 8.1.2.
+     */
+    private final class HeaderCollector implements HpackDecoder.Listener {
+        private final List<Header> headers = new ArrayList<>();
+        private final StringBuilder cookie = new StringBuilder();
+        private String method;
+        private String scheme;
+        private String authority;
+        private String path;
+        private boolean malformed;
+        long contentLength;
+
+        void reset() {
+            headers.clear();
+            cookie.setLength(0);
+            method = null;
+            scheme = null;
+            authority = null;
+            path = null;
+            malformed = false;
+            contentLength = -1;
+        }
+
+        @Override
+        public void header(final String name, final String value) {
+            // Requests go upstream in HTTP/1.1, where a line break in a field could inject headers
+            // or a whole request, RFC 7540 section 10.3.
+            if (!isFieldValue(value)) {
+                malformed = true;
+                return;
+            }
+            if (name.startsWith(":")) {
+                // Pseudo-headers come first and only once.
+                if (!headers.isEmpty() || cookie.length() > 0) {
+                    malformed = true;
+                } else if (name.equals(":method") && method == null) {
+                    method = value;
+                } else if (name.equals(":scheme") && scheme == null) {
+                    scheme = value;
+                } else if (name.equals(":authority") && authority == null) {
+                    authority = value;
+                } else if (name.equals(":path") && path == null) {
+                    path = value;
+                } else {
+                    malformed = true;
+                }
+                // They end up in the request line and Host header, where a space would split them.
+                if (!isToken(value, false)) {
+                    malformed = true;
+                }
+            } else if (!isToken(name, true) || isConnectionSpecific(name, value)) {
+                // Field names must be lowercase, and connection specific fields are not allowed,
+                // RFC 7540 section 8.1.2.
+                malformed = true;
+            } else if (name.equals("cookie")) {
+                // Cookies may be split into several fields for compression, HTTP/1.1 wants them in one.
+                if (cookie.length() > 0) {
+                    cookie.append("; ");
+                }
+                cookie.append(value);
+            } else {
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (final NumberFormatException ex) {
+                        malformed = true;
+                    }
+                }
+                headers.add(new BasicHeader(name, value));
+            }
+        }
+
+        private boolean isFieldValue(final String value) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '\r' || c == '\n' || c == '\0') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether the string is free of whitespace and control characters, and if it is a field
+         * name, of uppercase letters and colons.
+         */
+        private boolean isToken(final String value, final boolean name) {
+            if (name && value.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c <= ' ' || c == 0x7F || name && (c >= 'A' && c <= 'Z' || c == ':')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isConnectionSpecific(final String name, final String value) {
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    return true;
+                case "te":
+                    return !value.trim().equalsIgnoreCase("trailers");
+                default:
+                    return false;
+            }
+        }
+
+        HttpRequest toRequest(final int streamId, final boolean endStream) throws Http2Exception {
+            if (malformed || method == null || scheme == null || path == null || path.isEmpty()) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Malformed request");
+            }
+            final HttpRequest request = endStream
+                    ? new BasicHttpRequest(method, path, HttpVersion.HTTP_1_1)
+                    : new BasicHttpEntityEnclosingRequest(method, path, HttpVersion.HTTP_1_1);
+            if (authority != null) {
+                request.addHeader(HTTP.TARGET_HOST, authority);
+            }
+            for (final Header header : headers) {
+                if (authority == null || !header.getName().equals("host")) {
+                    request.addHeader(header);
+                }
+            }
+            if (cookie.length() > 0) {
+                request.addHeader("cookie", cookie.toString());
+            }
+            return request;
+        }
+    }
+
+    /**
+     * Request body of a stream, buffered as it arrives and read by the stream's thread. Octets read
+     * are returned to the client's stream window once they add up to half of it.
+     */
+    private final class RequestBody extends InputStream {
+        private final int streamId;
+        private Stream stream;
+        private byte[] buffer;
+        private int head;
+        private int count;
+        private boolean ended;
+        private int unacknowledged;
+
+        RequestBody(final int streamId) {
+            this.streamId = streamId;
+        }
+
+        synchronized void append(final byte[] b, final int off, final int len) throws Http2Exception {
+            if (buffer == null) {
+                buffer = new byte[service.getInitialWindowSize()];
+            }
+            if (count + len > buffer.length) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+            }
+            int tail = (head + count) % buffer.length;
+            int copied = 0;
+            while (copied < len) {
+                final int n = Math.min(len - copied, buffer.length - tail);
+                System.arraycopy(b, off + copied, buffer, tail, n);
+                copied += n;
+                tail = (tail + n) % buffer.length;
+            }
+            count += len;
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int n;
+            int increment = 0;
+            synchronized (this) {
+                while (count == 0 && !ended) {
+                    if (stream.reset) {
+                        throw new IOException("Stream " + streamId + " reset");
+                    }
+                    try {
+                        wait();
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted reading the request body");
+                    }
+                }
+                if (count == 0) {
+                    return -1;
+                }
+                n = Math.min(len, Math.min(count, buffer.length - head));
+                System.arraycopy(buffer, head, b, off, n);
+                head = (head + n) % buffer.length;
+                count -= n;
+                unacknowledged += n;
+                if (!ended && unacknowledged >= buffer.length / 2) {
+                    increment = unacknowledged;
+                    unacknowledged = 0;
+                }
+            }
+            if (increment > 0) {
+                writeWindowUpdate(streamId, increment);
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+
+        synchronized void wakeUp() {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Response body of a stream, sent in DATA frames of up to the smallest frame size allowed.
+     */
+    private final class ResponseBody extends OutputStream {
+        private final Stream stream;
+        private final byte[] buffer = new byte[DEFAULT_MAX_FRAME_SIZE];
+        private int count;
+        private boolean closed;
+
+        ResponseBody(final Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                send(false);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    send(false);
+                }
+                final int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                send(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                send(true);
+            }
+        }
+
+        private void send(final boolean endStream) throws IOException {
+            int offset = 0;
+            do {
+                final int n = count > offset ? reserveSendWindow(stream, count - offset) : 0;
+                writeFrame(DATA, endStream && offset + n == count ? FLAG_END_STREAM : 0, stream.id, buffer, offset, n);
+                offset += n;
+            } while (offset < count);
+            count = 0;
+        }
+    }
+
+    /**
+     * A request and its response, served on a thread of its own with a context of its own, so that
+     * trackers see each stream as a separate request.
+     */
+    private final class Stream implements Runnable {
+        final int id;
+        final HttpRequest request;
+        // Null if the request has no body.
+        final RequestBody body;
+        // Guarded by the connection.
+        long sendWindow;
+        // Whether the client has sent all of the request, written by the connection thread only.
+        volatile boolean remoteClosed;
+        volatile boolean reset;
+        // Whether the response entity has been written or consumed, owned by the stream's thread.
+        boolean entityUsed;
+
+        Stream(final int id, final HttpRequest request, final RequestBody body, final int sendWindow) {
+            this.id = id;
+            this.request = request;
+            this.body = body;
+            this.sendWindow = sendWindow;
+        }
+
+        void reset() {
+            reset = true;
+            if (body != null) {
+                body.wakeUp();
+            }
+            synchronized (Http2Connection.this) {
+                Http2Connection.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            final HttpContext context = new BasicHttpContext(null);
+            final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+            context.setAttribute(HttpCoreContext.HTTP_RESPONSE, response);
+            try {
+                try {
+                    service.getHttpProcessor().process(request, context);
+                    service.getHandler().handle(request, response, context);
+                } catch (final HttpException ex) {
+                    SimpleReverseProxy.setErrorResponse(response, errorStatus(ex));
+                }
+                service.getHttpProcessor().process(response, context);
+                sendResponse(response);
+                if (!remoteClosed && !reset) {
+                    // The response is complete, the client need not send the rest of the body.
+                    writeRstStream(id, Http2Exception.NO_ERROR);
+                }
+            } catch (final HttpException | IOException | RuntimeException ex) {
+                if (!entityUsed) {
+                    abandon(response.getEntity());
+                }
+                if (!reset && !closed) {
+                    if (ex instanceof RuntimeException) {
+                        LOG.log(Level.WARNING, "HTTP/2 stream " + id + " failed", ex);
+                    } else {
+                        System.err.println("HTTP/2 stream " + id + " error: " + ex.getMessage());
+                    }
+                    try {
+                        writeRstStream(id, Http2Exception.INTERNAL_ERROR);
+                    } catch (final IOException ignore) {}
+                }
+            } finally {
+                streams.remove(id);
+            }
+        }
+
+        private void sendResponse(final HttpResponse response) throws IOException {
+            final int status = response.getStatusLine().getStatusCode();
+            final HttpEntity entity = response.getEntity();
+            final boolean hasBody = entity != null && !"HEAD".equalsIgnoreCase(request.getRequestLine().getMethod())
+                    && status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_NOT_MODIFIED;
+            if (entity != null && !hasBody) {
+                // Returns the upstream connection to the pool.
+                entityUsed = true;
+                EntityUtils.consume(entity);
+            }
+            if (reset) {
+                throw new IOException("Stream " + id + " reset");
+            }
+            writeHeaders(id, status, response, !hasBody);
+            if (hasBody) {
+                entityUsed = true;
+                try (OutputStream body = new ResponseBody(this)) {
+                    entity.writeTo(body);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives up a response body that will not be sent. Writing it to a stream that refuses bytes
+     * releases an upstream connection it holds, without reading the rest of the body first.
+     */
+    private static void abandon(final HttpEntity entity) {
+        if (entity == null) {
+            return;
+        }
+        try {
+            entity.writeTo(new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    throw new IOException("Response abandoned");
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    throw new IOException("Response abandoned");
+                }
+            });
+        } catch (final IOException | RuntimeException ignore) {}
+    }
+
+    private static int errorStatus(final HttpException ex) {
+        if (ex instanceof MethodNotSupportedException) {
+            return HttpStatus.SC_NOT_IMPLEMENTED;
+        } else if (ex instanceof UnsupportedHttpVersionException) {
+            return HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED;
+        } else if (ex instanceof ProtocolException) {
+            return HttpStatus.SC_BAD_REQUEST;
+        }
+        return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+}
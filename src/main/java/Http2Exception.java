@@ -0,0 +1,42 @@
+import java.io.IOException;
+
+/**
+ * HTTP/2 protocol error, with the error code to send the peer, RFC 7540 section 7. Raised as a
+ * connection error unless it names a stream.
+ */
+class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+    // Stream the error is confined to, or 0 for a connection error.
+    private final int streamId;
+
+    Http2Exception(final int errorCode, final String message) {
+        this(errorCode, 0, message);
+    }
+
+    Http2Exception(final int errorCode, final int streamId, final String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+}
@@ -0,0 +1,168 @@
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves client connections that speak HTTP/2 in cleartext (h2c), RFC 7540, either from the start
+ * with the connection preface or after upgrading from HTTP/1.1. Each stream is handled on its own
+ * thread like a request on an HTTP/1.1 connection, by the same protocol processor and handler.
+ */
+@ThreadSafe
+class Http2Service {
+    // Context attribute holding the request that a connection is upgrading to HTTP/2 with.
+    static final String UPGRADE_REQUEST = "http.proxy.h2c-upgrade";
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final HttpProcessor httpproc;
+    private final HttpRequestHandler handler;
+    private final ThreadFactory threadFactory;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final int maxHeaderListSize;
+
+    /**
+     * @param threadFactory        creates the threads that serve streams
+     * @param maxConcurrentStreams streams served at once on a connection, further streams are refused
+     * @param initialWindowSize    request body octets a client may send on a stream ahead of the proxy reading them
+     * @param maxHeaderListSize    largest request head accepted, as counted by HPACK
+     */
+    public Http2Service(final HttpProcessor httpproc,
+                        final HttpRequestHandler handler,
+                        final ThreadFactory threadFactory,
+                        final int maxConcurrentStreams,
+                        final int initialWindowSize,
+                        final int maxHeaderListSize) {
+        this.httpproc = httpproc;
+        this.handler = handler;
+        this.threadFactory = threadFactory;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.initialWindowSize = initialWindowSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * The configured service, or null if HTTP/2 is disabled.
+     */
+    public static Http2Service fromSystemProperties(final HttpProcessor httpproc,
+                                                    final HttpRequestHandler handler,
+                                                    final ThreadFactory threadFactory) {
+        if (!Boolean.parseBoolean(System.getProperty("proxy.h2.enabled", "true"))) {
+            return null;
+        }
+        return new Http2Service(httpproc, handler, threadFactory,
+                Integer.getInteger("proxy.h2.maxConcurrentStreams", 100),
+                Integer.getInteger("proxy.h2.initialWindowSize", 65535),
+                Integer.getInteger("proxy.h2.maxHeaderListSize", 65536));
+    }
+
+    HttpProcessor getHttpProcessor() {
+        return httpproc;
+    }
+
+    HttpRequestHandler getHandler() {
+        return handler;
+    }
+
+    ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    int getInitialWindowSize() {
+        return initialWindowSize;
+    }
+
+    int getMaxHeaderListSize() {
+        return maxHeaderListSize;
+    }
+
+    /**
+     * Reads the HTTP/2 connection preface if the client starts with it. Otherwise the octets read are
+     * pushed back, so the stream must allow pushing back the length of the preface.
+     */
+    static boolean readPreface(final PushbackInputStream in) throws IOException {
+        int matched = 0;
+        while (matched < PREFACE.length) {
+            final int b = in.read();
+            if (b != PREFACE[matched]) {
+                if (b >= 0) {
+                    in.unread(b);
+                }
+                in.unread(PREFACE, 0, matched);
+                return false;
+            }
+            matched++;
+        }
+        return true;
+    }
+
+    /**
+     * Serves a connection until it closes. {@code upgrade} is the HTTP/1.1 request the client
+     * upgraded with, answered on stream 1, or null if the client sent the preface straight away.
+     */
+    void serve(final Socket socket, final InputStream in, final HttpRequest upgrade) throws IOException {
+        new Http2Connection(this, socket, in).serve(upgrade);
+    }
+
+    /**
+     * Wraps a handler to answer h2c upgrade requests with 101 Switching Protocols, RFC 7540 section
+     * 3.2, leaving the request in the context for the connection to continue with in HTTP/2. Requests
+     * with a body are served in HTTP/1.1, so that the body need not be read ahead of the switch.
+     * Only for cleartext listeners, over TLS the upgrade must be ignored.
+     */
+    HttpRequestHandler upgradeHandler(final HttpRequestHandler handler) {
+        return (request, response, context) -> {
+            if (isUpgrade(request)) {
+                response.setStatusCode(HttpStatus.SC_SWITCHING_PROTOCOLS);
+                response.setHeader(HTTP.CONN_DIRECTIVE, "Upgrade");
+                response.setHeader("Upgrade", "h2c");
+                context.setAttribute(UPGRADE_REQUEST, request);
+            } else {
+                handler.handle(request, response, context);
+            }
+        };
+    }
+
+    private static boolean isUpgrade(final HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest
+                || !HttpVersion.HTTP_1_1.equals(request.getRequestLine().getProtocolVersion())) {
+            return false;
+        }
+        final Header upgrade = request.getFirstHeader("Upgrade");
+        final Header connection = request.getFirstHeader(HTTP.CONN_DIRECTIVE);
+        final Header[] settings = request.getHeaders("HTTP2-Settings");
+        return upgrade != null && HopByHopHeaders.isListed("h2c", upgrade.getValue())
+                && connection != null && HopByHopHeaders.isListed("Upgrade", connection.getValue())
+                && HopByHopHeaders.isListed("HTTP2-Settings", connection.getValue())
+                && settings.length == 1 && decodeSettings(settings[0].getValue()) != null;
+    }
+
+    /**
+     * The SETTINGS payload of an HTTP2-Settings header, or null if it is malformed.
+     */
+    static byte[] decodeSettings(final String value) {
+        try {
+            final byte[] payload = Base64.getUrlDecoder().decode(value.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (final IllegalArgumentException ex) {
+            return null;
+        }
+    }
+}
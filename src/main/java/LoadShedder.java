@@ -0,0 +1,161 @@
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rejects requests beyond the proxy's capacity with 503 and Retry-After straight away, instead of
+ * letting them queue up and slow down every request. Capacity is found by a
+ * {@link ConcurrencyLimiter} for the proxy as a whole and, optionally, one per route, so that a
+ * slow route cannot take all of it. Requests for priority paths, such as the load balancer's
+ * health check, are never rejected and are not counted.
+ *
+ * Latency is measured as the response time trackers measure it, from the receipt of the request
+ * head to the response head.
+ */
+@ThreadSafe
+class LoadShedder implements Tracker {
+    private final ConcurrencyLimiter global;
+    private final boolean perRoute;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final String retryAfter;
+    private final Set<String> priorityPaths;
+    // Keyed by route name, so that limits survive route reloads.
+    private final ConcurrentHashMap<String, ConcurrencyLimiter> routes = new ConcurrentHashMap<>();
+
+    /**
+     * @param perRoute       whether each route has a limit of its own as well
+     * @param retryAfterSecs sent in the Retry-After header of rejections
+     * @param priorityPaths  request paths that are never rejected
+     */
+    public LoadShedder(int initialLimit, int minLimit, int maxLimit, double tolerance, boolean perRoute,
+                       int retryAfterSecs, Set<String> priorityPaths) {
+        this.global = new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, tolerance);
+        this.perRoute = perRoute;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.retryAfter = Integer.toString(retryAfterSecs);
+        this.priorityPaths = priorityPaths;
+    }
+
+    /**
+     * Load shedder configured from system properties, or null when concurrency is not limited.
+     */
+    public static LoadShedder fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("proxy.limit.enabled", "true"))) {
+            return null;
+        }
+        return new LoadShedder(
+                Integer.getInteger("proxy.limit.initialLimit", 100),
+                Integer.getInteger("proxy.limit.minLimit", 10),
+                Integer.getInteger("proxy.limit.maxLimit", 1000),
+                Double.parseDouble(System.getProperty("proxy.limit.tolerance", "1.5")),
+                Boolean.parseBoolean(System.getProperty("proxy.limit.perRoute", "true")),
+                Integer.getInteger("proxy.limit.retryAfterSecs", 1),
+                ImmutableSet.copyOf(System.getProperty("proxy.limit.priorityPaths", "/healthcheck").split(",")));
+    }
+
+    /**
+     * Whether requests for the URI bypass the limits.
+     */
+    public boolean isPriority(String uri) {
+        final int query = uri.indexOf('?');
+        return priorityPaths.contains(query < 0 ? uri : uri.substring(0, query));
+    }
+
+    /**
+     * Admits a request to the route unless the proxy or the route is at its limit. An admitted
+     * request must be released.
+     */
+    public boolean tryAcquire(Route route) {
+        if (!global.tryAcquire()) {
+            return false;
+        }
+        if (perRoute && !limiter(route).tryAcquire()) {
+            global.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Only the proxy timing out on the upstream counts as a drop for the proxy as a whole. A route
+     * with no upstream in service, or upstreams answering 503 or 504 themselves, says nothing about
+     * the proxy's capacity and counts as a drop for the route only.
+     *
+     * @param startNanos       when the request head was received
+     * @param status           the response status
+     * @param upstreamAnswered whether the response came from an upstream rather than the proxy
+     */
+    public void release(Route route, long startNanos, int status, boolean upstreamAnswered) {
+        final long latency = System.nanoTime() - startNanos;
+        final boolean routeDropped = status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+        global.release(latency, routeDropped && !upstreamAnswered && status == HttpStatus.SC_GATEWAY_TIMEOUT);
+        if (perRoute) {
+            limiter(route).release(latency, routeDropped);
+        }
+    }
+
+    /**
+     * Answers a rejected request.
+     */
+    public void reject(HttpResponse response) {
+        SimpleReverseProxy.setErrorResponse(response, HttpStatus.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", retryAfter);
+    }
+
+    private ConcurrencyLimiter limiter(Route route) {
+        ConcurrencyLimiter limiter = routes.get(route.getName());
+        if (limiter == null) {
+            limiter = routes.computeIfAbsent(route.getName(),
+                    k -> new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, tolerance));
+        }
+        return limiter;
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping concurrency limit statistics...");
+        System.out.println("Global limit: " + global.getLimit() + " in flight: " + global.getInFlight() +
+                " rejected: " + global.getRejected());
+        for (Map.Entry<String, ConcurrencyLimiter> entry : routes.entrySet()) {
+            final ConcurrencyLimiter limiter = entry.getValue();
+            System.out.println("Route: " + entry.getKey() + " limit: " + limiter.getLimit() +
+                    " in flight: " + limiter.getInFlight() + " rejected: " + limiter.getRejected());
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_concurrency_limit", "gauge", "Requests the proxy admits at once.");
+        writer.sample("proxy_concurrency_limit", global.getLimit());
+        writer.family("proxy_concurrency_in_flight", "gauge", "Requests in flight, priority requests excluded.");
+        writer.sample("proxy_concurrency_in_flight", global.getInFlight());
+        writer.family("proxy_concurrency_rejected", "counter", "Requests rejected at the proxy's limit.");
+        writer.sample("proxy_concurrency_rejected_total", global.getRejected());
+        if (!perRoute) {
+            return;
+        }
+        writer.family("proxy_route_concurrency_limit", "gauge", "Requests a route admits at once.");
+        for (Map.Entry<String, ConcurrencyLimiter> entry : routes.entrySet()) {
+            writer.sample("proxy_route_concurrency_limit", "route", entry.getKey(), entry.getValue().getLimit());
+        }
+        writer.family("proxy_route_concurrency_in_flight", "gauge", "Requests in flight per route.");
+        for (Map.Entry<String, ConcurrencyLimiter> entry : routes.entrySet()) {
+            writer.sample("proxy_route_concurrency_in_flight", "route", entry.getKey(), entry.getValue().getInFlight());
+        }
+        writer.family("proxy_route_concurrency_rejected", "counter", "Requests rejected at a route's limit.");
+        for (Map.Entry<String, ConcurrencyLimiter> entry : routes.entrySet()) {
+            writer.sample("proxy_route_concurrency_rejected_total", "route", entry.getKey(),
+                    entry.getValue().getRejected());
+        }
+    }
+}
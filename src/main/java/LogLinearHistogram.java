@@ -0,0 +1,257 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of non-negative long values with log-linear buckets, in the manner of
+ * HdrHistogram. Values are grouped into power of two ranges, each split into the same number of
+ * linear sub-buckets, which keeps the relative error of any recorded value below
+ * 10^-significantDigits across the whole range. Recording is one atomic increment.
+ *
+ * Values above the highest trackable value are recorded as the highest trackable value.
+ */
+@ThreadSafe
+class LogLinearHistogram {
+    private final long highestTrackableValue;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+    private final AtomicLongArray counts;
+
+    public LogLinearHistogram(long highestTrackableValue, int significantDigits) {
+        if (significantDigits < 1 || significantDigits > 5) {
+            throw new IllegalArgumentException("significantDigits must be between 1 and 5");
+        }
+        if (highestTrackableValue < 2) {
+            throw new IllegalArgumentException("highestTrackableValue must be at least 2");
+        }
+        this.highestTrackableValue = highestTrackableValue;
+
+        // Enough linear sub-buckets to tell apart values that differ in the last significant digit.
+        final long largestSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+        final int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestSingleUnitResolution - 1);
+        this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+        this.subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+        final int subBucketCount = 1 << subBucketCountMagnitude;
+        this.subBucketMask = subBucketCount - 1;
+        this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+
+        int bucketCount = 1;
+        long smallestUntrackableValue = subBucketCount;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+                bucketCount++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        this.counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value < 0 ? 0 : Math.min(value, highestTrackableValue)));
+    }
+
+    int indexOf(long value) {
+        final int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        final int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    /**
+     * Largest value that is recorded at the given index.
+     */
+    long highestValueAt(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return (((long) subBucketIndex + 1) << bucketIndex) - 1;
+    }
+
+    public int length() {
+        return counts.length();
+    }
+
+    /**
+     * Moves the counts into a sparse snapshot and leaves this histogram empty. Values recorded
+     * concurrently end up either in the snapshot or in this histogram, never lost.
+     */
+    public Snapshot drain() {
+        int nonZero = 0;
+        final long[] drained = new long[counts.length()];
+        for (int i = 0; i < drained.length; i++) {
+            if (counts.get(i) != 0) {
+                drained[i] = counts.getAndSet(i, 0);
+                if (drained[i] != 0) {
+                    nonZero++;
+                }
+            }
+        }
+        final int[] indexes = new int[nonZero];
+        final long[] values = new long[nonZero];
+        int n = 0;
+        for (int i = 0; i < drained.length && n < nonZero; i++) {
+            if (drained[i] != 0) {
+                indexes[n] = i;
+                values[n++] = drained[i];
+            }
+        }
+        return new Snapshot(indexes, values);
+    }
+
+    /**
+     * Sparse copy of the current counts, which are left in place. Counts recorded concurrently may
+     * or may not be included.
+     */
+    public Snapshot snapshot() {
+        int nonZero = 0;
+        final long[] copied = new long[counts.length()];
+        for (int i = 0; i < copied.length; i++) {
+            copied[i] = counts.get(i);
+            if (copied[i] != 0) {
+                nonZero++;
+            }
+        }
+        final int[] indexes = new int[nonZero];
+        final long[] values = new long[nonZero];
+        int n = 0;
+        for (int i = 0; i < copied.length && n < nonZero; i++) {
+            if (copied[i] != 0) {
+                indexes[n] = i;
+                values[n++] = copied[i];
+            }
+        }
+        return new Snapshot(indexes, values);
+    }
+
+    /**
+     * Adds the current counts to {@code coarse[indexMap[i]]} and returns their total weighted by
+     * {@code weights[i]}. Counts recorded concurrently may or may not be included.
+     */
+    public double addTo(long[] coarse, int[] indexMap, double[] weights) {
+        double weighted = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = counts.get(i);
+            if (count != 0) {
+                coarse[indexMap[i]] += count;
+                weighted += count * weights[i];
+            }
+        }
+        return weighted;
+    }
+
+    /**
+     * Value at the given percentile of a dense array of counts, or 0 when it is empty.
+     */
+    public long valueAtPercentile(long[] merged, double percentile) {
+        long total = 0;
+        for (long count : merged) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long cumulative = 0;
+        for (int i = 0; i < merged.length; i++) {
+            cumulative += merged[i];
+            if (cumulative >= target) {
+                return Math.min(highestValueAt(i), highestTrackableValue);
+            }
+        }
+        return highestTrackableValue;
+    }
+
+    /**
+     * Immutable counts of the non-empty buckets of a histogram.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new int[0], new long[0]);
+
+        private final int[] indexes;
+        private final long[] counts;
+
+        /**
+         * @param indexes ascending indexes of the non-empty buckets
+         */
+        Snapshot(int[] indexes, long[] counts) {
+            this.indexes = indexes;
+            this.counts = counts;
+        }
+
+        public int size() {
+            return indexes.length;
+        }
+
+        public int indexAt(int i) {
+            return indexes[i];
+        }
+
+        public long countAt(int i) {
+            return counts[i];
+        }
+
+        /**
+         * Snapshot holding the counts of both.
+         */
+        public Snapshot merge(Snapshot other) {
+            if (other.indexes.length == 0) {
+                return this;
+            }
+            if (indexes.length == 0) {
+                return other;
+            }
+            final int[] mergedIndexes = new int[indexes.length + other.indexes.length];
+            final long[] mergedCounts = new long[mergedIndexes.length];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < indexes.length || j < other.indexes.length) {
+                if (j == other.indexes.length || (i < indexes.length && indexes[i] < other.indexes[j])) {
+                    mergedIndexes[n] = indexes[i];
+                    mergedCounts[n++] = counts[i++];
+                } else if (i == indexes.length || other.indexes[j] < indexes[i]) {
+                    mergedIndexes[n] = other.indexes[j];
+                    mergedCounts[n++] = other.counts[j++];
+                } else {
+                    mergedIndexes[n] = indexes[i];
+                    mergedCounts[n++] = counts[i++] + other.counts[j++];
+                }
+            }
+            return n == mergedIndexes.length ? new Snapshot(mergedIndexes, mergedCounts)
+                    : new Snapshot(Arrays.copyOf(mergedIndexes, n), Arrays.copyOf(mergedCounts, n));
+        }
+
+        public long getTotalCount() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        public void addTo(long[] merged) {
+            for (int i = 0; i < indexes.length; i++) {
+                merged[indexes[i]] += counts[i];
+            }
+        }
+
+        /**
+         * See {@link LogLinearHistogram#addTo(long[], int[], double[])}.
+         */
+        public double addTo(long[] coarse, int[] indexMap, double[] weights) {
+            double weighted = 0;
+            for (int i = 0; i < indexes.length; i++) {
+                coarse[indexMap[indexes[i]]] += counts[i];
+                weighted += counts[i] * weights[indexes[i]];
+            }
+            return weighted;
+        }
+    }
+}
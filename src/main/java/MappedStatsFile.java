@@ -0,0 +1,151 @@
+import org.apache.http.annotation.NotThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped file holding the latest {@link StatsSnapshot} of the proxy. A write is a copy into
+ * the mapping, which survives the process crashing as soon as it is made, and is forced to disk
+ * after. The file has two slots that are written in turn, each with a sequence number and a CRC of
+ * its content, so that a write cut short leaves the previous snapshot readable in the other slot.
+ *
+ * The file starts with the magic "RPSM", the format version and the capacity of a slot, as ints.
+ * Each slot has a long sequence number, an int length and an int CRC-32 before its content. A
+ * snapshot that outgrows the slots grows the file, and until it is written the file holds no
+ * snapshot.
+ */
+@NotThreadSafe
+class MappedStatsFile implements Closeable {
+    private static final int MAGIC = 0x5250534D;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_HEADER_BYTES = 16;
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private long sequence;
+    private final ByteBuffer latest;
+
+    public MappedStatsFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final long size = channel.size();
+        ByteBuffer found = null;
+        if (size >= HEADER_BYTES && size <= Integer.MAX_VALUE) {
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            final int slot = latestSlot(map);
+            if (slot >= 0) {
+                this.capacity = map.getInt(8);
+                // The next write goes to the other slot, whatever it holds.
+                this.sequence = map.getLong(slotOffset(capacity, slot));
+                found = content(map, slot);
+            }
+        }
+        if (found == null) {
+            resize(MIN_CAPACITY);
+        }
+        this.latest = found;
+    }
+
+    /**
+     * Content of the slot with the highest sequence number and a valid CRC, or null if there is none.
+     */
+    static ByteBuffer latest(ByteBuffer file) {
+        final int slot = latestSlot(file);
+        return slot >= 0 ? content(file, slot) : null;
+    }
+
+    // Index of the latest valid slot, or -1.
+    private static int latestSlot(ByteBuffer in) {
+        if (in.limit() < HEADER_BYTES || in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+            return -1;
+        }
+        final int capacity = in.getInt(8);
+        if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_BYTES) / 2 - SLOT_HEADER_BYTES
+                || slotOffset(capacity, 2) > in.limit()) {
+            return -1;
+        }
+        int best = -1;
+        long bestSequence = 0;
+        for (int slot = 0; slot < 2; slot++) {
+            final int offset = slotOffset(capacity, slot);
+            final long sequence = in.getLong(offset);
+            final int length = in.getInt(offset + 8);
+            if (sequence <= bestSequence || length < 0 || length > capacity) {
+                continue;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(content(in, slot));
+            if ((int) crc.getValue() == in.getInt(offset + 12)) {
+                best = slot;
+                bestSequence = sequence;
+            }
+        }
+        return best;
+    }
+
+    private static ByteBuffer content(ByteBuffer file, int slot) {
+        final int offset = slotOffset(file.getInt(8), slot);
+        final ByteBuffer content = file.duplicate();
+        content.limit(offset + SLOT_HEADER_BYTES + file.getInt(offset + 8)).position(offset + SLOT_HEADER_BYTES);
+        return content.slice();
+    }
+
+    private static int slotOffset(int capacity, int slot) {
+        return HEADER_BYTES + slot * (SLOT_HEADER_BYTES + capacity);
+    }
+
+    /**
+     * Content of the latest snapshot found when the file was opened, or null. Valid until the file
+     * is written.
+     */
+    public ByteBuffer getLatest() {
+        return latest;
+    }
+
+    /**
+     * Writes the snapshot over the older of the two slots.
+     */
+    public void write(byte[] content) throws IOException {
+        if (content.length > capacity) {
+            resize(Math.max(capacity * 2, Integer.highestOneBit(content.length) * 2));
+        }
+        sequence++;
+        final int offset = slotOffset(capacity, (int) (sequence & 1));
+        // Invalidate the slot first, so that it is never taken for complete while the content is written.
+        map.putLong(offset, 0L);
+        final ByteBuffer slot = map.duplicate();
+        slot.position(offset + SLOT_HEADER_BYTES);
+        slot.put(content);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        map.putInt(offset + 8, content.length);
+        map.putInt(offset + 12, (int) crc.getValue());
+        map.putLong(offset, sequence);
+        map.force();
+    }
+
+    private void resize(int newCapacity) throws IOException {
+        capacity = newCapacity;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, slotOffset(capacity, 2));
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, capacity);
+        map.putInt(12, 0);
+        map.putLong(slotOffset(capacity, 0), 0L);
+        map.putLong(slotOffset(capacity, 1), 0L);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,96 @@
+import org.apache.http.annotation.NotThreadSafe;
+
+/**
+ * Renders metrics in the OpenMetrics text format into a buffer that is reused from one scrape to
+ * the next. Values are appended as primitives, so rendering boxes nothing. Samples of a family
+ * must follow its {@link #family} line.
+ */
+@NotThreadSafe
+class MetricsWriter {
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final StringBuilder text = new StringBuilder(64 * 1024);
+    private byte[] bytes = new byte[64 * 1024];
+    private int length;
+
+    public void reset() {
+        text.setLength(0);
+        length = 0;
+    }
+
+    /**
+     * @param type counter, gauge, histogram or summary. Counter samples are named with a _total suffix.
+     */
+    public void family(String name, String type, String help) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    public void sample(String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    public void sample(String name, double value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    public void sample(String name, String label, String labelValue, long value) {
+        labels(name, label, labelValue).append("} ").append(value).append('\n');
+    }
+
+    public void sample(String name, String label, String labelValue, double value) {
+        labels(name, label, labelValue).append("} ").append(value).append('\n');
+    }
+
+    public void sample(String name, String label1, String value1, String label2, String value2, long value) {
+        label(labels(name, label1, value1).append(','), label2, value2).append("} ").append(value).append('\n');
+    }
+
+    public void sample(String name, String label1, String value1, String label2, String value2, double value) {
+        label(labels(name, label1, value1).append(','), label2, value2).append("} ").append(value).append('\n');
+    }
+
+    private StringBuilder labels(String name, String label, String labelValue) {
+        return label(text.append(name).append('{'), label, labelValue);
+    }
+
+    private static StringBuilder label(StringBuilder text, String label, String value) {
+        text.append(label).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+        return text.append('"');
+    }
+
+    /**
+     * Terminates the exposition and encodes it into the byte buffer, valid until the next reset.
+     */
+    public void finish() {
+        text.append("# EOF\n");
+        if (bytes.length < text.length()) {
+            bytes = new byte[Math.max(text.length(), bytes.length * 2)];
+        }
+        // Metric names and help are ASCII, and so are URIs and host names as sent on the wire.
+        // Anything else is replaced rather than encoded.
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            bytes[i] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        length = text.length();
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
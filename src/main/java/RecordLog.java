@@ -0,0 +1,309 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size rotated log file written without the request threads ever waiting on it. Request threads
+ * store fixed size binary records in a ring buffer, with names as numbers standing for them, and a
+ * single writer thread formats the records in batches and writes them through a
+ * {@link FileChannel}. When the ring is full, records are dropped and counted rather than holding
+ * up requests. Subclasses lay out the records and format them into lines.
+ *
+ * When the file would grow over its maximum size it is renamed to {@code file.1}, older files
+ * move up a number, and the oldest beyond the number kept is deleted.
+ */
+@ThreadSafe
+abstract class RecordLog {
+    private static final Logger LOG = Logger.getLogger(RecordLog.class.getName());
+
+    // Names are numbered from 1, 0 stands for none and for names beyond the table.
+    static final int MAX_NAMES = 0xFFFF;
+    static final byte[] NONE = {'-'};
+    // Longest name written, longer ones are cut short.
+    static final int MAX_NAME_BYTES = 1024;
+    private static final DateTimeFormatter SECONDS =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private final String description;
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long flushIntervalNanos;
+    private final int maxLineBytes;
+
+    private final int recordLongs;
+    private final int mask;
+    protected final long[] records;
+    // Sequence number + 1 of the record in each slot once it has been written.
+    private final AtomicLongArray published;
+    // Next sequence number to claim.
+    private final AtomicLong tail = new AtomicLong();
+    // Next sequence number the writer reads, slots before it may be reused.
+    private volatile long head;
+
+    private final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+    // Encoded names by number, replaced by a larger copy under the lock of nameIds as names are added.
+    private volatile byte[][] names = {NONE};
+
+    protected final LongAdder written = new LongAdder();
+    protected final LongAdder dropped = new LongAdder();
+    protected final LongAdder rotations = new LongAdder();
+
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    // Owned by the writer thread.
+    protected final ByteBuffer buffer;
+    private FileChannel channel;
+    private long fileBytes;
+    private long bufferedSecond = -1;
+    private byte[] bufferedSecondText;
+
+    /**
+     * @param description         what the file holds, for messages and the writer thread's name
+     * @param recordLongs         longs per record
+     * @param maxLineBytes        longest line a record is formatted into
+     * @param bufferRecords       records the ring holds, rounded up to a power of two
+     * @param bufferBytes         formatted bytes collected before they are written to the file
+     * @param maxFileBytes        size at which the file is rotated
+     * @param maxFiles            rotated files kept besides the current one
+     * @param flushIntervalMillis how long the writer sleeps when it finds no records
+     */
+    protected RecordLog(String description, Path file, int recordLongs, int maxLineBytes, int bufferRecords,
+                        int bufferBytes, long maxFileBytes, int maxFiles, long flushIntervalMillis)
+            throws IOException {
+        this.description = description;
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.flushIntervalNanos = flushIntervalMillis * 1000000L;
+        this.maxLineBytes = maxLineBytes;
+        this.recordLongs = recordLongs;
+        final int capacity = Integer.highestOneBit(Math.max(bufferRecords - 1, 1)) << 1;
+        this.mask = capacity - 1;
+        this.records = new long[capacity * recordLongs];
+        this.published = new AtomicLongArray(capacity);
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufferBytes, maxLineBytes));
+        this.channel = open();
+
+        // Records are only published once the subclass has been constructed and logs them.
+        this.writerThread = new Thread(this::writeLoop, description.replace(' ', '-') + "-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Claims the next record, or returns -1 and counts it as dropped if the writer has fallen a
+     * full ring behind. The record's longs start at {@link #base(long)} and it is handed to the
+     * writer by {@link #publish(long)}.
+     */
+    protected final long claim() {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head > mask) {
+                dropped.increment();
+                return -1;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        return seq;
+    }
+
+    protected final int base(long seq) {
+        return ((int) seq & mask) * recordLongs;
+    }
+
+    protected final void publish(long seq) {
+        // Publishes the fields stored since the claim to the writer.
+        published.lazySet((int) seq & mask, seq + 1);
+    }
+
+    /**
+     * Number standing for the name in records, 0 for null.
+     */
+    int id(String name) {
+        if (name == null) {
+            return 0;
+        }
+        final Integer id = nameIds.get(name);
+        return id != null ? id : addName(name);
+    }
+
+    private int addName(String name) {
+        synchronized (nameIds) {
+            final Integer id = nameIds.get(name);
+            if (id != null) {
+                return id;
+            }
+            final byte[][] current = names;
+            if (current.length > MAX_NAMES) {
+                return 0;
+            }
+            final byte[][] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = encode(name);
+            // Published before the number can be found, so any record with the number finds the name.
+            names = next;
+            nameIds.put(name, current.length);
+            return current.length;
+        }
+    }
+
+    /**
+     * The bytes a name is written as.
+     */
+    protected abstract byte[] encode(String name);
+
+    /**
+     * Formats the record at {@code base} into {@link #buffer}, in at most the longest line.
+     *
+     * @param names encoded names by number
+     */
+    protected abstract void format(int base, byte[][] names);
+
+    private void writeLoop() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+        drain();
+        try {
+            channel.close();
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to close " + description + " " + file, ex);
+        }
+    }
+
+    /**
+     * Formats and writes the records published so far, returns how many.
+     */
+    private int drain() {
+        final byte[][] names = this.names;
+        long seq = head;
+        int count = 0;
+        while (true) {
+            final int slot = (int) seq & mask;
+            if (published.get(slot) != seq + 1) {
+                break;
+            }
+            if (buffer.remaining() < maxLineBytes) {
+                flush();
+            }
+            format(slot * recordLongs, names);
+            seq++;
+            count++;
+            // Lets request threads reuse the slot.
+            head = seq;
+        }
+        if (count > 0) {
+            flush();
+            written.add(count);
+        }
+        return count;
+    }
+
+    protected final void writeTime(long timeMillis) {
+        final long second = Math.floorDiv(timeMillis, 1000L);
+        if (second != bufferedSecond) {
+            bufferedSecond = second;
+            bufferedSecondText = SECONDS.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.US_ASCII);
+        }
+        buffer.put(bufferedSecondText);
+        final int millis = (int) Math.floorMod(timeMillis, 1000L);
+        buffer.put((byte) '.');
+        buffer.put((byte) ('0' + millis / 100));
+        buffer.put((byte) ('0' + millis / 10 % 10));
+        buffer.put((byte) ('0' + millis % 10));
+        buffer.put((byte) 'Z');
+    }
+
+    protected final void writeName(byte[][] names, int id) {
+        final byte[] name = id < names.length ? names[id] : NONE;
+        buffer.put(name, 0, Math.min(name.length, MAX_NAME_BYTES));
+    }
+
+    protected final void writeNumber(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            if (fileBytes + buffer.remaining() > maxFileBytes && fileBytes > 0) {
+                rotate();
+            }
+            while (buffer.hasRemaining()) {
+                fileBytes += channel.write(buffer);
+            }
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write " + description + " " + file, ex);
+        }
+        buffer.clear();
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final Path from = rotated(i);
+            if (Files.exists(from)) {
+                Files.move(from, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        channel = open();
+        rotations.increment();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private FileChannel open() throws IOException {
+        final FileChannel opened = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = opened.size();
+        return opened;
+    }
+
+    /**
+     * Writes out the records logged so far and closes the file.
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(writerThread);
+        writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+}
@@ -0,0 +1,46 @@
+import org.apache.http.impl.DefaultBHttpClientConnection;
+import org.apache.http.io.BufferInfo;
+import org.apache.http.io.SessionInputBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+
+/**
+ * Upstream connection that lets {@link BodyRelay} read response bodies straight from the socket.
+ */
+class RelayClientConnection extends DefaultBHttpClientConnection {
+    // Framing of the last response body, a length or one of the ContentLengthStrategy constants.
+    private long incomingLength;
+
+    public RelayClientConnection(int buffersize) {
+        super(buffersize);
+    }
+
+    @Override
+    protected InputStream createInputStream(long len, SessionInputBuffer inbuffer) {
+        this.incomingLength = len;
+        return super.createInputStream(len, inbuffer);
+    }
+
+    long getIncomingLength() {
+        return incomingLength;
+    }
+
+    SessionInputBuffer getInputBuffer() {
+        return getSessionInputBuffer();
+    }
+
+    // Bytes already read from the socket but not yet consumed.
+    int getBufferedLength() {
+        return ((BufferInfo) getSessionInputBuffer()).length();
+    }
+
+    InputStream getRawInputStream() throws IOException {
+        final Socket socket = getSocket();
+        if (socket == null) {
+            throw new IOException("Connection is not bound");
+        }
+        return socket.getInputStream();
+    }
+}
@@ -0,0 +1,56 @@
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.io.SessionOutputBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Client connection that lets {@link BodyRelay} write response bodies straight to the socket.
+ */
+class RelayServerConnection extends DefaultBHttpServerConnection {
+    // Framing of the response body being sent, a length or one of the ContentLengthStrategy constants.
+    private long outgoingLength;
+    // Stream the connection reads from instead of the socket's, if set when bound.
+    private InputStream socketInputStream;
+
+    public RelayServerConnection(int buffersize) {
+        super(buffersize);
+    }
+
+    /**
+     * Binds to a socket whose first octets have already been read, and pushed back into {@code in}.
+     */
+    void bind(Socket socket, InputStream in) throws IOException {
+        this.socketInputStream = in;
+        bind(socket);
+    }
+
+    @Override
+    protected InputStream getSocketInputStream(Socket socket) throws IOException {
+        return socketInputStream != null ? socketInputStream : super.getSocketInputStream(socket);
+    }
+
+    @Override
+    protected OutputStream createOutputStream(long len, SessionOutputBuffer outbuffer) {
+        this.outgoingLength = len;
+        return super.createOutputStream(len, outbuffer);
+    }
+
+    long getOutgoingLength() {
+        return outgoingLength;
+    }
+
+    SessionOutputBuffer getOutputBuffer() {
+        return getSessionOutputBuffer();
+    }
+
+    OutputStream getRawOutputStream() throws IOException {
+        final Socket socket = getSocket();
+        if (socket == null) {
+            throw new IOException("Connection is not bound");
+        }
+        return socket.getOutputStream();
+    }
+}
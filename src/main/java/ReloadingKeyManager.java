@@ -0,0 +1,195 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Key manager backed by a keystore file that is polled for changes, like the route file. A new
+ * keystore is swapped in atomically and serves the handshakes that start after it, without
+ * restarting the listener or clearing its session cache. A keystore that fails to load leaves the
+ * current keys in place.
+ *
+ * Aliases are handed out prefixed with the generation of the keystore they were chosen from, so
+ * that a handshake that chose its alias just before a reload still finds its certificate and key.
+ */
+@ThreadSafe
+class ReloadingKeyManager extends X509ExtendedKeyManager {
+    private static final Logger LOG = Logger.getLogger(ReloadingKeyManager.class.getName());
+
+    private final Path keystoreFile;
+    private final String type;
+    private final char[] password;
+    private volatile Keys current;
+    // The keys replaced by the last reload, for handshakes that were under way.
+    private volatile Keys previous;
+    private FileTime loadedModified;
+    private ScheduledExecutorService reloader;
+
+    /**
+     * @param reloadIntervalMillis how often the keystore is checked for changes, 0 disables reloading
+     */
+    public ReloadingKeyManager(Path keystoreFile, String type, char[] password, long reloadIntervalMillis)
+            throws IOException, GeneralSecurityException {
+        this.keystoreFile = keystoreFile;
+        this.type = type;
+        this.password = password;
+        this.loadedModified = Files.getLastModifiedTime(keystoreFile);
+        this.current = load(0);
+        LOG.info("Loaded keystore " + keystoreFile);
+
+        if (reloadIntervalMillis > 0) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "keystore-reloader");
+                t.setDaemon(true);
+                return t;
+            });
+            this.reloader.scheduleWithFixedDelay(this::reloadIfModified,
+                    reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Keys load(int generation) throws IOException, GeneralSecurityException {
+        final KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(keystoreFile)) {
+            keyStore.load(in, password);
+        }
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, password);
+        for (final KeyManager manager : factory.getKeyManagers()) {
+            if (manager instanceof X509ExtendedKeyManager) {
+                return new Keys(generation, (X509ExtendedKeyManager) manager);
+            }
+        }
+        throw new GeneralSecurityException("No X.509 key manager for " + keystoreFile);
+    }
+
+    void reloadIfModified() {
+        try {
+            final FileTime modified = Files.getLastModifiedTime(keystoreFile);
+            if (modified.equals(loadedModified)) {
+                return;
+            }
+            loadedModified = modified;
+            final Keys keys = load(current.generation + 1);
+            previous = current;
+            current = keys;
+            LOG.info("Reloaded keystore " + keystoreFile);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOG.log(Level.SEVERE, "Failed to reload keystore " + keystoreFile + ", keeping current keys", e);
+        }
+    }
+
+    public void shutdown() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    private static String[] aliases(Keys keys, String[] aliases) {
+        if (aliases == null) {
+            return null;
+        }
+        final String[] prefixed = new String[aliases.length];
+        for (int i = 0; i < aliases.length; i++) {
+            prefixed[i] = keys.prefix(aliases[i]);
+        }
+        return prefixed;
+    }
+
+    // The keys an alias was chosen from, or null if they are gone.
+    private Keys keys(String alias) {
+        if (alias == null) {
+            return null;
+        }
+        final Keys keys = current;
+        if (keys.owns(alias)) {
+            return keys;
+        }
+        final Keys replaced = previous;
+        return replaced != null && replaced.owns(alias) ? replaced : null;
+    }
+
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        final Keys keys = current;
+        return aliases(keys, keys.manager.getClientAliases(keyType, issuers));
+    }
+
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        final Keys keys = current;
+        return keys.prefix(keys.manager.chooseClientAlias(keyTypes, issuers, socket));
+    }
+
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        final Keys keys = current;
+        return aliases(keys, keys.manager.getServerAliases(keyType, issuers));
+    }
+
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        final Keys keys = current;
+        return keys.prefix(keys.manager.chooseServerAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+        final Keys keys = current;
+        return keys.prefix(keys.manager.chooseEngineClientAlias(keyTypes, issuers, engine));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        final Keys keys = current;
+        return keys.prefix(keys.manager.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    public X509Certificate[] getCertificateChain(String alias) {
+        final Keys keys = keys(alias);
+        return keys != null ? keys.manager.getCertificateChain(keys.strip(alias)) : null;
+    }
+
+    public PrivateKey getPrivateKey(String alias) {
+        final Keys keys = keys(alias);
+        return keys != null ? keys.manager.getPrivateKey(keys.strip(alias)) : null;
+    }
+
+    private static final class Keys {
+        final int generation;
+        final X509ExtendedKeyManager manager;
+        final String prefix;
+
+        Keys(int generation, X509ExtendedKeyManager manager) {
+            this.generation = generation;
+            this.manager = manager;
+            this.prefix = generation + ":";
+        }
+
+        String prefix(String alias) {
+            return alias != null ? prefix + alias : null;
+        }
+
+        boolean owns(String alias) {
+            return alias.startsWith(prefix);
+        }
+
+        String strip(String alias) {
+            return alias.substring(prefix.length());
+        }
+    }
+}
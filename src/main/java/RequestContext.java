@@ -0,0 +1,241 @@
+import org.apache.http.annotation.NotThreadSafe;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * State of the request in progress on a client connection, shared by the proxy handler and the
+ * tracker interceptors. One instance lives in the context of each connection and is reused for
+ * every request it carries, so that per request state costs no boxed context attributes.
+ */
+@NotThreadSafe
+final class RequestContext {
+    private String uri;
+    private String route;
+    private String upstream;
+    private long startNanos;
+    // When the connection was accepted, until the first request on it is done with.
+    private long acceptedNanos;
+    // Phase timestamps, 0 until the phase is reached.
+    private long forwardNanos;
+    private long connectNanos;
+    private long connectedNanos;
+    private long headNanos;
+    private long respondedNanos;
+    private long relayedNanos;
+    private int status;
+    private boolean relaying;
+    private boolean done;
+    // Trace Context of the request, ids are 0 until the request has been traced.
+    private long traceIdHigh;
+    private long traceIdLow;
+    private long parentSpanId;
+    private long spanId;
+    private boolean sampled;
+
+    /**
+     * The connection's request context, created on its first request.
+     */
+    static RequestContext get(HttpContext context) {
+        RequestContext requestContext = (RequestContext) context.getAttribute(Constants.HTTP_REQUEST_CONTEXT);
+        if (requestContext == null) {
+            requestContext = new RequestContext();
+            context.setAttribute(Constants.HTTP_REQUEST_CONTEXT, requestContext);
+        }
+        return requestContext;
+    }
+
+    /**
+     * Starts a request once its head has been received.
+     */
+    void begin(long startNanos) {
+        this.uri = null;
+        this.route = null;
+        this.upstream = null;
+        this.startNanos = startNanos;
+        this.forwardNanos = 0;
+        this.connectNanos = 0;
+        this.connectedNanos = 0;
+        this.headNanos = 0;
+        this.respondedNanos = 0;
+        this.relayedNanos = 0;
+        this.status = 0;
+        this.relaying = false;
+        this.done = false;
+        this.traceIdHigh = 0;
+        this.traceIdLow = 0;
+        this.parentSpanId = 0;
+        this.spanId = 0;
+        this.sampled = false;
+    }
+
+    /**
+     * Marks when the connection was accepted, before its first request.
+     */
+    void accepted(long acceptedNanos) {
+        this.acceptedNanos = acceptedNanos;
+    }
+
+    /**
+     * When the connection was accepted if this is its first request, otherwise 0. Only returned
+     * once, the connection's next requests did not wait for it.
+     */
+    long takeAcceptedNanos() {
+        final long accepted = this.acceptedNanos;
+        this.acceptedNanos = 0;
+        return accepted;
+    }
+
+    /**
+     * Marks when the handler started forwarding the request.
+     */
+    void forwarding(long forwardNanos) {
+        this.forwardNanos = forwardNanos;
+    }
+
+    /**
+     * Records the phases of the upstream attempt that answered the request.
+     *
+     * @param connectNanos   when the attempt asked for a connection
+     * @param connectedNanos when it got one
+     * @param headNanos      when the response head was received
+     */
+    void attempted(long connectNanos, long connectedNanos, long headNanos) {
+        this.connectNanos = connectNanos;
+        this.connectedNanos = connectedNanos;
+        this.headNanos = headNanos;
+    }
+
+    /**
+     * Marks that the upstream response body is being relayed, so that the request is only done with
+     * once it has been, see {@link #relayed(long)}.
+     */
+    void relaying() {
+        this.relaying = true;
+    }
+
+    /**
+     * Marks the final response head as sent.
+     *
+     * @return whether the request is now done with, which is only returned once
+     */
+    boolean responded(long respondedNanos, int status) {
+        if (done) {
+            return false;
+        }
+        this.respondedNanos = respondedNanos;
+        this.status = status;
+        return done = !relaying || relayedNanos != 0;
+    }
+
+    /**
+     * Marks the upstream response body as relayed, or given up.
+     *
+     * @return whether the request is now done with, which is only returned once
+     */
+    boolean relayed(long relayedNanos) {
+        if (done || !relaying) {
+            return false;
+        }
+        this.relayedNanos = relayedNanos;
+        return done = respondedNanos != 0;
+    }
+
+    /**
+     * Key that trackers count the request under, {@link TrackedUris#OVERFLOW_KEY} if the request
+     * failed before it was set.
+     */
+    String getUri() {
+        return uri != null ? uri : TrackedUris.OVERFLOW_KEY;
+    }
+
+    void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * Name of the route the request took, null if it was not routed.
+     */
+    String getRoute() {
+        return route;
+    }
+
+    void setRoute(String route) {
+        this.route = route;
+    }
+
+    /**
+     * Upstream that answered the request, null if none did.
+     */
+    String getUpstream() {
+        return upstream;
+    }
+
+    void setUpstream(String upstream) {
+        this.upstream = upstream;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    long getForwardNanos() {
+        return forwardNanos;
+    }
+
+    long getConnectNanos() {
+        return connectNanos;
+    }
+
+    long getConnectedNanos() {
+        return connectedNanos;
+    }
+
+    long getHeadNanos() {
+        return headNanos;
+    }
+
+    long getRelayedNanos() {
+        return relayedNanos;
+    }
+
+    /**
+     * When the request was done with: its response head was sent and its body relayed.
+     */
+    long getEndNanos() {
+        return Math.max(respondedNanos, relayedNanos);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    void trace(long traceIdHigh, long traceIdLow, long parentSpanId, long spanId, boolean sampled) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.parentSpanId = parentSpanId;
+        this.spanId = spanId;
+        this.sampled = sampled;
+    }
+
+    long getTraceIdHigh() {
+        return traceIdHigh;
+    }
+
+    long getTraceIdLow() {
+        return traceIdLow;
+    }
+
+    /**
+     * Span id of the caller, 0 if the request started the trace.
+     */
+    long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    long getSpanId() {
+        return spanId;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+}
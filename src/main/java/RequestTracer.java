@@ -0,0 +1,281 @@
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Breaks the time spent on each request down into phases, and traces requests across services
+ * with W3C Trace Context. The phases, each with its own histogram:
+ *
+ * accept: from the connection being accepted to the head of its first request, TLS handshake
+ * included, on the blocking and virtual listeners.
+ * queue: from the request head to the handler starting to forward it, which on the NIO listener
+ * includes waiting for a worker.
+ * connect: getting a connection to the upstream that answered, connecting if the pool had none.
+ * upstream: from then to the upstream's response head, sending the request and the upstream's
+ * time to first byte.
+ * transfer: from the upstream's response head to its body having been relayed, or read on the NIO
+ * listener, which writes it from memory.
+ * total: from the request head until it is done with.
+ *
+ * A request with a valid traceparent header continues the caller's trace, others start a new one,
+ * and the request goes upstream with a traceparent naming the proxy's span as the parent. Whether a
+ * request is sampled is decided once, from its head: it is if the caller sampled it, or if the
+ * random part of its trace id falls within the sample rate, so that proxies sampling at the same
+ * rate agree on a trace. Only the spans of sampled requests are written, to the {@link SpanLog},
+ * an unsampled request costs its histograms and the traceparent header it is sent with.
+ */
+@ThreadSafe
+class RequestTracer implements HttpRequestInterceptor, HttpResponseInterceptor, Tracker {
+    static final String TRACEPARENT = "traceparent";
+    static final String TRACESTATE = "tracestate";
+
+    static final String[] PHASES = {"accept", "queue", "connect", "upstream", "transfer", "total"};
+    static final int ACCEPT = 0;
+    static final int QUEUE = 1;
+    static final int CONNECT = 2;
+    static final int UPSTREAM = 3;
+    static final int TRANSFER = 4;
+    static final int TOTAL = 5;
+
+    private static final int VERSIONED_LENGTH = 55;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Trace ids are random in their last 7 bytes, which sampling compares against the rate.
+    private static final long RANDOM_MASK = 0x00FFFFFFFFFFFFFFL;
+
+    private final HistogramResponseTimeTracker phases;
+    private final boolean propagate;
+    private final double sampleRate;
+    private final long sampleThreshold;
+    // Null if spans are not written.
+    private final SpanLog spans;
+    private final LongAdder continued = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder sampled = new LongAdder();
+
+    /**
+     * @param propagate  whether requests go upstream with a traceparent header
+     * @param sampleRate fraction of the traces started or continued unsampled that are sampled
+     * @param spans      log the spans of sampled requests are written to, or null
+     */
+    public RequestTracer(long highestTrackableMicros, int significantDigits, boolean propagate, double sampleRate,
+                         SpanLog spans) {
+        this.phases = new HistogramResponseTimeTracker(highestTrackableMicros, significantDigits, "request phase",
+                "proxy_request_phase_seconds", "Time requests spend in each phase.", "phase");
+        this.propagate = propagate;
+        this.sampleRate = sampleRate;
+        this.sampleThreshold = sampleRate >= 1.0
+                ? RANDOM_MASK + 1 : (long) (Math.max(sampleRate, 0.0) * (RANDOM_MASK + 1));
+        this.spans = spans;
+    }
+
+    /**
+     * Tracer configured from system properties, see README for the property names.
+     */
+    public static RequestTracer fromSystemProperties() throws IOException {
+        return new RequestTracer(
+                Long.getLong("proxy.stats.maxTrackableMillis", 60000L) * 1000L,
+                Integer.getInteger("proxy.stats.significantDigits", 2),
+                Boolean.parseBoolean(System.getProperty("proxy.trace.propagate", "true")),
+                Double.parseDouble(System.getProperty("proxy.trace.sampleRate", "0.01")),
+                SpanLog.fromSystemProperties());
+    }
+
+    /**
+     * Continues or starts the request's trace, and decides whether it is sampled.
+     */
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        final RequestContext requestContext = RequestContext.get(context);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        long spanId;
+        do {
+            spanId = random.nextLong();
+        } while (spanId == 0);
+
+        final Header header = request.getFirstHeader(TRACEPARENT);
+        final String parent = header != null ? header.getValue() : null;
+        final boolean sampledNow;
+        if (parent != null && isValid(parent)) {
+            final long traceIdLow = parseHex(parent, 19);
+            sampledNow = (parseHex(parent, 53) & 1) != 0 || (traceIdLow & RANDOM_MASK) < sampleThreshold;
+            requestContext.trace(parseHex(parent, 3), traceIdLow, parseHex(parent, 36), spanId, sampledNow);
+            continued.increment();
+        } else {
+            long traceIdLow;
+            do {
+                traceIdLow = random.nextLong();
+            } while (traceIdLow == 0);
+            sampledNow = (traceIdLow & RANDOM_MASK) < sampleThreshold;
+            requestContext.trace(random.nextLong(), traceIdLow, 0, spanId, sampledNow);
+            started.increment();
+            if (propagate) {
+                // Vendor state belongs to the trace that was dropped.
+                request.removeHeaders(TRACESTATE);
+            }
+        }
+        if (sampledNow) {
+            sampled.increment();
+        }
+        if (propagate) {
+            request.setHeader(TRACEPARENT, traceparent(requestContext));
+        }
+    }
+
+    /**
+     * Whether the value is a traceparent this proxy understands: version 00, or a later version
+     * read as far as the fields of version 00 go, with non-zero ids.
+     */
+    static boolean isValid(String value) {
+        if (value.length() < VERSIONED_LENGTH || !isHex(value, 0, 2) || value.startsWith("ff")
+                || value.charAt(2) != '-' || value.charAt(35) != '-' || value.charAt(52) != '-'
+                || !isHex(value, 3, 32) || !isHex(value, 36, 16) || !isHex(value, 53, 2)) {
+            return false;
+        }
+        if (value.startsWith("00") ? value.length() != VERSIONED_LENGTH
+                : value.length() > VERSIONED_LENGTH && value.charAt(VERSIONED_LENGTH) != '-') {
+            return false;
+        }
+        return (parseHex(value, 3) | parseHex(value, 19)) != 0 && parseHex(value, 36) != 0;
+    }
+
+    private static boolean isHex(String value, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            final char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Up to 16 hex digits from {@code from} up to the next dash or the end.
+     */
+    private static long parseHex(String value, int from) {
+        long result = 0;
+        for (int i = from; i < Math.min(from + 16, value.length()) && value.charAt(i) != '-'; i++) {
+            final char c = value.charAt(i);
+            result = result << 4 | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return result;
+    }
+
+    /**
+     * The traceparent header the request goes upstream with, naming the proxy's span as the parent.
+     */
+    static String traceparent(RequestContext requestContext) {
+        final char[] value = new char[VERSIONED_LENGTH];
+        value[0] = '0';
+        value[1] = '0';
+        value[2] = '-';
+        writeHex(value, 3, requestContext.getTraceIdHigh());
+        writeHex(value, 19, requestContext.getTraceIdLow());
+        value[35] = '-';
+        writeHex(value, 36, requestContext.getSpanId());
+        value[52] = '-';
+        value[53] = '0';
+        value[54] = requestContext.isSampled() ? '1' : '0';
+        return new String(value);
+    }
+
+    private static void writeHex(char[] value, int from, long id) {
+        for (int i = 0; i < 16; i++) {
+            value[from + i] = HEX[(int) (id >>> (60 - 4 * i)) & 0xF];
+        }
+    }
+
+    /**
+     * Finishes the request once the final response head has been sent, unless its body is still
+     * being relayed.
+     */
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        final int status = response.getStatusLine().getStatusCode();
+        // An informational response is followed by the final one.
+        if (status < HttpStatus.SC_OK) {
+            return;
+        }
+        final RequestContext requestContext = RequestContext.get(context);
+        if (requestContext.responded(System.nanoTime(), status)) {
+            finish(requestContext);
+        }
+    }
+
+    /**
+     * Called once the upstream body of the request has been relayed, or given up.
+     */
+    public void relayed(RequestContext requestContext) {
+        if (requestContext.relayed(System.nanoTime())) {
+            finish(requestContext);
+        }
+    }
+
+    private void finish(RequestContext requestContext) {
+        final long start = requestContext.getStartNanos();
+        final long end = requestContext.getEndNanos();
+        final long[] micros = requestContext.isSampled() && spans != null ? new long[PHASES.length] : null;
+        if (micros != null) {
+            Arrays.fill(micros, -1L);
+        }
+        record(ACCEPT, requestContext.takeAcceptedNanos(), start, micros);
+        record(QUEUE, start, requestContext.getForwardNanos(), micros);
+        record(CONNECT, requestContext.getConnectNanos(), requestContext.getConnectedNanos(), micros);
+        record(UPSTREAM, requestContext.getConnectedNanos(), requestContext.getHeadNanos(), micros);
+        record(TRANSFER, requestContext.getHeadNanos(), requestContext.getRelayedNanos(), micros);
+        record(TOTAL, start, end, micros);
+        if (micros != null) {
+            spans.log(requestContext, System.currentTimeMillis() * 1000L - (System.nanoTime() - start) / 1000L,
+                    micros);
+        }
+    }
+
+    /**
+     * Records a phase the request went through, one whose start or end is 0 it did not.
+     */
+    private void record(int phase, long startNanos, long endNanos, long[] micros) {
+        if (startNanos == 0 || endNanos == 0 || endNanos < startNanos) {
+            return;
+        }
+        phases.add(PHASES[phase], startNanos, endNanos);
+        if (micros != null) {
+            micros[phase] = (endNanos - startNanos) / 1000L;
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        if (spans != null) {
+            spans.shutdown();
+        }
+    }
+
+    public void dumpStats() {
+        phases.dumpStats();
+        System.out.println("Dumping tracing statistics...");
+        System.out.println("Traces continued: " + continued + " started: " + started + " sampled: " + sampled +
+                " sample rate: " + sampleRate);
+        if (spans != null) {
+            spans.dumpStats();
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        phases.collect(writer);
+        writer.family("proxy_trace_requests", "counter", "Requests traced, by whether they continued a trace.");
+        writer.sample("proxy_trace_requests_total", "trace", "continued", continued.sum());
+        writer.sample("proxy_trace_requests_total", "trace", "started", started.sum());
+        writer.family("proxy_trace_sampled", "counter", "Requests sampled for tracing.");
+        writer.sample("proxy_trace_sampled_total", sampled.sum());
+        if (spans != null) {
+            spans.collect(writer);
+        }
+    }
+}
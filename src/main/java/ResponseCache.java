@@ -0,0 +1,510 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared cache for upstream GET responses, keyed by route and request URI, so that the hosts of a
+ * balanced route share entries.
+ * Freshness follows Cache-Control (s-maxage, max-age, no-cache, no-store, private) and Expires,
+ * stale entries with an ETag or Last-Modified are revalidated with a conditional upstream request,
+ * and one variant per URI is kept according to Vary. Entries are bounded by total body bytes and
+ * evicted least recently used first. Concurrent misses for the same key wait for a single upstream fetch.
+ */
+@ThreadSafe
+class ResponseCache implements Tracker {
+    static final String CACHE_STATUS_HEADER = "X-Cache";
+
+    /**
+     * Forwards a request to the upstream and fills in the response.
+     */
+    interface Upstream {
+        void execute(HttpRequest request, HttpResponse response) throws HttpException, IOException;
+    }
+
+    private final Cache<String, CachedResponse> cache;
+    private final ConcurrentHashMap<String, CompletableFuture<CachedResponse>> inFlight = new ConcurrentHashMap<>();
+    private final int maxEntryBytes;
+    private final long coalesceTimeoutMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public ResponseCache(long maxBytes, int maxEntryBytes, long coalesceTimeoutMillis) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, CachedResponse value) -> value.weight())
+                .removalListener(this::onRemoval)
+                .build();
+        this.maxEntryBytes = maxEntryBytes;
+        this.coalesceTimeoutMillis = coalesceTimeoutMillis;
+    }
+
+    /**
+     * Cache configured from system properties, or null when caching is disabled.
+     */
+    public static ResponseCache fromSystemProperties() {
+        final long maxBytes = Long.getLong("proxy.cache.maxBytes", 64L * 1024 * 1024);
+        if (maxBytes <= 0) {
+            return null;
+        }
+        return new ResponseCache(maxBytes,
+                Integer.getInteger("proxy.cache.maxEntryBytes", 1024 * 1024),
+                Long.getLong("proxy.cache.coalesceTimeoutMillis", 5000L));
+    }
+
+    public boolean isCacheable(HttpRequest request) {
+        if (!"GET".equals(request.getRequestLine().getMethod()) || request.containsHeader("Authorization")) {
+            return false;
+        }
+        return !hasDirective(request.getHeaders("Cache-Control"), "no-store");
+    }
+
+    public void handle(Route route, HttpRequest request, HttpResponse response, Upstream upstream)
+            throws HttpException, IOException {
+        final String key = route.getName() + " " + request.getRequestLine().getUri();
+        final long now = System.currentTimeMillis();
+
+        // Client validators are answered from the cache when it serves the response, and forwarded
+        // when the request goes upstream without the cache's own validators.
+        final Header[] clientEtags = request.getHeaders("If-None-Match");
+        final Header[] clientSince = request.getHeaders("If-Modified-Since");
+        request.removeHeaders("If-None-Match");
+        request.removeHeaders("If-Modified-Since");
+
+        CachedResponse entry = cache.getIfPresent(key);
+        if (entry != null && !entry.matchesVariant(request)) {
+            entry = null;
+        }
+        final boolean mustRevalidate = hasDirective(request.getHeaders("Cache-Control"), "no-cache")
+                || hasDirective(request.getHeaders("Pragma"), "no-cache");
+        if (entry != null && !mustRevalidate && entry.isFresh(now)) {
+            hits.increment();
+            serve(entry, clientEtags, response, "HIT", now);
+            return;
+        }
+
+        final CompletableFuture<CachedResponse> fetch = new CompletableFuture<>();
+        final CompletableFuture<CachedResponse> leader = inFlight.putIfAbsent(key, fetch);
+        if (leader != null) {
+            final CachedResponse shared = await(leader);
+            if (shared != null && shared.matchesVariant(request)) {
+                coalesced.increment();
+                serve(shared, clientEtags, response, "HIT", System.currentTimeMillis());
+            } else {
+                misses.increment();
+                addHeaders(request, clientEtags);
+                addHeaders(request, clientSince);
+                upstream.execute(request, response);
+                response.setHeader(CACHE_STATUS_HEADER, "MISS");
+            }
+            return;
+        }
+
+        CachedResponse fetched = null;
+        try {
+            fetched = fetch(key, entry, request, response, clientEtags, clientSince, upstream);
+        } finally {
+            inFlight.remove(key, fetch);
+            fetch.complete(fetched);
+        }
+    }
+
+    private CachedResponse fetch(String key, CachedResponse entry, HttpRequest request, HttpResponse response,
+                                 Header[] clientEtags, Header[] clientSince, Upstream upstream)
+            throws HttpException, IOException {
+        final boolean revalidating = entry != null && (entry.etag != null || entry.lastModified != null);
+        if (revalidating) {
+            if (entry.etag != null) {
+                request.setHeader("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                request.setHeader("If-Modified-Since", entry.lastModified);
+            }
+        } else {
+            // A 304 then answers the client's validators and is passed on as it is.
+            addHeaders(request, clientEtags);
+            addHeaders(request, clientSince);
+        }
+
+        final HttpResponse upstreamResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        upstream.execute(request, upstreamResponse);
+        final long now = System.currentTimeMillis();
+        final int status = upstreamResponse.getStatusLine().getStatusCode();
+
+        if (revalidating && status == HttpStatus.SC_NOT_MODIFIED) {
+            EntityUtils.consume(upstreamResponse.getEntity());
+            revalidations.increment();
+            final CachedResponse refreshed = entry.refresh(upstreamResponse, now);
+            cache.put(key, refreshed);
+            serve(refreshed, clientEtags, response, "REVALIDATED", now);
+            return refreshed;
+        }
+
+        misses.increment();
+        final CachedResponse stored = store(request, upstreamResponse, now);
+        if (stored == null) {
+            if (entry != null) {
+                cache.invalidate(key);
+            }
+            copy(upstreamResponse, response);
+            response.setHeader(CACHE_STATUS_HEADER, "MISS");
+            return null;
+        }
+        cache.put(key, stored);
+        serve(stored, clientEtags, response, "MISS", now);
+        return stored;
+    }
+
+    private CachedResponse await(CompletableFuture<CachedResponse> leader) throws IOException {
+        try {
+            return leader.get(coalesceTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a coalesced fetch");
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads and keeps the response body when the response may be stored, null otherwise.
+     */
+    private CachedResponse store(HttpRequest request, HttpResponse upstreamResponse, long now) throws IOException {
+        final int status = upstreamResponse.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_OK && status != HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION
+                && status != HttpStatus.SC_MOVED_PERMANENTLY && status != HttpStatus.SC_NOT_FOUND
+                && status != HttpStatus.SC_GONE) {
+            return null;
+        }
+        final Header[] cacheControl = upstreamResponse.getHeaders("Cache-Control");
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private")
+                || upstreamResponse.containsHeader("Set-Cookie")) {
+            return null;
+        }
+        // Vary may be split over several headers.
+        final String vary = joinValues(upstreamResponse.getHeaders("Vary"));
+        if (vary != null && vary.contains("*")) {
+            return null;
+        }
+        final HttpEntity entity = upstreamResponse.getEntity();
+        if (entity != null && (entity.getContentLength() < 0 || entity.getContentLength() > maxEntryBytes)) {
+            return null;
+        }
+
+        final Header etag = upstreamResponse.getFirstHeader("ETag");
+        final Header lastModified = upstreamResponse.getFirstHeader("Last-Modified");
+        final long lifetime = freshnessLifetime(upstreamResponse, now);
+        if (lifetime <= 0 && etag == null && lastModified == null) {
+            return null;
+        }
+
+        final byte[] body = entity != null ? EntityUtils.toByteArray(entity) : null;
+        final String[] varyNames = vary != null ? splitTokens(vary) : new String[0];
+        final String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = joinValues(request.getHeaders(varyNames[i]));
+        }
+        return new CachedResponse(upstreamResponse.getStatusLine(), stripAge(upstreamResponse.getAllHeaders()), body,
+                etag != null ? etag.getValue() : null, lastModified != null ? lastModified.getValue() : null,
+                now, ageMillis(upstreamResponse), now + lifetime, varyNames, varyValues);
+    }
+
+    private static void serve(CachedResponse entry, Header[] clientEtags, HttpResponse response,
+                              String cacheStatus, long now) {
+        // The age the upstream gave the response, plus the time it has been kept here (RFC 9111 4.2.3).
+        final long ageSecs = (entry.initialAgeMillis + Math.max(0, now - entry.storedAt)) / 1000;
+        if (entry.etag != null && entry.statusLine.getStatusCode() == HttpStatus.SC_OK
+                && etagMatches(clientEtags, entry.etag)) {
+            response.setStatusLine(new BasicStatusLine(entry.statusLine.getProtocolVersion(),
+                    HttpStatus.SC_NOT_MODIFIED, "Not Modified"));
+            response.setHeaders(entry.headers);
+            response.removeHeaders("Content-Type");
+            response.setEntity(null);
+        } else {
+            response.setStatusLine(entry.statusLine);
+            response.setHeaders(entry.headers);
+            response.setEntity(entry.body != null ? new CachedEntity(entry.body) : null);
+        }
+        response.setHeader("Age", Long.toString(ageSecs));
+        response.setHeader(CACHE_STATUS_HEADER, cacheStatus);
+    }
+
+    private static void addHeaders(HttpRequest request, Header[] headers) {
+        for (Header header : headers) {
+            request.addHeader(header);
+        }
+    }
+
+    private static void copy(HttpResponse from, HttpResponse to) {
+        to.setStatusLine(from.getStatusLine());
+        to.setHeaders(from.getAllHeaders());
+        to.setEntity(from.getEntity());
+    }
+
+    private static long freshnessLifetime(HttpResponse response, long now) {
+        final Header[] cacheControl = response.getHeaders("Cache-Control");
+        if (hasDirective(cacheControl, "no-cache")) {
+            return 0;
+        }
+        long maxAge = directiveSeconds(cacheControl, "s-maxage");
+        if (maxAge < 0) {
+            maxAge = directiveSeconds(cacheControl, "max-age");
+        }
+        if (maxAge >= 0) {
+            return maxAge * 1000 - ageMillis(response);
+        }
+        final Header expires = response.getFirstHeader("Expires");
+        if (expires != null) {
+            final long expiresAt = parseDate(expires.getValue());
+            if (expiresAt < 0) {
+                return 0;
+            }
+            final Header date = response.getFirstHeader("Date");
+            final long dateAt = date != null ? parseDate(date.getValue()) : -1;
+            return expiresAt - (dateAt >= 0 ? dateAt : now);
+        }
+        return 0;
+    }
+
+    private static long ageMillis(HttpResponse response) {
+        final Header age = response.getFirstHeader("Age");
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.getValue().trim())) * 1000;
+        } catch (final NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static boolean hasDirective(Header[] headers, String directive) {
+        final int eq = directive.indexOf('=');
+        final String name = eq < 0 ? directive : directive.substring(0, eq);
+        final String value = eq < 0 ? null : directive.substring(eq + 1);
+        for (Header header : headers) {
+            for (HeaderElement element : header.getElements()) {
+                if (name.equalsIgnoreCase(element.getName())
+                        && (value == null || value.equals(element.getValue()))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long directiveSeconds(Header[] headers, String name) {
+        for (Header header : headers) {
+            for (HeaderElement element : header.getElements()) {
+                if (name.equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue().trim());
+                    } catch (final NumberFormatException ex) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (final DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    private static boolean etagMatches(Header[] ifNoneMatch, String etag) {
+        for (Header header : ifNoneMatch) {
+            for (String candidate : header.getValue().split(",")) {
+                final String tag = candidate.trim();
+                if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag) || etag.equals("W/" + tag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String[] splitTokens(String value) {
+        final List<String> tokens = new ArrayList<>();
+        for (String token : value.split(",")) {
+            if (!token.trim().isEmpty()) {
+                tokens.add(token.trim());
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    private static String joinValues(Header[] headers) {
+        if (headers.length == 0) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (Header header : headers) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(header.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static Header[] stripAge(Header[] headers) {
+        final List<Header> kept = new ArrayList<>(headers.length);
+        for (Header header : headers) {
+            if (!"Age".equalsIgnoreCase(header.getName()) && !CACHE_STATUS_HEADER.equalsIgnoreCase(header.getName())) {
+                kept.add(header);
+            }
+        }
+        return kept.toArray(new Header[0]);
+    }
+
+    private void onRemoval(RemovalNotification<String, CachedResponse> notification) {
+        bytes.add(-notification.getValue().weight());
+        if (notification.wasEvicted()) {
+            evictions.increment();
+        }
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping response cache statistics...");
+        System.out.println("Hits: " + hits + " coalesced hits: " + coalesced + " misses: " + misses +
+                " revalidations: " + revalidations + " evictions: " + evictions +
+                " entries: " + cache.size() + " bytes: " + bytes);
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_cache_lookups", "counter", "Response cache lookups, per result.");
+        writer.sample("proxy_cache_lookups_total", "result", "hit", hits.sum());
+        writer.sample("proxy_cache_lookups_total", "result", "coalesced", coalesced.sum());
+        writer.sample("proxy_cache_lookups_total", "result", "miss", misses.sum());
+        writer.family("proxy_cache_revalidations", "counter", "Stale responses revalidated upstream.");
+        writer.sample("proxy_cache_revalidations_total", revalidations.sum());
+        writer.family("proxy_cache_evictions", "counter", "Responses evicted to stay within the size limit.");
+        writer.sample("proxy_cache_evictions_total", evictions.sum());
+        writer.family("proxy_cache_entries", "gauge", "Responses in the cache.");
+        writer.sample("proxy_cache_entries", cache.size());
+        writer.family("proxy_cache_bytes", "gauge", "Body bytes of the responses in the cache.");
+        writer.sample("proxy_cache_bytes", bytes.sum());
+    }
+
+    /**
+     * Body served from the cache, which the {@link ResponseCompressor} keeps compressed variants of.
+     */
+    static final class CachedEntity extends ByteArrayEntity {
+        private final byte[] body;
+
+        CachedEntity(byte[] body) {
+            super(body);
+            this.body = body;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+    }
+
+    private final class CachedResponse {
+        final StatusLine statusLine;
+        final Header[] headers;
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+        final long storedAt;
+        // Age of the response when it was received, from the upstream's Age header.
+        final long initialAgeMillis;
+        final long expiresAt;
+        final String[] varyNames;
+        final String[] varyValues;
+
+        CachedResponse(StatusLine statusLine, Header[] headers, byte[] body, String etag, String lastModified,
+                       long storedAt, long initialAgeMillis, long expiresAt, String[] varyNames,
+                       String[] varyValues) {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.initialAgeMillis = initialAgeMillis;
+            this.expiresAt = expiresAt;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            bytes.add(weight());
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        boolean matchesVariant(HttpRequest request) {
+            for (int i = 0; i < varyNames.length; i++) {
+                final String value = joinValues(request.getHeaders(varyNames[i]));
+                if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Entry with the headers of a 304 response merged in and a new freshness lifetime.
+         */
+        CachedResponse refresh(HttpResponse notModified, long now) {
+            final BasicHttpResponse merged = new BasicHttpResponse(statusLine);
+            merged.setHeaders(headers);
+            for (Header header : notModified.getAllHeaders()) {
+                if (!"Content-Type".equalsIgnoreCase(header.getName())) {
+                    merged.setHeader(header);
+                }
+            }
+            final Header newEtag = merged.getFirstHeader("ETag");
+            return new CachedResponse(statusLine, stripAge(merged.getAllHeaders()), body,
+                    newEtag != null ? newEtag.getValue() : etag, lastModified, now, ageMillis(notModified),
+                    now + freshnessLifetime(merged, now), varyNames, varyValues);
+        }
+
+        int weight() {
+            int weight = 256;
+            for (Header header : headers) {
+                weight += header.getName().length() + header.getValue().length();
+            }
+            return weight + (body != null ? body.length : 0);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compresses response bodies for clients that accept it, as they are streamed out. Bodies
+ * that are already encoded, of a type that does not compress, or smaller than a threshold are sent
+ * as they are. Deflaters and their buffers are pooled rather than allocated per response.
+ *
+ * Bodies served from the {@link ResponseCache} are compressed once and the compressed variant is
+ * kept alongside, keyed by the identity of the cached body, so that hot responses are not
+ * compressed again for every hit. Variants go when their cached body does.
+ */
+@ThreadSafe
+class ResponseCompressor implements Tracker {
+    private static final String GZIP = "gzip";
+    // Magic, deflate method, no flags, no modification time, no extra flags, unknown OS.
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final int minBytes;
+    private final int level;
+    private final String[] types;
+    private final BlockingQueue<Compression> pool;
+    // Null when compressed variants are not cached.
+    private final Cache<byte[], byte[]> variants;
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder variantHits = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * @param minBytes          bodies known to be smaller are not compressed
+     * @param level             deflate compression level, 1 (fastest) to 9 (smallest)
+     * @param types             compressed content types, a type ending in / matches all its subtypes
+     * @param maxPooledDeflaters deflaters kept for reuse
+     * @param maxVariantBytes   byte budget of cached compressed variants, 0 disables them
+     */
+    public ResponseCompressor(int minBytes, int level, String[] types, int maxPooledDeflaters, long maxVariantBytes) {
+        this.minBytes = minBytes;
+        this.level = level;
+        this.types = types;
+        this.pool = new ArrayBlockingQueue<>(maxPooledDeflaters);
+        this.variants = maxVariantBytes > 0
+                ? CacheBuilder.newBuilder()
+                        .weakKeys()
+                        .maximumWeight(maxVariantBytes)
+                        .weigher((byte[] body, byte[] variant) -> variant.length)
+                        .build()
+                : null;
+    }
+
+    /**
+     * Compressor configured from system properties, or null when compression is disabled.
+     */
+    public static ResponseCompressor fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("proxy.compression.enabled", "true"))) {
+            return null;
+        }
+        return new ResponseCompressor(
+                Integer.getInteger("proxy.compression.minBytes", 1024),
+                Integer.getInteger("proxy.compression.level", 6),
+                System.getProperty("proxy.compression.types",
+                        "text/,application/json,application/javascript,application/xml,image/svg+xml").split(","),
+                Integer.getInteger("proxy.compression.maxPooledDeflaters", 256),
+                Long.getLong("proxy.compression.variantCacheBytes", 16L * 1024 * 1024));
+    }
+
+    /**
+     * Replaces the response body with its gzip encoding if the client accepts it and it is worth it.
+     */
+    public void compress(HttpRequest request, HttpResponse response) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null || !isCompressible(request, response, entity)) {
+            return;
+        }
+        // Whether the response is compressed depends on the request from here on, caches downstream must know.
+        addVary(response);
+        if (!acceptsGzip(request)) {
+            return;
+        }
+        response.setHeader(HTTP.CONTENT_ENCODING, GZIP);
+        response.removeHeaders(HTTP.CONTENT_LEN);
+        // The encoded body is a different representation, a strong validator no longer applies to it.
+        final Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            response.setHeader("ETag", "W/" + etag.getValue());
+        }
+
+        compressed.increment();
+        if (variants != null && entity instanceof ResponseCache.CachedEntity) {
+            final byte[] body = ((ResponseCache.CachedEntity) entity).getBody();
+            final byte[] variant = variants.getIfPresent(body);
+            if (variant != null) {
+                variantHits.increment();
+                response.setEntity(variantEntity(variant, entity));
+                return;
+            }
+            try {
+                response.setEntity(variantEntity(variants.get(body, () -> gzip(body)), entity));
+            } catch (ExecutionException e) {
+                throw new IOException("Compressing cached response failed", e.getCause());
+            }
+            return;
+        }
+        response.setEntity(new GzipEntity(entity));
+    }
+
+    private boolean isCompressible(HttpRequest request, HttpResponse response, HttpEntity entity) {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status < HttpStatus.SC_OK || status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_PARTIAL_CONTENT
+                || status == HttpStatus.SC_NOT_MODIFIED || "HEAD".equals(request.getRequestLine().getMethod())) {
+            return false;
+        }
+        if (response.containsHeader(HTTP.CONTENT_ENCODING) || response.containsHeader("Content-Range")
+                || entity.getContentEncoding() != null || hasNoTransform(response)) {
+            return false;
+        }
+        final long length = entity.getContentLength();
+        if (length >= 0 && length < minBytes) {
+            return false;
+        }
+        return isCompressibleType(response.getFirstHeader(HTTP.CONTENT_TYPE));
+    }
+
+    private boolean isCompressibleType(Header contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final String value = contentType.getValue();
+        final int semicolon = value.indexOf(';');
+        final String mimeType = (semicolon >= 0 ? value.substring(0, semicolon) : value).trim();
+        for (String type : types) {
+            final String t = type.trim();
+            if (t.endsWith("/") ? mimeType.regionMatches(true, 0, t, 0, t.length()) : mimeType.equalsIgnoreCase(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasNoTransform(HttpResponse response) {
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                if ("no-transform".equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether Accept-Encoding allows gzip, by name or by *, with a non-zero quality.
+     */
+    static boolean acceptsGzip(HttpRequest request) {
+        Boolean wildcard = null;
+        for (Header header : request.getHeaders("Accept-Encoding")) {
+            for (HeaderElement element : header.getElements()) {
+                final boolean accepted = !isZeroQuality(element);
+                if (GZIP.equalsIgnoreCase(element.getName()) || "x-gzip".equalsIgnoreCase(element.getName())) {
+                    return accepted;
+                } else if ("*".equals(element.getName())) {
+                    wildcard = accepted;
+                }
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static boolean isZeroQuality(HeaderElement element) {
+        final NameValuePair q = element.getParameterByName("q");
+        if (q == null || q.getValue() == null) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(q.getValue().trim()) <= 0;
+        } catch (final NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static void addVary(HttpResponse response) {
+        for (Header vary : response.getHeaders("Vary")) {
+            if (HopByHopHeaders.isListed("Accept-Encoding", vary.getValue())
+                    || HopByHopHeaders.isListed("*", vary.getValue())) {
+                return;
+            }
+        }
+        response.addHeader(new BasicHeader("Vary", "Accept-Encoding"));
+    }
+
+    private static HttpEntity variantEntity(byte[] variant, HttpEntity original) {
+        final ByteArrayEntity entity = new ByteArrayEntity(variant);
+        entity.setContentType(original.getContentType());
+        entity.setContentEncoding(GZIP);
+        return entity;
+    }
+
+    private byte[] gzip(byte[] body) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + GZIP_HEADER.length + 8);
+        final Compression compression = acquire();
+        try {
+            compression.compress(new ByteArrayInputStream(body), out);
+        } finally {
+            release(compression);
+        }
+        return out.toByteArray();
+    }
+
+    private Compression acquire() {
+        final Compression compression = pool.poll();
+        return compression != null ? compression : new Compression(level);
+    }
+
+    private void release(Compression compression) {
+        compression.deflater.reset();
+        if (!pool.offer(compression)) {
+            compression.deflater.end();
+        }
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping response compression statistics...");
+        System.out.println("Compressed: " + compressed + " from cached variants: " + variantHits +
+                " bytes in: " + bytesIn + " bytes out: " + bytesOut +
+                " cached variants: " + (variants != null ? variants.size() : 0));
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_compressed_responses", "counter", "Responses sent gzip compressed.");
+        writer.sample("proxy_compressed_responses_total", compressed.sum());
+        writer.family("proxy_compression_variant_hits", "counter",
+                "Compressed responses served from a cached compressed variant.");
+        writer.sample("proxy_compression_variant_hits_total", variantHits.sum());
+        writer.family("proxy_compression_input_bytes", "counter", "Body bytes compressed.");
+        writer.sample("proxy_compression_input_bytes_total", bytesIn.sum());
+        writer.family("proxy_compression_output_bytes", "counter", "Compressed body bytes produced.");
+        writer.sample("proxy_compression_output_bytes_total", bytesOut.sum());
+    }
+
+    /**
+     * A deflater with its buffers and checksum, pooled together.
+     */
+    private final class Compression {
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        final byte[] input = new byte[BUFFER_SIZE];
+        final byte[] output = new byte[BUFFER_SIZE];
+
+        Compression(int level) {
+            // Raw deflate, the gzip header and trailer are written here.
+            this.deflater = new Deflater(level, true);
+        }
+
+        void compress(InputStream in, OutputStream out) throws IOException {
+            crc.reset();
+            out.write(GZIP_HEADER);
+            long written = GZIP_HEADER.length;
+            int n;
+            while ((n = in.read(input)) >= 0) {
+                crc.update(input, 0, n);
+                deflater.setInput(input, 0, n);
+                while (!deflater.needsInput()) {
+                    written += deflate(out);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                written += deflate(out);
+            }
+            final long read = deflater.getBytesRead();
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, (int) read);
+            bytesIn.add(read);
+            bytesOut.add(written + 8);
+        }
+
+        private int deflate(OutputStream out) throws IOException {
+            final int n = deflater.deflate(output, 0, output.length, Deflater.NO_FLUSH);
+            if (n > 0) {
+                out.write(output, 0, n);
+            }
+            return n;
+        }
+
+        private void writeIntLE(OutputStream out, int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+    }
+
+    /**
+     * Compresses the wrapped body as it is written out.
+     */
+    private final class GzipEntity extends HttpEntityWrapper {
+
+        GzipEntity(HttpEntity wrapped) {
+            super(wrapped);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader(HTTP.CONTENT_ENCODING, GZIP);
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final Compression compression = acquire();
+            try (InputStream in = wrappedEntity.getContent()) {
+                compression.compress(in, out);
+            } finally {
+                release(compression);
+            }
+        }
+
+        /**
+         * Compresses the whole body up front, for callers that read rather than write it.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeTo(out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+    }
+}
@@ -1,23 +1,54 @@
 import com.google.common.collect.ImmutableList;
 import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
 import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
 import java.util.List;
 
-public abstract class ResponseTimeTracker implements HttpResponseInterceptor, Tracker {
+public abstract class ResponseTimeTracker implements HttpRequestInterceptor, HttpResponseInterceptor, Tracker {
     // Sorted list of percentiles that tracker logs.
     static final List<Integer> PERCENTILES = ImmutableList.of(25, 50, 75, 90, 99);
+    // Execution time header values of the most common durations, so that they need not be formatted.
+    private static final String[] MILLIS = new String[1000];
+
+    static {
+        for (int i = 0; i < MILLIS.length; i++) {
+            MILLIS[i] = Integer.toString(i);
+        }
+    }
+
+    // Start the clock once the request head has been received, so that time spent idle on a
+    // keep-alive connection waiting for the next request is not counted.
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        RequestContext.get(context).begin(System.nanoTime());
+    }
 
     public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
-        String uri = (String) context.getAttribute(Constants.HTTP_REQUEST_URI);
-        Long startTime = (Long) context.getAttribute(Constants.HTTP_REQUEST_START_TIME);
-        Long durationMillisecs = (System.nanoTime() - startTime) / 1000000L;
+        // Informational responses are not timed, the request goes on to a final response.
+        if (response.getStatusLine().getStatusCode() < HttpStatus.SC_OK) {
+            return;
+        }
+        RequestContext requestContext = RequestContext.get(context);
+        long startTime = requestContext.getStartNanos();
+        long endTime = System.nanoTime();
+
+        long millis = (endTime - startTime) / 1000000L;
+        response.addHeader(Constants.EXECUTION_TIME_HEADER_KEY,
+                millis >= 0 && millis < MILLIS.length ? MILLIS[(int) millis] : Long.toString(millis));
+        add(requestContext.getUri(), startTime, endTime);
+    }
 
-        response.addHeader(Constants.EXECUTION_TIME_HEADER_KEY, String.valueOf(durationMillisecs));
-        add(uri, durationMillisecs);
+    /**
+     * Trackers with sub-millisecond resolution, or that need the time of the response, override
+     * this. The others get the duration in milliseconds.
+     */
+    protected void add(String uri, long startNanos, long endNanos) {
+        add(uri, (endNanos - startNanos) / 1000000L);
     }
 
     abstract protected void add(String uri, Long durationMillisecs);
@@ -0,0 +1,62 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that keeps retries and hedged requests to a fraction of the requests sent, so that
+ * they cannot multiply the load on upstreams that are already struggling. Every request deposits a
+ * fraction of a token, up to a maximum balance, and every retry or hedge withdraws a whole one.
+ * The bucket starts full.
+ */
+@ThreadSafe
+class RetryBudget {
+    // Tokens are counted in thousandths so that deposits can be fractional.
+    private static final long UNIT = 1000L;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    /**
+     * @param ratio     tokens deposited per request, the long run fraction of requests that may be retried
+     * @param maxTokens largest balance, the burst of retries allowed after a quiet spell
+     */
+    public RetryBudget(double ratio, int maxTokens) {
+        this.deposit = Math.round(ratio * UNIT);
+        this.maxBalance = maxTokens * UNIT;
+        this.balance = new AtomicLong(maxBalance);
+    }
+
+    public void deposit() {
+        // Read first, so that the common case of a full bucket does not write to a shared cache line.
+        if (balance.get() < maxBalance) {
+            balance.accumulateAndGet(deposit, (current, d) -> Math.min(current + d, maxBalance));
+        }
+    }
+
+    /**
+     * Takes a token for a retry or hedge, or returns false if the budget is spent.
+     */
+    public boolean tryWithdraw() {
+        while (true) {
+            final long current = balance.get();
+            if (current < UNIT) {
+                return false;
+            }
+            if (balance.compareAndSet(current, current - UNIT)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token withdrawn for a retry or hedge that was not sent after all.
+     */
+    public void refund() {
+        balance.accumulateAndGet(UNIT, (current, d) -> Math.min(current + d, maxBalance));
+    }
+
+    public double getTokens() {
+        return balance.get() / (double) UNIT;
+    }
+}
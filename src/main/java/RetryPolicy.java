@@ -0,0 +1,266 @@
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When a request goes to a second upstream instance. Requests that could not get a connection to
+ * their upstream are retried on another instance, and GET and HEAD requests that have not been
+ * answered within the route's observed latency percentile are hedged: sent again to another
+ * instance, the first response to arrive wins and the other request is cancelled. Both are paid
+ * for from a {@link RetryBudget}, so that they stay a small fraction of the traffic however badly
+ * the upstreams do.
+ *
+ * Hedge delays are estimated per route from the time to the response head of upstream requests,
+ * cancelled ones included at the time they were given up, so that hedging does not hide the tail
+ * it is meant to cut. A route is not hedged until enough samples have been seen.
+ */
+@ThreadSafe
+class RetryPolicy implements Tracker {
+    // Latencies above this are recorded as this.
+    private static final long HIGHEST_TRACKABLE_MICROS = 60L * 1000 * 1000;
+
+    private final int maxConnectRetries;
+    private final RetryBudget budget;
+    // Zero when hedging is disabled.
+    private final double hedgePercentile;
+    private final long minHedgeDelayMicros;
+    private final int minSamples;
+    private final long windowNanos;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ThreadPoolExecutor hedgePool;
+    // Keyed by route name, so that estimates survive route reloads.
+    private final ConcurrentHashMap<String, RouteLatency> latencies = new ConcurrentHashMap<>();
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    /**
+     * @param maxConnectRetries   further instances tried by a request that could not connect
+     * @param budget              pays for retries and hedges
+     * @param hedgePercentile     latency percentile of the route after which a request is hedged, 0 disables hedging
+     * @param minHedgeDelayMillis shortest wait before hedging
+     * @param minSamples          latency samples a route needs before it is hedged
+     * @param windowMillis        how often a route's hedge delay is recomputed from the latest samples
+     * @param maxHedgesInFlight   hedged requests sent at once, further hedges are skipped
+     */
+    public RetryPolicy(int maxConnectRetries, RetryBudget budget, double hedgePercentile, long minHedgeDelayMillis,
+                       int minSamples, long windowMillis, int maxHedgesInFlight) {
+        this.maxConnectRetries = maxConnectRetries;
+        this.budget = budget;
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelayMicros = minHedgeDelayMillis * 1000L;
+        this.minSamples = minSamples;
+        this.windowNanos = windowMillis * 1000000L;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread t = new Thread(r, "hedge-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        // Nearly every hedge timer is cancelled, do not let them pile up in the queue until they expire.
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.hedgePool = new ThreadPoolExecutor(0, maxHedgesInFlight, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    final Thread t = new Thread(r, "upstream-hedge");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Policy configured from system properties, or null when retries and hedging are disabled.
+     */
+    public static RetryPolicy fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("proxy.retry.enabled", "true"))) {
+            return null;
+        }
+        final boolean hedging = Boolean.parseBoolean(System.getProperty("proxy.hedge.enabled", "true"));
+        return new RetryPolicy(
+                Integer.getInteger("proxy.retry.maxConnectRetries", 2),
+                new RetryBudget(Double.parseDouble(System.getProperty("proxy.retry.budgetRatio", "0.1")),
+                        Integer.getInteger("proxy.retry.budgetMaxTokens", 100)),
+                hedging ? Double.parseDouble(System.getProperty("proxy.hedge.percentile", "95")) : 0,
+                Long.getLong("proxy.hedge.minDelayMillis", 5L),
+                Integer.getInteger("proxy.hedge.minSamples", 100),
+                Long.getLong("proxy.hedge.windowMillis", 10000L),
+                Integer.getInteger("proxy.hedge.maxInFlight", 64));
+    }
+
+    /**
+     * Called for every request forwarded, whether or not it is retried.
+     */
+    public void onRequest() {
+        budget.deposit();
+    }
+
+    public int getMaxConnectRetries() {
+        return maxConnectRetries;
+    }
+
+    /**
+     * Takes a retry from the budget.
+     */
+    public boolean tryRetry() {
+        if (!budget.tryWithdraw()) {
+            budgetExhausted.increment();
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    /**
+     * Gives back a retry taken from the budget when there was no other host to send it to.
+     */
+    public void returnRetry() {
+        budget.refund();
+        retries.decrement();
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     */
+    public boolean tryHedge() {
+        if (!budget.tryWithdraw()) {
+            budgetExhausted.increment();
+            return false;
+        }
+        hedges.increment();
+        return true;
+    }
+
+    public void hedgeWon() {
+        hedgeWins.increment();
+    }
+
+    /**
+     * Microseconds to wait before hedging the request, or -1 if it must not be hedged. Only safe
+     * requests without a body, on routes with another instance to send them to, are hedged.
+     */
+    public long hedgeDelayMicros(Route route, HttpRequest request) {
+        if (hedgePercentile <= 0 || route.getUpstreams().size() < 2 || request instanceof HttpEntityEnclosingRequest) {
+            return -1;
+        }
+        final String method = request.getRequestLine().getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return -1;
+        }
+        final RouteLatency latency = latencies.get(route.getName());
+        final long delay = latency != null ? latency.percentileMicros : -1;
+        return delay < 0 ? -1 : Math.max(delay, minHedgeDelayMicros);
+    }
+
+    /**
+     * Records the time an upstream request took to its response head, or until it was cancelled.
+     */
+    public void record(Route route, long micros) {
+        if (hedgePercentile <= 0) {
+            return;
+        }
+        RouteLatency latency = latencies.get(route.getName());
+        if (latency == null) {
+            latency = latencies.computeIfAbsent(route.getName(), k -> new RouteLatency());
+        }
+        latency.record(micros);
+    }
+
+    /**
+     * Runs the hedge after the delay, unless the returned future is cancelled first. If too many
+     * hedges are in flight already, {@code onRejected} runs instead.
+     */
+    public ScheduledFuture<?> scheduleHedge(Runnable hedge, Runnable onRejected, long delayMicros) {
+        return timer.schedule(() -> {
+            try {
+                hedgePool.execute(hedge);
+            } catch (final RejectedExecutionException ex) {
+                onRejected.run();
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        hedgePool.shutdownNow();
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping upstream retry statistics...");
+        System.out.println("Connect retries: " + retries + " hedges: " + hedges + " hedges won: " + hedgeWins +
+                " over budget: " + budgetExhausted + " budget tokens: " + budget.getTokens());
+        for (Map.Entry<String, RouteLatency> entry : latencies.entrySet()) {
+            final long delay = entry.getValue().percentileMicros;
+            System.out.println("Route: " + entry.getKey() + " hedge delay " +
+                    (delay < 0 ? "not yet known" : Math.max(delay, minHedgeDelayMicros) / 1000.0 + " millisecs"));
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_upstream_retries", "counter",
+                "Requests sent to another upstream after failing to connect.");
+        writer.sample("proxy_upstream_retries_total", retries.sum());
+        writer.family("proxy_upstream_hedges", "counter", "Hedged requests sent to another upstream.");
+        writer.sample("proxy_upstream_hedges_total", hedges.sum());
+        writer.family("proxy_upstream_hedge_wins", "counter", "Hedged requests answered before the original.");
+        writer.sample("proxy_upstream_hedge_wins_total", hedgeWins.sum());
+        writer.family("proxy_retry_budget_exhausted", "counter", "Retries and hedges not sent for lack of budget.");
+        writer.sample("proxy_retry_budget_exhausted_total", budgetExhausted.sum());
+        writer.family("proxy_retry_budget_tokens", "gauge", "Retries and hedges the budget allows right now.");
+        writer.sample("proxy_retry_budget_tokens", budget.getTokens());
+        writer.family("proxy_route_hedge_delay_seconds", "gauge", "Time after which a route's requests are hedged.");
+        for (Map.Entry<String, RouteLatency> entry : latencies.entrySet()) {
+            final long delay = entry.getValue().percentileMicros;
+            if (delay >= 0) {
+                writer.sample("proxy_route_hedge_delay_seconds", "route", entry.getKey(),
+                        Math.max(delay, minHedgeDelayMicros) / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Upstream latencies of one route. The percentile is recomputed by the first request after each
+     * window from the samples since the last estimate, which are carried over until there are enough.
+     */
+    private final class RouteLatency {
+        private final LogLinearHistogram histogram = new LogLinearHistogram(HIGHEST_TRACKABLE_MICROS, 2);
+        private final AtomicBoolean updating = new AtomicBoolean();
+        // Guarded by updating.
+        private final long[] pending = new long[histogram.length()];
+        private long pendingCount;
+        private volatile long windowStartNanos = System.nanoTime();
+        // -1 until there have been enough samples.
+        volatile long percentileMicros = -1;
+
+        void record(long micros) {
+            histogram.record(micros);
+            final long now = System.nanoTime();
+            if (now - windowStartNanos >= windowNanos && updating.compareAndSet(false, true)) {
+                try {
+                    windowStartNanos = now;
+                    final LogLinearHistogram.Snapshot snapshot = histogram.drain();
+                    snapshot.addTo(pending);
+                    pendingCount += snapshot.getTotalCount();
+                    if (pendingCount >= minSamples) {
+                        percentileMicros = histogram.valueAtPercentile(pending, hedgePercentile);
+                        Arrays.fill(pending, 0L);
+                        pendingCount = 0;
+                    }
+                } finally {
+                    updating.set(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A routing rule's destination: a group of upstream hosts and the balancer that spreads requests
+ * across them.
+ */
+class Route {
+    private final String name;
+    private final ImmutableList<UpstreamHost> upstreams;
+    private final Balancer balancer;
+
+    public Route(String name, List<UpstreamHost> upstreams, String balancer) {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("Route " + name + " has no upstreams");
+        }
+        this.name = name;
+        this.upstreams = ImmutableList.copyOf(upstreams);
+        this.balancer = Balancer.create(balancer, this.upstreams);
+    }
+
+    /**
+     * Unique within a route table, e.g. "prefix /static/".
+     */
+    public String getName() {
+        return name;
+    }
+
+    public List<UpstreamHost> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * @return the upstream for the next request, or null when all of them have been ejected
+     */
+    public UpstreamHost select() {
+        return balancer.select();
+    }
+
+    /**
+     * @return an upstream other than {@code exclude} for a retry or hedge, or null if there is none in service
+     */
+    public UpstreamHost selectOther(UpstreamHost exclude) {
+        return balancer.select(exclude);
+    }
+
+    @Override
+    public String toString() {
+        return name + " -> " + upstreams;
+    }
+}
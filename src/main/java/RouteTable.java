@@ -0,0 +1,293 @@
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.HttpHost;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable, compiled routing table. Request paths are matched against exact and prefix rules
+ * in a radix trie, then the Host header against host rules, then the default route.
+ * Precedence is exact path, longest prefix, host, default. Lookups do not allocate.
+ *
+ * Config format, one rule per line, '#' starts a comment. Rules may end with the balancer used
+ * across their upstreams, round-robin by default:
+ * <pre>
+ * exact   /healthcheck   api.netflix.com
+ * prefix  /static/       www1.netflix.com:8080,www2.netflix.com:8080  least-outstanding
+ * host    api.example.com  https://api.netflix.com
+ * default                www.netflix.com
+ * </pre>
+ */
+class RouteTable {
+    private final Node pathRoot;
+    private final Node hostRoot;
+    private final Route defaultRoute;
+    private final ImmutableSet<UpstreamHost> upstreams;
+    private final int size;
+
+    private RouteTable(Node pathRoot, Node hostRoot, Route defaultRoute, ImmutableSet<UpstreamHost> upstreams,
+                       int size) {
+        this.pathRoot = pathRoot;
+        this.hostRoot = hostRoot;
+        this.defaultRoute = defaultRoute;
+        this.upstreams = upstreams;
+        this.size = size;
+    }
+
+    /**
+     * Built in routes used when no route file is configured.
+     */
+    public static RouteTable defaults() {
+        try {
+            return parse(new StringReader(
+                    "exact /healthcheck api.netflix.com\n" +
+                    "exact /account/geo api.netflix.com\n" +
+                    "exact /test api.netflix.com\n" +
+                    "default www.netflix.com\n"));
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static RouteTable parse(Reader reader) throws IOException {
+        final BuildNode paths = new BuildNode();
+        final BuildNode hosts = new BuildNode();
+        Route defaultRoute = null;
+        final ImmutableSet.Builder<UpstreamHost> upstreams = ImmutableSet.builder();
+        int size = 0;
+
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNo = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNo++;
+            final int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            final String[] tokens = line.trim().split("\\s+");
+            if (tokens.length == 1 && tokens[0].isEmpty()) {
+                continue;
+            }
+            final String kind = tokens[0];
+            final int ruleTokens = kind.equals("default") ? 2 : 3;
+            if (tokens.length != ruleTokens && tokens.length != ruleTokens + 1) {
+                throw new IllegalArgumentException("Line " + lineNo + ": cannot parse rule '" + line.trim() + "'");
+            }
+            final String name = kind.equals("default") ? kind : kind + " " + tokens[1];
+            final Route route;
+            try {
+                route = new Route(name, parseUpstreams(tokens[ruleTokens - 1], lineNo),
+                        tokens.length > ruleTokens ? tokens[ruleTokens] : Balancer.ROUND_ROBIN);
+            } catch (final IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Line " + lineNo + ": " + ex.getMessage(), ex);
+            }
+            upstreams.addAll(route.getUpstreams());
+            if (kind.equals("default")) {
+                defaultRoute = route;
+            } else if (kind.equals("exact") || kind.equals("prefix")) {
+                if (!tokens[1].startsWith("/")) {
+                    throw new IllegalArgumentException("Line " + lineNo + ": path must start with '/'");
+                }
+                final BuildNode node = paths.insert(tokens[1]);
+                if (kind.equals("exact")) {
+                    node.exact = route;
+                } else {
+                    node.prefix = route;
+                }
+            } else if (kind.equals("host")) {
+                hosts.insert(tokens[1].toLowerCase()).exact = route;
+            } else {
+                throw new IllegalArgumentException("Line " + lineNo + ": unknown rule '" + kind + "'");
+            }
+            size++;
+        }
+        if (defaultRoute == null) {
+            throw new IllegalArgumentException("No default route");
+        }
+        return new RouteTable(paths.compile(new char[0]), hosts.compile(new char[0]), defaultRoute,
+                upstreams.build(), size);
+    }
+
+    private static List<UpstreamHost> parseUpstreams(String spec, int lineNo) {
+        final List<UpstreamHost> upstreams = new ArrayList<>();
+        for (String upstream : spec.split(",")) {
+            String scheme = "http";
+            String hostPort = upstream;
+            final int schemeEnd = upstream.indexOf("://");
+            if (schemeEnd >= 0) {
+                scheme = upstream.substring(0, schemeEnd);
+                hostPort = upstream.substring(schemeEnd + 3);
+            }
+            final int colon = hostPort.lastIndexOf(':');
+            try {
+                upstreams.add(UpstreamHost.of(colon >= 0
+                        ? new HttpHost(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)), scheme)
+                        : new HttpHost(hostPort, -1, scheme)));
+            } catch (final NumberFormatException ex) {
+                throw new IllegalArgumentException("Line " + lineNo + ": bad upstream '" + upstream + "'");
+            }
+        }
+        return upstreams;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Every upstream host referred to by a rule.
+     */
+    public ImmutableSet<UpstreamHost> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * @param host value of the Host header, may be null
+     * @param uri request URI, origin or absolute form, query string is ignored
+     */
+    public Route match(String host, String uri) {
+        int from = 0;
+        if (uri.startsWith("http://") || uri.startsWith("https://")) {
+            final int slash = uri.indexOf('/', uri.indexOf("//") + 2);
+            from = slash >= 0 ? slash : uri.length();
+        }
+        int to = uri.indexOf('?', from);
+        if (to < 0) {
+            to = uri.length();
+        }
+        final int fragment = uri.indexOf('#', from);
+        if (fragment >= 0 && fragment < to) {
+            to = fragment;
+        }
+
+        final Route byPath = from < to ? lookup(pathRoot, uri, from, to, false) : lookup(pathRoot, "/", 0, 1, false);
+        if (byPath != null) {
+            return byPath;
+        }
+        if (host != null) {
+            int hostEnd = host.lastIndexOf(':');
+            if (hostEnd < 0 || host.indexOf(']', hostEnd) >= 0) {
+                hostEnd = host.length();
+            }
+            // Host rules have no prefix routes, so only a match of the whole host is returned.
+            final Route byHost = lookup(hostRoot, host, 0, hostEnd, true);
+            if (byHost != null) {
+                return byHost;
+            }
+        }
+        return defaultRoute;
+    }
+
+    private static Route lookup(Node node, String s, int from, int to, boolean ignoreCase) {
+        Route best = node.prefix;
+        int i = from;
+        while (true) {
+            if (i == to) {
+                return node.exact != null ? node.exact : best;
+            }
+            final Node child = node.child(ignoreCase ? Character.toLowerCase(s.charAt(i)) : s.charAt(i));
+            if (child == null) {
+                return best;
+            }
+            final char[] label = child.label;
+            if (to - i < label.length) {
+                return best;
+            }
+            for (int j = 1; j < label.length; j++) {
+                final char c = s.charAt(i + j);
+                if ((ignoreCase ? Character.toLowerCase(c) : c) != label[j]) {
+                    return best;
+                }
+            }
+            i += label.length;
+            node = child;
+            if (node.prefix != null) {
+                best = node.prefix;
+            }
+        }
+    }
+
+    /**
+     * Compiled radix trie node. Children are sorted by the first character of their label.
+     */
+    private static final class Node {
+        final char[] label;
+        final char[] firstChars;
+        final Node[] children;
+        final Route exact;
+        final Route prefix;
+
+        Node(char[] label, Node[] children, Route exact, Route prefix) {
+            this.label = label;
+            this.children = children;
+            this.exact = exact;
+            this.prefix = prefix;
+            this.firstChars = new char[children.length];
+            for (int i = 0; i < children.length; i++) {
+                firstChars[i] = children[i].label[0];
+            }
+        }
+
+        Node child(char c) {
+            int lo = 0;
+            int hi = firstChars.length - 1;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                final char m = firstChars[mid];
+                if (m < c) {
+                    lo = mid + 1;
+                } else if (m > c) {
+                    hi = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One character per level trie used while parsing, compressed into {@link Node}s.
+     */
+    private static final class BuildNode {
+        final TreeMap<Character, BuildNode> children = new TreeMap<>();
+        Route exact;
+        Route prefix;
+
+        BuildNode insert(String key) {
+            BuildNode node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new BuildNode());
+            }
+            return node;
+        }
+
+        Node compile(char[] label) {
+            final List<Node> compiled = new ArrayList<>(children.size());
+            for (Map.Entry<Character, BuildNode> entry : children.entrySet()) {
+                // Collapse chains of single child nodes without routes into one edge.
+                final StringBuilder edge = new StringBuilder().append(entry.getKey().charValue());
+                BuildNode child = entry.getValue();
+                while (child.exact == null && child.prefix == null && child.children.size() == 1) {
+                    final Map.Entry<Character, BuildNode> only = child.children.firstEntry();
+                    edge.append(only.getKey().charValue());
+                    child = only.getValue();
+                }
+                compiled.add(child.compile(edge.toString().toCharArray()));
+            }
+            return new Node(label, compiled.toArray(new Node[0]), exact, prefix);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RouteTable(" + size + " rules, default -> " + defaultRoute.getUpstreams() + ")";
+    }
+}
@@ -0,0 +1,100 @@
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.annotation.ThreadSafe;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes requests with the current {@link RouteTable}. When a route file is configured it is polled
+ * for changes and a new table is swapped in atomically; requests in flight keep the table they
+ * started with. A route file that fails to parse leaves the current table in place.
+ */
+@ThreadSafe
+class Router {
+    private static final Logger LOG = Logger.getLogger(Router.class.getName());
+
+    private final Path routeFile;
+    private volatile RouteTable table;
+    private FileTime loadedModified;
+    private ScheduledExecutorService reloader;
+
+    public Router(RouteTable table) {
+        this.routeFile = null;
+        this.table = table;
+    }
+
+    public Router(Path routeFile, long reloadIntervalMillis) throws IOException {
+        this.routeFile = routeFile;
+        this.loadedModified = Files.getLastModifiedTime(routeFile);
+        this.table = load(routeFile);
+        LOG.info("Loaded " + table + " from " + routeFile);
+
+        if (reloadIntervalMillis > 0) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "route-reloader");
+                t.setDaemon(true);
+                return t;
+            });
+            this.reloader.scheduleWithFixedDelay(this::reloadIfModified,
+                    reloadIntervalMillis, reloadIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Router configured from system properties, see README for the property names.
+     */
+    public static Router fromSystemProperties() throws IOException {
+        final String routeFile = System.getProperty("proxy.routes");
+        if (routeFile == null) {
+            return new Router(RouteTable.defaults());
+        }
+        return new Router(Paths.get(routeFile), Long.getLong("proxy.routes.reloadIntervalMillis", 5000L));
+    }
+
+    public Route route(HttpRequest request) {
+        final Header host = request.getFirstHeader(HttpHeaders.HOST);
+        return table.match(host != null ? host.getValue() : null, request.getRequestLine().getUri());
+    }
+
+    public RouteTable getTable() {
+        return table;
+    }
+
+    private static RouteTable load(Path routeFile) throws IOException {
+        try (Reader reader = Files.newBufferedReader(routeFile, StandardCharsets.UTF_8)) {
+            return RouteTable.parse(reader);
+        }
+    }
+
+    void reloadIfModified() {
+        try {
+            final FileTime modified = Files.getLastModifiedTime(routeFile);
+            if (modified.equals(loadedModified)) {
+                return;
+            }
+            loadedModified = modified;
+            table = load(routeFile);
+            LOG.info("Reloaded " + table + " from " + routeFile);
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.SEVERE, "Failed to reload routes from " + routeFile + ", keeping current routes", e);
+        }
+    }
+
+    public void shutdown() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
+import org.apache.http.impl.nio.DefaultNHttpServerConnection;
+import org.apache.http.nio.NHttpServerEventHandler;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLSetupHandler;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+/**
+ * Terminates TLS on the client-facing listener. Keys come from a {@link ReloadingKeyManager}, so
+ * that a renewed certificate is picked up without a restart. The SSL context lives as long as the
+ * listener, and with it the session cache and the session ticket keys, so that clients resume
+ * their sessions across keystore reloads. Blocking listeners offer h2 through ALPN.
+ */
+@ThreadSafe
+class ServerTls {
+    private static final String HANDSHAKE_START = "proxy.tls.handshake-start";
+
+    private final ReloadingKeyManager keyManager;
+    private final SSLContext context;
+    private final int handshakeTimeoutMillis;
+    private final TlsHandshakes handshakes;
+
+    /**
+     * @param sessionCacheSize       sessions kept for resumption, 0 for no limit
+     * @param sessionTimeoutSecs     how long a session can be resumed, 0 for no limit
+     * @param handshakeTimeoutMillis longest wait for the client during a blocking handshake
+     */
+    public ServerTls(ReloadingKeyManager keyManager, int sessionCacheSize, int sessionTimeoutSecs,
+                     int handshakeTimeoutMillis, TlsHandshakes handshakes) throws GeneralSecurityException {
+        this.keyManager = keyManager;
+        this.context = SSLContext.getInstance("TLS");
+        this.context.init(new KeyManager[]{keyManager}, null, null);
+        final SSLSessionContext sessions = this.context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSecs);
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.handshakes = handshakes;
+    }
+
+    /**
+     * Listener TLS configured from system properties, or null when the listener serves plain text.
+     */
+    public static ServerTls fromSystemProperties(TlsHandshakes handshakes) throws IOException {
+        final String keystore = System.getProperty("proxy.tls.keystore");
+        if (keystore == null) {
+            return null;
+        }
+        try {
+            return new ServerTls(
+                    new ReloadingKeyManager(Paths.get(keystore),
+                            System.getProperty("proxy.tls.keystoreType", "PKCS12"),
+                            System.getProperty("proxy.tls.keystorePassword", "").toCharArray(),
+                            Long.getLong("proxy.tls.reloadIntervalMillis", 5000L)),
+                    Integer.getInteger("proxy.tls.sessionCacheSize", 20480),
+                    Integer.getInteger("proxy.tls.sessionTimeoutSecs", 86400),
+                    Integer.getInteger("proxy.tls.handshakeTimeoutMillis", 10000),
+                    handshakes);
+        } catch (final GeneralSecurityException ex) {
+            throw new IOException("Cannot set up TLS with keystore " + keystore, ex);
+        }
+    }
+
+    /**
+     * @param h2 whether h2 is offered to clients through ALPN
+     */
+    public ServerSocket createServerSocket(int port, boolean h2) throws IOException {
+        final SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(port);
+        if (h2) {
+            final SSLParameters params = socket.getSSLParameters();
+            params.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+            socket.setSSLParameters(params);
+        }
+        return socket;
+    }
+
+    /**
+     * Runs the handshake of an accepted socket, before anything is read from it.
+     */
+    public void handshake(Socket socket) throws IOException {
+        handshakes.handshake((SSLSocket) socket, TlsHandshakes.CLIENT, handshakeTimeoutMillis);
+    }
+
+    /**
+     * Event dispatch for the NIO reactor that runs TLS on every connection. A handshake is timed from
+     * the creation of its connection, as the reactor runs it in steps between other connections' I/O.
+     */
+    public IOEventDispatch createIODispatch(NHttpServerEventHandler handler, ConnectionConfig config) {
+        final SSLSetupHandler setup = new SSLSetupHandler() {
+            public void initalize(SSLEngine engine) {
+            }
+
+            public void verify(IOSession iosession, SSLSession session) {
+                final long[] start = (long[]) iosession.getAttribute(HANDSHAKE_START);
+                if (start != null) {
+                    handshakes.record(TlsHandshakes.CLIENT, session, start[0], System.nanoTime() - start[1]);
+                }
+            }
+        };
+        return new DefaultHttpServerIODispatch(handler, context, setup, config) {
+            @Override
+            protected DefaultNHttpServerConnection createConnection(IOSession session) {
+                session.setAttribute(HANDSHAKE_START, new long[]{System.currentTimeMillis(), System.nanoTime()});
+                return super.createConnection(session);
+            }
+
+            @Override
+            protected void onException(DefaultNHttpServerConnection conn, IOException ex) {
+                if (ex instanceof SSLException) {
+                    handshakes.failed(TlsHandshakes.CLIENT);
+                }
+                super.onException(conn, ex);
+            }
+        };
+    }
+
+    public void shutdown() {
+        keyManager.shutdown();
+    }
+}
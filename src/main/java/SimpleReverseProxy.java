@@ -29,20 +29,47 @@
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 import org.apache.http.*;
-import org.apache.http.impl.DefaultBHttpClientConnection;
-import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.config.ConnectionConfig;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
+import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.impl.pool.BasicPoolEntry;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncExpectationVerifier;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.nio.protocol.HttpAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncService;
+import org.apache.http.nio.protocol.UriHttpAsyncRequestHandlerMapper;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.ListeningIOReactor;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
@@ -62,6 +89,7 @@ import org.apache.http.protocol.ResponseContent;
 import org.apache.http.protocol.ResponseDate;
 import org.apache.http.protocol.ResponseServer;
 import org.apache.http.protocol.UriHttpRequestHandlerMapper;
+import org.apache.http.util.EntityUtils;
 
 /**
  * Elemental HTTP/1.1 reverse proxy.
@@ -72,44 +100,171 @@ public class SimpleReverseProxy {
     private static final Logger LOG = Logger.getLogger(SimpleReverseProxy.class.getName());
 
     private static final String HTTP_IN_CONN = "http.proxy.in-conn";
-    private static final String HTTP_OUT_CONN = "http.proxy.out-conn";
-    private static final String HTTP_CONN_KEEPALIVE = "http.proxy.conn-keepalive";
+    private static final int BUFSIZE = 8 * 1024;
+
+    // Serving modes selectable at startup.
+    private static final String MODE_BLOCKING = "blocking";
+    private static final String MODE_NIO = "nio";
+    private static final String MODE_VIRTUAL = "virtual";
 
     private static final StatusCodeTracker statusCodeTracker = new StatusCodeTracker();
-    private static final ResponseTimeTracker timeTracker = new FixedSlotsResponseTimeTracker();
+    private static final HistogramResponseTimeTracker timeTracker = HistogramResponseTimeTracker.fromSystemProperties();
+    private static final TlsHandshakes tlsHandshakes = new TlsHandshakes();
+    private static final UpstreamTls upstreamTls = UpstreamTls.fromSystemProperties(tlsHandshakes);
+    private static final UpstreamConnectionPool connPool =
+            UpstreamConnectionPool.fromSystemProperties(BUFSIZE, upstreamTls);
+    private static final ResponseCache responseCache = ResponseCache.fromSystemProperties();
+    private static final TrackedUris trackedUris = TrackedUris.fromSystemProperties();
+    private static final ResponseCompressor compressor = ResponseCompressor.fromSystemProperties();
+    private static final RetryPolicy retryPolicy = RetryPolicy.fromSystemProperties();
+    private static final LoadShedder loadShedder = LoadShedder.fromSystemProperties();
+    private static final BodyRelay bodyRelay = BodyRelay.fromSystemProperties();
+    private static final UploadLimits uploadLimits = UploadLimits.fromSystemProperties(bodyRelay);
 
     public static void main(final String[] args) throws Exception {
 
-        // Usage: [listener port]
+        // Usage: [listener port] [blocking|nio|virtual]
         int port = 8080;
         if (args.length >= 1) {
             port = Integer.parseInt(args[0]);
         }
+        String mode = MODE_BLOCKING;
+        if (args.length >= 2) {
+            mode = args[1];
+        }
+
+        final Router router = Router.fromSystemProperties();
+        final HealthChecker healthChecker = HealthChecker.fromSystemProperties(router, upstreamTls);
+        final AccessLog accessLog = AccessLog.fromSystemProperties();
+        final RequestTracer tracer = RequestTracer.fromSystemProperties();
+        final ServerTls serverTls = ServerTls.fromSystemProperties(tlsHandshakes);
+        final Thread t = createListener(port, mode, router, accessLog, tracer, serverTls);
+        final StatsSnapshotter snapshotter = StatsSnapshotter.fromSystemProperties(statusCodeTracker, timeTracker,
+                trackedUris);
+        snapshotter.restore();
 
+        final List<Tracker> trackers = new ArrayList<>(Arrays.asList(statusCodeTracker, timeTracker, trackedUris,
+                connPool, healthChecker, tlsHandshakes, uploadLimits, tracer, snapshotter));
+        if (responseCache != null) {
+            trackers.add(responseCache);
+        }
+        if (compressor != null) {
+            trackers.add(compressor);
+        }
+        if (retryPolicy != null) {
+            trackers.add(retryPolicy);
+        }
+        if (loadShedder != null) {
+            trackers.add(loadShedder);
+        }
+        if (accessLog != null) {
+            trackers.add(accessLog);
+        }
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        executor.scheduleAtFixedRate(new StatsRunner(Arrays.asList(statusCodeTracker, timeTracker)),
-                10L, 10L, TimeUnit.SECONDS);
+        final long dumpIntervalSecs = Long.getLong("proxy.stats.dumpIntervalSecs", 0L);
+        if (dumpIntervalSecs > 0) {
+            executor.scheduleAtFixedRate(new StatsRunner(trackers), dumpIntervalSecs, dumpIntervalSecs,
+                    TimeUnit.SECONDS);
+        }
+        final AdminListenerThread adminListener = AdminListenerThread.fromSystemProperties(trackers, snapshotter);
+        if (adminListener != null) {
+            adminListener.setDaemon(true);
+            adminListener.start();
+        }
 
-        final Thread t = new RequestListenerThread(port, statusCodeTracker, timeTracker);
         t.setDaemon(false);
         t.start();
         t.join();
 
+        if (adminListener != null) {
+            adminListener.shutdown();
+        }
         executor.shutdown();
+        healthChecker.shutdown();
+        if (retryPolicy != null) {
+            retryPolicy.shutdown();
+        }
+        router.shutdown();
+        connPool.shutdown();
+        if (accessLog != null) {
+            accessLog.shutdown();
+        }
+        tracer.shutdown();
+        if (serverTls != null) {
+            serverTls.shutdown();
+        }
+        snapshotter.shutdown();
+    }
+
+    /**
+     * Listener thread serving the given mode, not yet started.
+     *
+     * @param accessLog null if responses are not logged
+     * @param tls       null if the listener serves plain text
+     */
+    static Thread createListener(final int port, final String mode, final Router router,
+                                 final AccessLog accessLog, final RequestTracer tracer,
+                                 final ServerTls tls) throws IOException {
+        final ProxyHandler proxyHandler = createProxyHandler(router, connPool, bodyRelay, uploadLimits, responseCache,
+                compressor, retryPolicy, loadShedder, trackedUris, tracer);
+        if (MODE_NIO.equals(mode)) {
+            return new NioRequestListenerThread(port, statusCodeTracker, timeTracker, accessLog, tracer, proxyHandler,
+                    tls);
+        } else if (MODE_BLOCKING.equals(mode) || MODE_VIRTUAL.equals(mode)) {
+            return new RequestListenerThread(port, statusCodeTracker, timeTracker, accessLog, tracer, proxyHandler, tls,
+                    connectionThreadFactory(MODE_VIRTUAL.equals(mode)),
+                    Integer.getInteger("proxy.maxConnections", Integer.MAX_VALUE));
+        } else {
+            throw new IllegalArgumentException("Unknown serving mode: " + mode);
+        }
     }
 
     static class ProxyHandler implements HttpRequestHandler  {
 
         private final HttpProcessor httpproc;
         private final HttpRequestExecutor httpexecutor;
+        private final Router router;
+        private final UpstreamConnectionPool connPool;
+        private final BodyRelay bodyRelay;
+        private final UploadLimits uploads;
+        // May be null when caching is disabled.
+        private final ResponseCache responseCache;
+        // May be null when compression is disabled.
+        private final ResponseCompressor compressor;
+        // May be null when retries and hedging are disabled.
+        private final RetryPolicy retryPolicy;
+        // May be null when concurrency is not limited.
+        private final LoadShedder loadShedder;
+        private final TrackedUris trackedUris;
+        private final RequestTracer tracer;
         private final ConnectionReuseStrategy connStrategy;
 
         public ProxyHandler(
                 final HttpProcessor httpproc,
-                final HttpRequestExecutor httpexecutor) {
+                final HttpRequestExecutor httpexecutor,
+                final Router router,
+                final UpstreamConnectionPool connPool,
+                final BodyRelay bodyRelay,
+                final UploadLimits uploads,
+                final ResponseCache responseCache,
+                final ResponseCompressor compressor,
+                final RetryPolicy retryPolicy,
+                final LoadShedder loadShedder,
+                final TrackedUris trackedUris,
+                final RequestTracer tracer) {
             super();
             this.httpproc = httpproc;
             this.httpexecutor = httpexecutor;
+            this.router = router;
+            this.connPool = connPool;
+            this.bodyRelay = bodyRelay;
+            this.uploads = uploads;
+            this.responseCache = responseCache;
+            this.compressor = compressor;
+            this.retryPolicy = retryPolicy;
+            this.loadShedder = loadShedder;
+            this.trackedUris = trackedUris;
+            this.tracer = tracer;
             this.connStrategy = DefaultConnectionReuseStrategy.INSTANCE;
         }
 
@@ -118,58 +273,468 @@ public class SimpleReverseProxy {
                 final HttpResponse response,
                 final HttpContext context) throws HttpException, IOException {
 
-            final DefaultBHttpClientConnection conn = (DefaultBHttpClientConnection) context.getAttribute(
-                    HTTP_OUT_CONN);
-
+            RequestContext.get(context).forwarding(System.nanoTime());
             String uri = request.getRequestLine().getUri();
-            HttpHost targetHost = URITargetHostMapping.getTargetHost(uri);
+            final Route route = route(request, context);
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine(">> Request URI: " + uri);
+            }
+
+            final int rejected = this.uploads.check(request);
+            if (rejected != 0) {
+                UploadLimits.reject(request, response, rejected);
+                return;
+            }
+            this.uploads.stream(request);
+            try {
+                handle(uri, route, request, response, context);
+            } finally {
+                UploadLimits.finish(request, response);
+            }
 
-            if (!conn.isOpen() || conn.isStale()) {
-                final Socket outsocket = new Socket(targetHost.getHostName(), targetHost.getPort() >= 0 ? targetHost.getPort() : 80);
-                conn.bind(outsocket);
-                LOG.fine("Outgoing connection to " + outsocket.getInetAddress());
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("<< Response: " + response.getStatusLine());
             }
+        }
 
-            context.setAttribute(HttpCoreContext.HTTP_CONNECTION, conn);
-            context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, targetHost);
+        /**
+         * Checks a request whose client waits for 100 Continue before it sends the body, and answers
+         * it if the body is not wanted.
+         */
+        public void verify(final HttpRequest request, final HttpResponse response, final HttpContext context) {
+            route(request, context);
+            final int rejected = this.uploads.check(request);
+            if (rejected != 0) {
+                UploadLimits.reject(request, response, rejected);
+            }
+        }
 
-            LOG.fine(">> Request URI: " + uri);
+        private Route route(final HttpRequest request, final HttpContext context) {
+            // Set up front so that the trackers see it even if forwarding fails.
+            RequestContext.get(context).setUri(this.trackedUris.key(request.getRequestLine().getUri()));
+            final Route route = this.router.route(request);
+            RequestContext.get(context).setRoute(route.getName());
+            return route;
+        }
 
-            // Remove hop-by-hop headers
-            request.removeHeaders(HTTP.TARGET_HOST);
-            request.removeHeaders(HTTP.CONTENT_LEN);
-            request.removeHeaders(HTTP.TRANSFER_ENCODING);
-            request.removeHeaders(HTTP.CONN_DIRECTIVE);
-            request.removeHeaders("Keep-Alive");
-            request.removeHeaders("Proxy-Authenticate");
-            request.removeHeaders("TE");
-            request.removeHeaders("Trailers");
-            request.removeHeaders("Upgrade");
+        private void handle(
+                final String uri,
+                final Route route,
+                final HttpRequest request,
+                final HttpResponse response,
+                final HttpContext context) throws HttpException, IOException {
+            final boolean limited = this.loadShedder != null && !this.loadShedder.isPriority(uri);
+            if (limited && !this.loadShedder.tryAcquire(route)) {
+                this.loadShedder.reject(response);
+                return;
+            }
+            try {
+                if (this.responseCache != null && this.responseCache.isCacheable(request)) {
+                    this.responseCache.handle(route, request, response,
+                            (upstreamRequest, upstreamResponse) ->
+                                    forward(route, upstreamRequest, upstreamResponse, context));
+                } else {
+                    forward(route, request, response, context);
+                }
+                if (this.compressor != null) {
+                    this.compressor.compress(request, response);
+                }
+            } finally {
+                if (limited) {
+                    final RequestContext requestContext = RequestContext.get(context);
+                    this.loadShedder.release(route, requestContext.getStartNanos(),
+                            response.getStatusLine().getStatusCode(), requestContext.getUpstream() != null);
+                }
+            }
+        }
 
-            this.httpexecutor.preProcess(request, this.httpproc, context);
+        /**
+         * Forwards to the upstream host picked by the route's balancer. A host counts the request as
+         * outstanding, and its latency is sampled, until the response head has been received. With a
+         * retry policy the request may go on to another host, see {@link RetryPolicy}.
+         */
+        private void forward(
+                final Route route,
+                final HttpRequest request,
+                final HttpResponse response,
+                final HttpContext context) throws HttpException, IOException {
 
-            final HttpResponse targetResponse = this.httpexecutor.execute(request, conn, context);
+            UpstreamHost upstream = route.select();
+            if (upstream == null) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("No upstream in service for " + route.getName());
+                }
+                setErrorResponse(response, HttpStatus.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            final long hedgeDelayMicros;
+            if (this.retryPolicy != null) {
+                this.retryPolicy.onRequest();
+                hedgeDelayMicros = this.retryPolicy.hedgeDelayMicros(route, request);
+            } else {
+                hedgeDelayMicros = -1;
+            }
+            Attempt attempt = null;
+            try {
+                for (int retries = 0; ; retries++) {
+                    final Attempt current = new Attempt(route, upstream, request, context);
+                    try {
+                        if (hedgeDelayMicros >= 0) {
+                            attempt = executeHedged(current, hedgeDelayMicros);
+                        } else {
+                            current.execute();
+                            attempt = current;
+                        }
+                        break;
+                    } catch (final IOException ex) {
+                        // Only a request that never got a connection is known not to have reached the upstream.
+                        // The budget is asked first, since a host selected as a half-open trial must be sent
+                        // the request.
+                        if (current.isConnected() || this.retryPolicy == null
+                                || retries >= this.retryPolicy.getMaxConnectRetries()
+                                || !this.retryPolicy.tryRetry()) {
+                            throw ex;
+                        }
+                        final UpstreamHost next = route.selectOther(upstream);
+                        if (next == null) {
+                            this.retryPolicy.returnRetry();
+                            throw ex;
+                        }
+                        if (LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("Upstream " + upstream + " I/O error: " + ex.getMessage()
+                                    + ", retrying on " + next);
+                        }
+                        upstream = next;
+                    }
+                }
+                attempt.complete(response);
+                final RequestContext requestContext = RequestContext.get(context);
+                requestContext.setUpstream(attempt.upstream.toString());
+                requestContext.attempted(attempt.startNanos, attempt.connectedNanos, attempt.headNanos);
+            } catch (final IOException ex) {
+                final IOException clientFailure = UploadLimits.getClientFailure(request);
+                if (clientFailure != null) {
+                    System.err.println("Request body error: " + clientFailure.getMessage());
+                    this.uploads.rejectClientFailure(request, response, clientFailure);
+                    return;
+                }
+                // Nothing has been sent to the client yet, answer for the upstream.
+                System.err.println("Upstream " + (attempt != null ? attempt.upstream : upstream) + " I/O error: "
+                        + ex.getMessage());
+                setErrorResponse(response, ex instanceof SocketTimeoutException
+                        ? HttpStatus.SC_GATEWAY_TIMEOUT : HttpStatus.SC_BAD_GATEWAY);
+            }
+        }
 
-            this.httpexecutor.postProcess(response, this.httpproc, context);
+        /**
+         * Executes the attempt, and sends the request to another host as well if it has not been
+         * answered after the delay. Returns whichever attempt gets its response head first.
+         */
+        private Attempt executeHedged(final Attempt primary, final long delayMicros) throws HttpException, IOException {
+            // Copied before the primary attempt adds its own headers to the request.
+            final BasicHttpRequest copy = new BasicHttpRequest(primary.request.getRequestLine());
+            copy.setHeaders(primary.request.getAllHeaders());
+            final HedgedRequest hedged = new HedgedRequest(primary, copy);
+            final ScheduledFuture<?> timer = this.retryPolicy.scheduleHedge(hedged, () -> hedged.result.complete(null),
+                    delayMicros);
+            try {
+                primary.execute();
+            } catch (final HttpException | IOException | RuntimeException ex) {
+                // Unless the primary was cancelled or the hedge has been sent, the primary's failure stands.
+                if (!primary.isCancelled() && timer.cancel(false)) {
+                    throw ex;
+                }
+                final Attempt hedge = hedged.await();
+                if (hedge == null) {
+                    throw ex;
+                }
+                return hedge;
+            }
+            if (hedged.winner.compareAndSet(null, primary)) {
+                timer.cancel(false);
+                final Attempt hedge = hedged.hedge;
+                if (hedge != null) {
+                    hedge.cancel();
+                }
+                return primary;
+            }
+            // The hedge got its response in just before the primary did.
+            primary.discard();
+            return hedged.await();
+        }
 
-            // Remove hop-by-hop headers
-            targetResponse.removeHeaders(HTTP.CONTENT_LEN);
-            targetResponse.removeHeaders(HTTP.TRANSFER_ENCODING);
-            targetResponse.removeHeaders(HTTP.CONN_DIRECTIVE);
-            targetResponse.removeHeaders("Keep-Alive");
-            targetResponse.removeHeaders("TE");
-            targetResponse.removeHeaders("Trailers");
-            targetResponse.removeHeaders("Upgrade");
+        /**
+         * The second request of a hedged pair, run on a hedge thread once the delay is up.
+         */
+        private final class HedgedRequest implements Runnable {
+            private final Attempt primary;
+            private final HttpRequest request;
+            private final AtomicReference<Attempt> winner = new AtomicReference<>();
+            // The winning hedge, or null if the hedge was not sent or did not win.
+            private final CompletableFuture<Attempt> result = new CompletableFuture<>();
+            private volatile Attempt hedge;
 
-            response.setStatusLine(targetResponse.getStatusLine());
-            response.setHeaders(targetResponse.getAllHeaders());
-            response.setEntity(targetResponse.getEntity());
+            HedgedRequest(final Attempt primary, final HttpRequest request) {
+                this.primary = primary;
+                this.request = request;
+            }
 
-            LOG.fine("<< Response: " + response.getStatusLine());
+            @Override
+            public void run() {
+                Attempt attempt = null;
+                try {
+                    final UpstreamHost upstream;
+                    if (this.winner.get() == null && retryPolicy.tryHedge()
+                            && (upstream = this.primary.route.selectOther(this.primary.upstream)) != null) {
+                        attempt = new Attempt(this.primary.route, upstream, this.request,
+                                new BasicHttpContext(this.primary.context));
+                        this.hedge = attempt;
+                        if (this.winner.get() != null) {
+                            // The primary has been answered meanwhile and may not have seen this attempt.
+                            attempt.cancel();
+                        }
+                        attempt.execute();
+                        if (this.winner.compareAndSet(null, attempt)) {
+                            retryPolicy.hedgeWon();
+                            this.primary.cancel();
+                            this.result.complete(attempt);
+                            return;
+                        }
+                        attempt.discard();
+                    }
+                } catch (final HttpException | IOException | RuntimeException ex) {
+                    if (attempt != null && !attempt.isCancelled() && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Upstream " + attempt.upstream + " I/O error on hedged request: "
+                                + ex.getMessage());
+                    }
+                }
+                this.result.complete(null);
+            }
 
-            final boolean keepalive = this.connStrategy.keepAlive(response, context);
-            context.setAttribute(HTTP_CONN_KEEPALIVE, new Boolean(keepalive));
-            context.setAttribute(Constants.HTTP_REQUEST_URI, request.getRequestLine().getUri());
+            Attempt await() throws InterruptedIOException {
+                try {
+                    return this.result.get();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    // Nobody is left to take the hedge's response.
+                    this.result.thenAccept(attempt -> {
+                        if (attempt != null) {
+                            attempt.discard();
+                        }
+                    });
+                    throw new InterruptedIOException("Interrupted while waiting for hedged request");
+                } catch (final ExecutionException ex) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * One request to one upstream host, up to its response head. Another thread may cancel it,
+         * which shuts its connection down so that a blocked read returns at once.
+         */
+        private final class Attempt {
+            final Route route;
+            final UpstreamHost upstream;
+            final HttpRequest request;
+            final HttpContext context;
+            private volatile BasicPoolEntry poolEntry;
+            private volatile boolean cancelled;
+            private HttpResponse targetResponse;
+            private boolean reusable;
+            // Phase timestamps, read by the thread that completes the attempt.
+            private long startNanos;
+            private long connectedNanos;
+            private long headNanos;
+
+            Attempt(final Route route, final UpstreamHost upstream, final HttpRequest request,
+                    final HttpContext context) {
+                this.route = route;
+                this.upstream = upstream;
+                this.request = request;
+                this.context = context;
+            }
+
+            boolean isConnected() {
+                return this.poolEntry != null;
+            }
+
+            boolean isCancelled() {
+                return this.cancelled;
+            }
+
+            void execute() throws HttpException, IOException {
+                final long start = this.upstream.begin();
+                this.startNanos = start;
+                int status = -1;
+                try {
+                    this.poolEntry = connPool.lease(this.upstream.getHost());
+                    this.connectedNanos = System.nanoTime();
+                    if (this.cancelled) {
+                        throw new InterruptedIOException("Cancelled");
+                    }
+                    final HttpClientConnection conn = this.poolEntry.getConnection();
+                    this.context.setAttribute(HttpCoreContext.HTTP_CONNECTION, conn);
+                    this.context.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, this.upstream.getHost());
+
+                    HopByHopHeaders.strip(this.request);
+
+                    httpexecutor.preProcess(this.request, httpproc, this.context);
+
+                    this.targetResponse = httpexecutor.execute(this.request, conn, this.context);
+                    this.headNanos = System.nanoTime();
+                    this.reusable = connStrategy.keepAlive(this.targetResponse, this.context);
+                    status = this.targetResponse.getStatusLine().getStatusCode();
+                } catch (final HttpException | IOException | RuntimeException ex) {
+                    if (this.poolEntry != null) {
+                        connPool.release(this.poolEntry, false);
+                    }
+                    throw ex;
+                } finally {
+                    // The upstream is not to blame for a request body the client failed to send.
+                    if (status < 0 && (this.cancelled || UploadLimits.getClientFailure(this.request) != null)) {
+                        this.upstream.cancel();
+                    } else {
+                        this.upstream.end(start, status);
+                    }
+                    if (retryPolicy != null && (status >= 0 || this.cancelled)) {
+                        retryPolicy.record(this.route, (System.nanoTime() - start) / 1000L);
+                    }
+                }
+            }
+
+            void cancel() {
+                this.cancelled = true;
+                final BasicPoolEntry entry = this.poolEntry;
+                if (entry != null) {
+                    try {
+                        entry.getConnection().shutdown();
+                    } catch (final IOException ignore) {}
+                }
+            }
+
+            /**
+             * Gives up a response that lost the race, its body is not worth reading.
+             */
+            void discard() {
+                connPool.release(this.poolEntry, false);
+            }
+
+            /**
+             * Answers the client with the upstream response.
+             */
+            void complete(final HttpResponse response) throws HttpException, IOException {
+                try {
+                    httpexecutor.postProcess(response, httpproc, this.context);
+
+                    response.setStatusLine(this.targetResponse.getStatusLine());
+                    HopByHopHeaders.copy(this.targetResponse, response);
+
+                    // The upstream connection goes back to the pool once the body has been relayed.
+                    final HttpEntity entity = this.targetResponse.getEntity();
+                    if (entity != null) {
+                        final HttpEntity relayed = bodyRelay.wrap(entity, this.poolEntry.getConnection(),
+                                (HttpConnection) this.context.getAttribute(HTTP_IN_CONN));
+                        final RequestContext requestContext = RequestContext.get(this.context);
+                        requestContext.relaying();
+                        response.setEntity(connPool.releaseOnCompletion(relayed, this.poolEntry, this.reusable,
+                                () -> tracer.relayed(requestContext)));
+                    } else {
+                        response.setEntity(null);
+                        connPool.release(this.poolEntry, this.reusable);
+                    }
+                } catch (final HttpException | IOException | RuntimeException ex) {
+                    connPool.release(this.poolEntry, false);
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    static void setErrorResponse(final HttpResponse response, final int status) {
+        response.setStatusCode(status);
+        response.setHeaders(HopByHopHeaders.NONE);
+        response.setEntity(null);
+    }
+
+    /**
+     * HTTP protocol processor for incoming connections, shared by all serving modes.
+     */
+    static HttpProcessor createInboundProcessor(final StatusCodeTracker statusCodeTracker,
+                                                final ResponseTimeTracker responseTimeTracker,
+                                                final AccessLog accessLog,
+                                                final RequestTracer tracer) {
+        final List<HttpResponseInterceptor> responseInterceptors = new ArrayList<>(Arrays.asList(
+                new ResponseDate(),
+                new ResponseServer("Test/1.1"),
+                new ResponseContent(),
+                // ResponseContent frames every response, but 1xx responses have no body.
+                (response, context) -> {
+                    if (response.getStatusLine().getStatusCode() < HttpStatus.SC_OK) {
+                        response.removeHeaders(HTTP.CONTENT_LEN);
+                    }
+                },
+                new ResponseConnControl(),
+                statusCodeTracker,
+                responseTimeTracker,
+                tracer));
+        if (accessLog != null) {
+            responseInterceptors.add(accessLog);
+        }
+        return new ImmutableHttpProcessor(
+                new HttpRequestInterceptor[] {
+                        responseTimeTracker,
+                        // After the clock has been started, and before the request is forwarded.
+                        tracer
+                },
+                responseInterceptors.toArray(new HttpResponseInterceptor[0]));
+    }
+
+    static ProxyHandler createProxyHandler(final Router router,
+                                           final UpstreamConnectionPool connPool,
+                                           final BodyRelay bodyRelay,
+                                           final UploadLimits uploadLimits,
+                                           final ResponseCache responseCache,
+                                           final ResponseCompressor compressor,
+                                           final RetryPolicy retryPolicy,
+                                           final LoadShedder loadShedder,
+                                           final TrackedUris trackedUris,
+                                           final RequestTracer tracer) {
+        // Set up HTTP protocol processor for outgoing connections
+        final HttpProcessor outhttpproc = new ImmutableHttpProcessor(
+                new RequestContent(),
+                new RequestTargetHost(),
+                new RequestConnControl(),
+                new RequestUserAgent("Test/1.1"),
+                new RequestExpectContinue(true));
+
+        // Set up outgoing request executor
+        final HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
+
+        return new ProxyHandler(outhttpproc, httpexecutor, router, connPool, bodyRelay, uploadLimits,
+                responseCache, compressor, retryPolicy, loadShedder, trackedUris, tracer);
+    }
+
+    /**
+     * Creates the threads that serve client connections. Virtual threads are looked up reflectively
+     * so that the proxy still builds and runs on JVMs without them.
+     */
+    static ThreadFactory connectionThreadFactory(final boolean virtual) {
+        if (!virtual) {
+            return r -> {
+                final Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "proxy-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (final ReflectiveOperationException ex) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later", ex);
         }
     }
 
@@ -177,64 +742,86 @@ public class SimpleReverseProxy {
 
         private final ServerSocket serversocket;
         private final HttpService httpService;
+        // Null if HTTP/2 is disabled.
+        private final Http2Service http2Service;
+        // Null if the listener serves plain text.
+        private final ServerTls tls;
+        private final ThreadFactory threadFactory;
+        // Bounds the number of client connections served at once, further clients wait in the accept backlog.
+        private final Semaphore admission;
 
         public RequestListenerThread(final int port,
                                      final StatusCodeTracker statusCodeTracker,
-                                     final ResponseTimeTracker responseTimeTracker) throws IOException {
-            this.serversocket = new ServerSocket(port);
-
-            // Set up HTTP protocol processor for incoming connections
-            final HttpProcessor inhttpproc = new ImmutableHttpProcessor(
-                    new ResponseDate(),
-                    new ResponseServer("Test/1.1"),
-                    new ResponseContent(),
-                    new ResponseConnControl(),
-                    statusCodeTracker,
-                    responseTimeTracker);
-
-            // Set up HTTP protocol processor for outgoing connections
-            final HttpProcessor outhttpproc = new ImmutableHttpProcessor(
-                    new RequestContent(),
-                    new RequestTargetHost(),
-                    new RequestConnControl(),
-                    new RequestUserAgent("Test/1.1"),
-                    new RequestExpectContinue(true));
-
-            // Set up outgoing request executor
-            final HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
+                                     final ResponseTimeTracker responseTimeTracker,
+                                     final AccessLog accessLog,
+                                     final RequestTracer tracer,
+                                     final ProxyHandler proxyHandler,
+                                     final ServerTls tls,
+                                     final ThreadFactory threadFactory,
+                                     final int maxConnections) throws IOException {
+            this.tls = tls;
+            this.threadFactory = threadFactory;
+            this.admission = new Semaphore(maxConnections);
 
-            // Set up incoming request handler
-            final UriHttpRequestHandlerMapper reqistry = new UriHttpRequestHandlerMapper();
+            final HttpProcessor inhttpproc = createInboundProcessor(statusCodeTracker, responseTimeTracker, accessLog,
+                    tracer);
+            this.http2Service = Http2Service.fromSystemProperties(inhttpproc, proxyHandler, threadFactory);
+            this.serversocket = tls != null
+                    ? tls.createServerSocket(port, this.http2Service != null) : new ServerSocket(port);
 
-            ProxyHandler proxyHandler = new ProxyHandler(outhttpproc, httpexecutor);
-            reqistry.register("*", proxyHandler);
+            // Set up incoming request handler, over TLS HTTP/2 is only negotiated with ALPN and h2c
+            // upgrades are ignored, RFC 7540 section 3.3.
+            final UriHttpRequestHandlerMapper reqistry = new UriHttpRequestHandlerMapper();
+            reqistry.register("*", this.http2Service != null && tls == null
+                    ? this.http2Service.upgradeHandler(proxyHandler) : proxyHandler);
 
-            // Set up the HTTP service
-            this.httpService = new HttpService(inhttpproc, reqistry);
+            // Set up the HTTP service, answering 100-continue expectations once the request has been checked
+            this.httpService = new HttpService(inhttpproc, DefaultConnectionReuseStrategy.INSTANCE,
+                    DefaultHttpResponseFactory.INSTANCE, reqistry, (request, response, context) -> {
+                        // The request interceptors only run once the expectation has been met.
+                        RequestContext.get(context).begin(System.nanoTime());
+                        proxyHandler.verify(request, response, context);
+                    });
         }
 
         @Override
         public void run() {
-            LOG.fine("Listening on port " + this.serversocket.getLocalPort());
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Listening on port " + this.serversocket.getLocalPort());
+            }
             while (!Thread.interrupted()) {
                 try {
-                    final int bufsize = 8 * 1024;
+                    this.admission.acquire();
+                } catch (final InterruptedException ex) {
+                    break;
+                }
+                try {
                     // Set up incoming HTTP connection
                     final Socket insocket = this.serversocket.accept();
-                    final DefaultBHttpServerConnection inconn = new DefaultBHttpServerConnection(bufsize);
-                    LOG.fine("Incoming connection from " + insocket.getInetAddress());
-                    inconn.bind(insocket);
-
-                    // Set up outgoing HTTP connection
-                    final DefaultBHttpClientConnection outconn = new DefaultBHttpClientConnection(bufsize);
+                    final long acceptedNanos = System.nanoTime();
+                    // Response heads and bodies are written separately, Nagle would hold back the body
+                    // until the client's delayed ACK of the head.
+                    insocket.setTcpNoDelay(true);
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Incoming connection from " + insocket.getInetAddress());
+                    }
 
-                    // Start worker thread
-                    final Thread t = new ProxyThread(this.httpService, inconn, outconn);
-                    t.setDaemon(true);
+                    // Start worker thread, which binds the connection once it knows the protocol
+                    final ProxyThread proxyThread = new ProxyThread(this.httpService, this.http2Service,
+                            this.tls, new RelayServerConnection(BUFSIZE), insocket, acceptedNanos);
+                    final Thread t = this.threadFactory.newThread(() -> {
+                        try {
+                            proxyThread.run();
+                        } finally {
+                            this.admission.release();
+                        }
+                    });
                     t.start();
                 } catch (final InterruptedIOException ex) {
+                    this.admission.release();
                     break;
                 } catch (final IOException e) {
+                    this.admission.release();
                     System.err.println("I/O error initialising connection thread: "
                             + e.getMessage());
                     break;
@@ -243,20 +830,189 @@ public class SimpleReverseProxy {
         }
     }
 
-    static class ProxyThread extends Thread {
+    /**
+     * Event driven listener built on the httpcore NIO reactor. A fixed number of I/O dispatch
+     * threads per core multiplex all client connections, so idle keep-alive clients cost no thread.
+     * Requests are handed to a bounded worker pool that runs the blocking {@link ProxyHandler}
+     * against the upstream, with the request body streamed in through a bounded buffer, and the
+     * buffered response is written back by the reactor.
+     */
+    static class NioRequestListenerThread extends Thread {
+
+        private final int port;
+        private final ListeningIOReactor ioReactor;
+        private final IOEventDispatch ioEventDispatch;
+
+        public NioRequestListenerThread(final int port,
+                                        final StatusCodeTracker statusCodeTracker,
+                                        final ResponseTimeTracker responseTimeTracker,
+                                        final AccessLog accessLog,
+                                        final RequestTracer tracer,
+                                        final ProxyHandler proxyHandler,
+                                        final ServerTls tls) throws IOException {
+            this.port = port;
+
+            final int cores = Runtime.getRuntime().availableProcessors();
+            final int ioThreads = cores * Integer.getInteger("proxy.nio.ioThreadsPerCore", 1);
+            final int workers = Integer.getInteger("proxy.nio.workers", cores * 16);
+            final ExecutorService workerPool = Executors.newFixedThreadPool(workers, r -> {
+                final Thread t = new Thread(r, "proxy-worker");
+                t.setDaemon(true);
+                return t;
+            });
+
+            // Set up incoming request handler
+            final NioProxyHandler nioProxyHandler = new NioProxyHandler(proxyHandler, workerPool);
+            final UriHttpAsyncRequestHandlerMapper reqistry = new UriHttpAsyncRequestHandlerMapper();
+            reqistry.register("*", nioProxyHandler);
+
+            // Set up the HTTP service
+            final HttpAsyncService protocolHandler = new HttpAsyncService(
+                    createInboundProcessor(statusCodeTracker, responseTimeTracker, accessLog, tracer),
+                    DefaultConnectionReuseStrategy.INSTANCE, DefaultHttpResponseFactory.INSTANCE, reqistry,
+                    nioProxyHandler) {
+                @Override
+                protected HttpAsyncResponseProducer handleException(final Exception ex, final HttpContext context) {
+                    if (!(ex instanceof UploadLimits.RejectedException)) {
+                        return super.handleException(ex, context);
+                    }
+                    final HttpResponse response = DefaultHttpResponseFactory.INSTANCE.newHttpResponse(
+                            HttpVersion.HTTP_1_1, ((UploadLimits.RejectedException) ex).getStatus(), context);
+                    response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+                    return new BasicAsyncResponseProducer(response);
+                }
+            };
+
+            final IOReactorConfig config = IOReactorConfig.custom()
+                    .setIoThreadCount(ioThreads)
+                    .setTcpNoDelay(true)
+                    .build();
+            this.ioReactor = new DefaultListeningIOReactor(config);
+            final ConnectionConfig cconfig = ConnectionConfig.custom().setBufferSize(BUFSIZE).build();
+            this.ioEventDispatch = tls != null
+                    ? tls.createIODispatch(protocolHandler, cconfig)
+                    : new DefaultHttpServerIODispatch(protocolHandler, cconfig);
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.ioReactor.listen(new InetSocketAddress(this.port));
+                LOG.fine("Listening on port " + this.port);
+                this.ioReactor.execute(this.ioEventDispatch);
+            } catch (final InterruptedIOException ex) {
+                System.err.println("Interrupted");
+            } catch (final IOException e) {
+                System.err.println("I/O error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adapts {@link ProxyHandler} to the async service. A request is handed to a worker as soon as
+     * its body starts to arrive, and its body is streamed to the worker, see
+     * {@link StreamingRequestConsumer}.
+     */
+    static class NioProxyHandler implements HttpAsyncRequestHandler<StreamingRequestConsumer>,
+            HttpAsyncExpectationVerifier {
+
+        private final ProxyHandler proxyHandler;
+        private final ExecutorService workerPool;
+
+        public NioProxyHandler(final ProxyHandler proxyHandler, final ExecutorService workerPool) {
+            this.proxyHandler = proxyHandler;
+            this.workerPool = workerPool;
+        }
+
+        public void verify(final HttpAsyncExchange httpexchange, final HttpContext context) {
+            this.proxyHandler.verify(httpexchange.getRequest(), httpexchange.getResponse(), context);
+            httpexchange.submitResponse();
+        }
+
+        public HttpAsyncRequestConsumer<StreamingRequestConsumer> processRequest(
+                final HttpRequest request,
+                final HttpContext context) {
+            final NHttpConnection inconn = (NHttpConnection) context.getAttribute(HttpCoreContext.HTTP_CONNECTION);
+            return new StreamingRequestConsumer(request, this.proxyHandler.uploads, this.proxyHandler.bodyRelay,
+                    consumer -> this.workerPool.execute(() -> forward(consumer, inconn, context)));
+        }
+
+        private void forward(final StreamingRequestConsumer consumer, final NHttpConnection inconn,
+                             final HttpContext context) {
+            final HttpResponse response = DefaultHttpResponseFactory.INSTANCE.newHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpStatus.SC_OK, context);
+            try {
+                this.proxyHandler.handle(consumer.getRequest(), response, context);
+
+                // Drain the upstream body here so the reactor thread never blocks on it.
+                final HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    final NByteArrayEntity buffered = new NByteArrayEntity(EntityUtils.toByteArray(entity));
+                    buffered.setContentType(entity.getContentType());
+                    buffered.setContentEncoding(entity.getContentEncoding());
+                    response.setEntity(buffered);
+                }
+            } catch (final HttpException ex) {
+                System.err.println("Unrecoverable HTTP protocol violation: " + ex.getMessage());
+                setErrorResponse(response, HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            } catch (final IOException ex) {
+                System.err.println("I/O error: " + ex.getMessage());
+                setErrorResponse(response, HttpStatus.SC_BAD_GATEWAY);
+            } catch (final RuntimeException ex) {
+                LOG.log(Level.WARNING, "Error handling request", ex);
+                setErrorResponse(response, HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                consumer.release();
+                // ProxyHandler points the context at the upstream connection, restore the inbound one.
+                context.setAttribute(HttpCoreContext.HTTP_CONNECTION, inconn);
+                // Always completed, the client connection waits on it for a response.
+                consumer.getResponse().complete(response);
+            }
+        }
+
+        /**
+         * Called once the whole request body has been received, the response is submitted once the
+         * worker has it.
+         */
+        public void handle(
+                final StreamingRequestConsumer consumer,
+                final HttpAsyncExchange httpexchange,
+                final HttpContext context) {
+            consumer.getResponse().thenAccept(response ->
+                    httpexchange.submitResponse(new BasicAsyncResponseProducer(response)));
+        }
+
+    }
+
+    /**
+     * Serves the requests of one client connection, on either a platform or a virtual thread. A
+     * client that starts with the HTTP/2 connection preface, or upgrades to h2c, is served in HTTP/2.
+     */
+    static class ProxyThread implements Runnable {
 
         private final HttpService httpservice;
-        private final DefaultBHttpServerConnection inconn;
-        private final DefaultBHttpClientConnection outconn;
+        // Null if HTTP/2 is disabled.
+        private final Http2Service http2service;
+        // Null if the listener serves plain text.
+        private final ServerTls tls;
+        private final RelayServerConnection inconn;
+        private final Socket insocket;
+        private final long acceptedNanos;
 
         public ProxyThread(
                 final HttpService httpservice,
-                final DefaultBHttpServerConnection inconn,
-                final DefaultBHttpClientConnection outconn) {
+                final Http2Service http2service,
+                final ServerTls tls,
+                final RelayServerConnection inconn,
+                final Socket insocket,
+                final long acceptedNanos) {
             super();
             this.httpservice = httpservice;
+            this.http2service = http2service;
+            this.tls = tls;
             this.inconn = inconn;
-            this.outconn = outconn;
+            this.insocket = insocket;
+            this.acceptedNanos = acceptedNanos;
         }
 
         @Override
@@ -266,24 +1022,31 @@ public class SimpleReverseProxy {
 
             // Bind connection objects to the execution context
             context.setAttribute(HTTP_IN_CONN, this.inconn);
-            context.setAttribute(HTTP_OUT_CONN, this.outconn);
+            RequestContext.get(context).accepted(this.acceptedNanos);
 
             try {
+                if (this.tls != null) {
+                    this.tls.handshake(this.insocket);
+                }
+                final PushbackInputStream in =
+                        new PushbackInputStream(this.insocket.getInputStream(), Http2Service.PREFACE.length);
+                if (this.http2service != null && Http2Service.readPreface(in)) {
+                    this.http2service.serve(this.insocket, in, null);
+                    return;
+                }
+                this.inconn.bind(this.insocket, in);
                 while (!Thread.interrupted()) {
                     if (!this.inconn.isOpen()) {
-                        this.outconn.close();
                         break;
                     }
 
-                    context.setAttribute(Constants.HTTP_REQUEST_START_TIME, System.nanoTime());
-
+                    // Closes the connection itself when the response does not allow keep-alive.
                     this.httpservice.handleRequest(this.inconn, context);
 
-                    final Boolean keepalive = (Boolean) context.getAttribute(HTTP_CONN_KEEPALIVE);
-                    if (!Boolean.TRUE.equals(keepalive)) {
-                        this.outconn.close();
-                        this.inconn.close();
-                        break;
+                    final HttpRequest upgrade = (HttpRequest) context.getAttribute(Http2Service.UPGRADE_REQUEST);
+                    if (upgrade != null) {
+                        this.http2service.serve(this.insocket, in, upgrade);
+                        return;
                     }
                 }
             } catch (final ConnectionClosedException ex) {
@@ -295,9 +1058,7 @@ public class SimpleReverseProxy {
             } finally {
                 try {
                     this.inconn.shutdown();
-                } catch (final IOException ignore) {}
-                try {
-                    this.outconn.shutdown();
+                    this.insocket.close();
                 } catch (final IOException ignore) {}
             }
         }
@@ -0,0 +1,194 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes the spans of sampled requests to a size rotated file, a JSON object per line, without
+ * the request threads ever waiting on the file, see {@link RecordLog}. A span has the trace, the
+ * proxy's span and the caller's span if there was one, start time and duration in microseconds,
+ * status, route, upstream and tracked URI, and the microseconds spent in each phase the request
+ * went through, see {@link RequestTracer}:
+ *
+ *     {"traceId":"4bf92f3577b34da6a3ce929d0e0e4736","spanId":"e457b5a2e4d86bd1","parentSpanId":"00f067aa0ba902b7",
+ *      "startMicros":1792222033173120,"durationMicros":1734,"status":200,"route":"prefix /static/",
+ *      "upstream":"http://static1:8080","uri":"/static/app.js",
+ *      "phases":{"queue":12,"connect":310,"upstream":1201,"transfer":198}}
+ */
+@ThreadSafe
+class SpanLog extends RecordLog implements Tracker {
+    // Longs per record: start, trace id, parent and own span id, status and names packed 16 bits
+    // each, and the phases, the total duration among them.
+    private static final int RECORD_LONGS = 6 + RequestTracer.PHASES.length;
+    // Field names and punctuation, three names, ids and numbers of up to 20 digits.
+    private static final int MAX_LINE_BYTES = 512 + 3 * MAX_NAME_BYTES;
+    private static final byte[] NULL = bytes("null");
+    private static final byte[] TRACE_ID = bytes("{\"traceId\":\"");
+    private static final byte[] SPAN_ID = bytes("\",\"spanId\":\"");
+    private static final byte[] PARENT_SPAN_ID = bytes("\",\"parentSpanId\":\"");
+    private static final byte[] START = bytes("\",\"startMicros\":");
+    private static final byte[] DURATION = bytes(",\"durationMicros\":");
+    private static final byte[] STATUS = bytes(",\"status\":");
+    private static final byte[] ROUTE = bytes(",\"route\":");
+    private static final byte[] UPSTREAM = bytes(",\"upstream\":");
+    private static final byte[] URI = bytes(",\"uri\":");
+    private static final byte[] PHASES = bytes(",\"phases\":{");
+    private static final byte[] END = bytes("}}\n");
+    private static final byte[][] PHASE_NAMES = new byte[RequestTracer.PHASES.length][];
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    static {
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            PHASE_NAMES[i] = bytes('"' + RequestTracer.PHASES[i] + "\":");
+        }
+    }
+
+    /**
+     * @param bufferRecords records the ring holds, rounded up to a power of two
+     * @param maxFileBytes  size at which the file is rotated
+     * @param maxFiles      rotated files kept besides the current one
+     */
+    public SpanLog(Path file, int bufferRecords, long maxFileBytes, int maxFiles) throws IOException {
+        // Sampled spans are few next to access log lines, so a smaller batch and the same pause do.
+        super("span log", file, RECORD_LONGS, MAX_LINE_BYTES, bufferRecords, 64 * 1024, maxFileBytes, maxFiles,
+                100L);
+    }
+
+    /**
+     * Span log configured from system properties, or null when no file is configured.
+     */
+    public static SpanLog fromSystemProperties() throws IOException {
+        final String file = System.getProperty("proxy.trace.file");
+        if (file == null) {
+            return null;
+        }
+        return new SpanLog(Paths.get(file),
+                Integer.getInteger("proxy.trace.bufferRecords", 16384),
+                Long.getLong("proxy.trace.maxFileBytes", 100L * 1024 * 1024),
+                Integer.getInteger("proxy.trace.maxFiles", 5));
+    }
+
+    /**
+     * Stores the span of a request that is done with, or drops it if the writer has fallen a full
+     * ring behind.
+     *
+     * @param phaseMicros microseconds spent in each of {@link RequestTracer#PHASES}, -1 for the
+     *                    phases the request did not go through
+     */
+    void log(RequestContext requestContext, long startMicros, long[] phaseMicros) {
+        final long seq = claim();
+        if (seq < 0) {
+            return;
+        }
+        final int base = base(seq);
+        records[base] = startMicros;
+        records[base + 1] = requestContext.getTraceIdHigh();
+        records[base + 2] = requestContext.getTraceIdLow();
+        records[base + 3] = requestContext.getParentSpanId();
+        records[base + 4] = requestContext.getSpanId();
+        records[base + 5] = (long) (requestContext.getStatus() & 0xFFFF) << 48
+                | (long) id(requestContext.getRoute()) << 32
+                | (long) id(requestContext.getUpstream()) << 16
+                | id(requestContext.getUri());
+        System.arraycopy(phaseMicros, 0, records, base + 6, phaseMicros.length);
+        publish(seq);
+    }
+
+    /**
+     * A JSON string, cut short to fit {@link #MAX_NAME_BYTES}.
+     */
+    @Override
+    protected byte[] encode(String name) {
+        final StringBuilder json = new StringBuilder(name.length() + 2).append('"');
+        // Closing quote included.
+        int bytes = 2;
+        for (int i = 0; i < name.length(); ) {
+            final int c = name.codePointAt(i);
+            i += Character.charCount(c);
+            final String escaped = c == '"' || c == '\\' ? "\\" + (char) c
+                    : c < 0x20 ? String.format("\\u%04x", c) : new String(Character.toChars(c));
+            final int length = escaped.getBytes(StandardCharsets.UTF_8).length;
+            if (bytes + length > MAX_NAME_BYTES) {
+                break;
+            }
+            json.append(escaped);
+            bytes += length;
+        }
+        return json.append('"').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void format(int base, byte[][] names) {
+        final long packed = records[base + 5];
+        buffer.put(TRACE_ID);
+        writeHex(records[base + 1]);
+        writeHex(records[base + 2]);
+        buffer.put(SPAN_ID);
+        writeHex(records[base + 4]);
+        if (records[base + 3] != 0) {
+            buffer.put(PARENT_SPAN_ID);
+            writeHex(records[base + 3]);
+        }
+        buffer.put(START);
+        writeNumber(records[base]);
+        buffer.put(DURATION);
+        writeNumber(records[base + 6 + RequestTracer.TOTAL]);
+        buffer.put(STATUS);
+        writeNumber((packed >>> 48) & 0xFFFF);
+        buffer.put(ROUTE);
+        writeJsonName(names, (int) (packed >>> 32) & 0xFFFF);
+        buffer.put(UPSTREAM);
+        writeJsonName(names, (int) (packed >>> 16) & 0xFFFF);
+        buffer.put(URI);
+        writeJsonName(names, (int) packed & 0xFFFF);
+        buffer.put(PHASES);
+        boolean first = true;
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            final long micros = records[base + 6 + i];
+            if (i == RequestTracer.TOTAL || micros < 0) {
+                continue;
+            }
+            if (!first) {
+                buffer.put((byte) ',');
+            }
+            first = false;
+            buffer.put(PHASE_NAMES[i]);
+            writeNumber(micros);
+        }
+        buffer.put(END);
+    }
+
+    private void writeJsonName(byte[][] names, int id) {
+        if (id == 0 || id >= names.length) {
+            buffer.put(NULL);
+        } else {
+            writeName(names, id);
+        }
+    }
+
+    private void writeHex(long value) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buffer.put(HEX[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping span log statistics...");
+        System.out.println("Written: " + written + " dropped: " + dropped + " rotations: " + rotations);
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_trace_spans", "counter", "Spans of sampled requests written.");
+        writer.sample("proxy_trace_spans_total", written.sum());
+        writer.family("proxy_trace_spans_dropped", "counter", "Spans dropped because the buffer was full.");
+        writer.sample("proxy_trace_spans_dropped_total", dropped.sum());
+        writer.family("proxy_trace_span_log_rotations", "counter", "Times the span log file was rotated.");
+        writer.sample("proxy_trace_span_log_rotations_total", rotations.sum());
+    }
+}
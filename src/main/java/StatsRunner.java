@@ -12,14 +12,14 @@ class StatsRunner implements Runnable {
 
     @Override
     public void run() {
-        try {
-            for (Tracker tracker : trackers) {
+        // A failing tracker must not take down the others, nor cancel the schedule by throwing.
+        for (Tracker tracker : trackers) {
+            try {
                 tracker.dumpStats();
+            } catch (RuntimeException e) {
+                System.err.println("Error in dumping statistics of " + tracker.getClass().getName());
+                e.printStackTrace();
             }
-        } catch (Exception e) {
-            System.err.println("Error in executing statistics dumper. It will no longer be run!");
-            e.printStackTrace();
-            throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,316 @@
+import org.apache.http.annotation.NotThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Status code counts and response time histograms of a proxy, or of several merged, since they
+ * started counting. Histograms keep the full resolution of {@link LogLinearHistogram}, so that
+ * merging the snapshots of many proxies gives the same percentiles as if one proxy had served all
+ * their requests. Snapshots can only be merged with snapshots of the same histogram layout.
+ *
+ * The binary format starts with the magic "RPSS" and is otherwise made of unsigned varints: the
+ * version, creation time in epoch millis, number of proxies merged, highest trackable microseconds
+ * and significant digits of the histograms, then the table of URIs, each a length and UTF-8 bytes,
+ * then the status code counts and the histograms. Both are a number of URIs, each followed by its
+ * table index and the number of non-empty buckets, and those by the bucket's index, as a delta from
+ * the previous one, and count. A snapshot's end is known from its content, so snapshots can be
+ * concatenated.
+ *
+ * Usage: StatsSnapshot merge [output] [snapshot files]... | print [snapshot files]...
+ */
+@NotThreadSafe
+class StatsSnapshot {
+    private static final byte[] MAGIC = "RPSS".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private long createdMillis;
+    private long nodes;
+    private final long highestTrackableMicros;
+    private final int significantDigits;
+    private final TreeMap<String, LogLinearHistogram.Snapshot> statusCodes = new TreeMap<>();
+    private final TreeMap<String, LogLinearHistogram.Snapshot> responseTimes = new TreeMap<>();
+
+    public StatsSnapshot(long createdMillis, long highestTrackableMicros, int significantDigits) {
+        this.createdMillis = createdMillis;
+        this.nodes = 1;
+        this.highestTrackableMicros = highestTrackableMicros;
+        this.significantDigits = significantDigits;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public long getNodes() {
+        return nodes;
+    }
+
+    public long getHighestTrackableMicros() {
+        return highestTrackableMicros;
+    }
+
+    public int getSignificantDigits() {
+        return significantDigits;
+    }
+
+    /**
+     * Counts per status code of each URI.
+     */
+    public Map<String, LogLinearHistogram.Snapshot> getStatusCodes() {
+        return statusCodes;
+    }
+
+    /**
+     * Response time histogram of each URI, in microseconds.
+     */
+    public Map<String, LogLinearHistogram.Snapshot> getResponseTimes() {
+        return responseTimes;
+    }
+
+    public void addStatusCodes(String uri, LogLinearHistogram.Snapshot counts) {
+        statusCodes.merge(uri, counts, LogLinearHistogram.Snapshot::merge);
+    }
+
+    public void addResponseTimes(String uri, LogLinearHistogram.Snapshot histogram) {
+        responseTimes.merge(uri, histogram, LogLinearHistogram.Snapshot::merge);
+    }
+
+    /**
+     * Adds the counts of another snapshot to this one.
+     *
+     * @throws IllegalArgumentException if the other snapshot's histograms have another layout
+     */
+    public void merge(StatsSnapshot other) {
+        if (other.highestTrackableMicros != highestTrackableMicros || other.significantDigits != significantDigits) {
+            throw new IllegalArgumentException("Cannot merge histograms of " + other.highestTrackableMicros +
+                    " microsecs with " + other.significantDigits + " significant digits into histograms of " +
+                    highestTrackableMicros + " microsecs with " + significantDigits + " significant digits");
+        }
+        createdMillis = Math.max(createdMillis, other.createdMillis);
+        nodes += other.nodes;
+        other.statusCodes.forEach(this::addStatusCodes);
+        other.responseTimes.forEach(this::addResponseTimes);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        writeVarint(out, VERSION);
+        writeVarint(out, createdMillis);
+        writeVarint(out, nodes);
+        writeVarint(out, highestTrackableMicros);
+        writeVarint(out, significantDigits);
+
+        // Most URIs have both status codes and response times, intern them once.
+        final Map<String, Integer> table = new HashMap<>();
+        final TreeMap<String, Boolean> uris = new TreeMap<>();
+        statusCodes.keySet().forEach(uri -> uris.put(uri, Boolean.TRUE));
+        responseTimes.keySet().forEach(uri -> uris.put(uri, Boolean.TRUE));
+        writeVarint(out, uris.size());
+        for (String uri : uris.keySet()) {
+            table.put(uri, table.size());
+            final byte[] bytes = uri.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        writeSection(out, statusCodes, table);
+        writeSection(out, responseTimes, table);
+    }
+
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        try {
+            writeTo(out);
+        } catch (final IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeSection(OutputStream out, Map<String, LogLinearHistogram.Snapshot> section,
+                                     Map<String, Integer> table) throws IOException {
+        writeVarint(out, section.size());
+        for (Map.Entry<String, LogLinearHistogram.Snapshot> entry : section.entrySet()) {
+            final LogLinearHistogram.Snapshot counts = entry.getValue();
+            writeVarint(out, table.get(entry.getKey()));
+            writeVarint(out, counts.size());
+            int previous = 0;
+            for (int i = 0; i < counts.size(); i++) {
+                writeVarint(out, counts.indexAt(i) - previous);
+                writeVarint(out, counts.countAt(i));
+                previous = counts.indexAt(i);
+            }
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads a snapshot from the buffer's position and leaves the position after it.
+     *
+     * @throws IOException if the bytes are not a snapshot of a known version
+     */
+    public static StatsSnapshot read(ByteBuffer in) throws IOException {
+        try {
+            final byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a stats snapshot");
+            }
+            final long version = readVarint(in);
+            if (version != VERSION) {
+                throw new IOException("Unknown stats snapshot version " + version);
+            }
+            final long createdMillis = readVarint(in);
+            final long nodes = readVarint(in);
+            final long highestTrackableMicros = readVarint(in);
+            final long significantDigits = readVarint(in);
+            final StatsSnapshot snapshot = new StatsSnapshot(createdMillis, highestTrackableMicros,
+                    (int) significantDigits);
+            snapshot.nodes = nodes;
+
+            final String[] table = new String[length(in)];
+            for (int i = 0; i < table.length; i++) {
+                final byte[] bytes = new byte[length(in)];
+                in.get(bytes);
+                table[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            readSection(in, table, snapshot.statusCodes);
+            readSection(in, table, snapshot.responseTimes);
+            return snapshot;
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new IOException("Truncated or corrupt stats snapshot", ex);
+        }
+    }
+
+    /**
+     * Reads and merges all the snapshots concatenated in the buffer.
+     */
+    public static StatsSnapshot readAll(ByteBuffer in) throws IOException {
+        final StatsSnapshot merged = read(in);
+        while (in.hasRemaining()) {
+            merged.merge(read(in));
+        }
+        return merged;
+    }
+
+    private static void readSection(ByteBuffer in, String[] table, Map<String, LogLinearHistogram.Snapshot> section)
+            throws IOException {
+        final int entries = length(in);
+        for (int e = 0; e < entries; e++) {
+            final String uri = table[index(in)];
+            final int size = length(in);
+            final int[] indexes = new int[size];
+            final long[] counts = new long[size];
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                previous += index(in);
+                indexes[i] = previous;
+                counts[i] = readVarint(in);
+            }
+            section.merge(uri, new LogLinearHistogram.Snapshot(indexes, counts), LogLinearHistogram.Snapshot::merge);
+        }
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in stats snapshot");
+    }
+
+    // A table index or bucket index delta.
+    private static int index(ByteBuffer in) throws IOException {
+        final long value = readVarint(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt stats snapshot");
+        }
+        return (int) value;
+    }
+
+    // A number of bytes or entries, each takes at least a byte, so that a corrupt length cannot allocate much.
+    private static int length(ByteBuffer in) throws IOException {
+        final long value = readVarint(in);
+        if (value > in.remaining()) {
+            throw new IOException("Truncated or corrupt stats snapshot");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Prints the count and response time percentiles of every URI, and its status code counts.
+     */
+    public void print() {
+        final LogLinearHistogram layout = new LogLinearHistogram(highestTrackableMicros, significantDigits);
+        System.out.println("Proxies: " + nodes + " created: " + new Date(createdMillis));
+        for (Map.Entry<String, LogLinearHistogram.Snapshot> entry : responseTimes.entrySet()) {
+            final long[] dense = new long[layout.length()];
+            final LogLinearHistogram.Snapshot histogram = entry.getValue();
+            for (int i = 0; i < histogram.size() && histogram.indexAt(i) < dense.length; i++) {
+                dense[histogram.indexAt(i)] = histogram.countAt(i);
+            }
+            final StringBuilder line = new StringBuilder("URI: ").append(entry.getKey())
+                    .append(" count: ").append(histogram.getTotalCount());
+            for (double percentile : new double[]{50, 90, 99, 99.9}) {
+                line.append(' ').append(percentile).append("th: ").append(String.format("%.3f",
+                        layout.valueAtPercentile(dense, percentile) / 1000.0));
+            }
+            System.out.println(line.append(" millisecs"));
+        }
+        for (Map.Entry<String, LogLinearHistogram.Snapshot> entry : statusCodes.entrySet()) {
+            final LogLinearHistogram.Snapshot counts = entry.getValue();
+            final StringBuilder line = new StringBuilder("URI: ").append(entry.getKey());
+            for (int i = 0; i < counts.size(); i++) {
+                line.append(" status ").append(counts.indexAt(i)).append(": ").append(counts.countAt(i));
+            }
+            System.out.println(line);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !("merge".equals(args[0]) && args.length >= 3 || "print".equals(args[0]))) {
+            System.err.println("Usage: StatsSnapshot merge [output] [snapshot files]... | print [snapshot files]...");
+            System.exit(2);
+        }
+        final boolean merge = "merge".equals(args[0]);
+        StatsSnapshot merged = null;
+        for (int i = merge ? 2 : 1; i < args.length; i++) {
+            // Either a snapshot file of a proxy, or snapshots as served by the admin listener.
+            final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(args[i])));
+            final ByteBuffer saved = MappedStatsFile.latest(bytes);
+            final StatsSnapshot snapshot = readAll(saved != null ? saved : bytes);
+            if (merged == null) {
+                merged = snapshot;
+            } else {
+                merged.merge(snapshot);
+            }
+        }
+        if (merge) {
+            Files.write(Paths.get(args[1]), merged.toByteArray());
+        } else {
+            merged.print();
+        }
+    }
+}
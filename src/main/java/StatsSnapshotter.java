@@ -0,0 +1,148 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Takes {@link StatsSnapshot}s of the status code and response time trackers, for the admin
+ * listener to serve and, when a snapshot file is configured, to save periodically into a
+ * {@link MappedStatsFile}. The saved snapshot is restored at startup, so that the counts carry on
+ * across restarts.
+ */
+@ThreadSafe
+class StatsSnapshotter implements Tracker {
+    private static final Logger LOG = Logger.getLogger(StatsSnapshotter.class.getName());
+
+    private final StatusCodeTracker statusCodes;
+    private final HistogramResponseTimeTracker responseTimes;
+    private final TrackedUris trackedUris;
+    // Null if snapshots are not saved, guarded by this.
+    private final MappedStatsFile file;
+    private ScheduledExecutorService saver;
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile int savedBytes;
+
+    /**
+     * @param file           where snapshots are saved, null to only take them on request
+     * @param intervalMillis time between saves, 0 saves only on shutdown
+     */
+    public StatsSnapshotter(StatusCodeTracker statusCodes, HistogramResponseTimeTracker responseTimes,
+                            TrackedUris trackedUris, Path file, long intervalMillis) throws IOException {
+        this.statusCodes = statusCodes;
+        this.responseTimes = responseTimes;
+        this.trackedUris = trackedUris;
+        this.file = file != null ? new MappedStatsFile(file) : null;
+        if (this.file != null && intervalMillis > 0) {
+            this.saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "stats-snapshot-saver");
+                t.setDaemon(true);
+                return t;
+            });
+            this.saver.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Snapshotter configured from system properties, see README for the property names.
+     */
+    public static StatsSnapshotter fromSystemProperties(StatusCodeTracker statusCodes,
+                                                        HistogramResponseTimeTracker responseTimes,
+                                                        TrackedUris trackedUris) throws IOException {
+        final String file = System.getProperty("proxy.stats.snapshotFile");
+        return new StatsSnapshotter(statusCodes, responseTimes, trackedUris, file != null ? Paths.get(file) : null,
+                Long.getLong("proxy.stats.snapshotIntervalSecs", 10L) * 1000L);
+    }
+
+    public StatsSnapshot take() {
+        final StatsSnapshot snapshot = new StatsSnapshot(System.currentTimeMillis(),
+                responseTimes.getHighestTrackableMicros(), responseTimes.getSignificantDigits());
+        statusCodes.saveTo(snapshot);
+        responseTimes.saveTo(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Adds the counts of the snapshot saved by the last run to the trackers, before they count
+     * anything else. Saved URIs are admitted as tracked ones, those beyond the number tracked are
+     * counted as {@link TrackedUris#OVERFLOW_KEY}. Response times saved with another histogram
+     * layout are dropped.
+     */
+    public synchronized void restore() {
+        final ByteBuffer saved = file != null ? file.getLatest() : null;
+        if (saved == null) {
+            return;
+        }
+        final StatsSnapshot snapshot;
+        try {
+            snapshot = StatsSnapshot.read(saved);
+        } catch (final IOException ex) {
+            LOG.log(Level.WARNING, "Cannot read saved stats snapshot, starting from zero", ex);
+            return;
+        }
+        statusCodes.restoreFrom(snapshot, trackedUris);
+        try {
+            responseTimes.restoreFrom(snapshot, trackedUris);
+        } catch (final IllegalArgumentException ex) {
+            LOG.warning("Dropping saved response times: " + ex.getMessage());
+        }
+        LOG.info("Restored stats of " + snapshot.getStatusCodes().size() + " URIs saved at " +
+                new Date(snapshot.getCreatedMillis()));
+    }
+
+    synchronized void save() {
+        try {
+            final byte[] bytes = take().toByteArray();
+            file.write(bytes);
+            savedBytes = bytes.length;
+            saves.increment();
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            LOG.log(Level.WARNING, "Failed to save stats snapshot", e);
+        }
+    }
+
+    /**
+     * Stops the periodic saves and saves a last snapshot.
+     */
+    public synchronized void shutdown() {
+        if (file == null) {
+            return;
+        }
+        if (saver != null) {
+            saver.shutdownNow();
+        }
+        save();
+        try {
+            file.close();
+        } catch (final IOException ignore) {}
+    }
+
+    public void dumpStats() {
+        if (file != null) {
+            System.out.println("Dumping stats snapshot statistics...");
+            System.out.println("Saves: " + saves + " failed: " + failures + " last size: " + savedBytes + " bytes");
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        if (file == null) {
+            return;
+        }
+        writer.family("proxy_stats_snapshot_saves", "counter", "Stats snapshots saved to the snapshot file.");
+        writer.sample("proxy_stats_snapshot_saves_total", saves.sum());
+        writer.family("proxy_stats_snapshot_save_failures", "counter", "Stats snapshots that could not be saved.");
+        writer.sample("proxy_stats_snapshot_save_failures_total", failures.sum());
+        writer.family("proxy_stats_snapshot_bytes", "gauge", "Size of the last saved stats snapshot.");
+        writer.sample("proxy_stats_snapshot_bytes", savedBytes);
+    }
+}
@@ -1,11 +1,15 @@
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
 import org.apache.http.annotation.ThreadSafe;
 import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.LongAdder;
 
 
@@ -14,31 +18,114 @@ import java.util.concurrent.atomic.LongAdder;
  */
 @ThreadSafe
 class StatusCodeTracker implements HttpResponseInterceptor, Tracker {
-    // Key is URI and value is map of status code and corresponding counter.
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, LongAdder>> uriStatusCodeFrequencyCount
+    // Status codes range from 100 to 599, others are counted as 0.
+    private static final int MAX_STATUS_CODES = 600;
+    // Label values of status codes, so that exporting them does not format numbers to strings.
+    private static final String[] STATUS_CODES = new String[MAX_STATUS_CODES];
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = Integer.toString(i);
+        }
+    }
+
+    // Key is URI and value is the counters of its status codes, indexed by status code and created on first use.
+    private final ConcurrentHashMap<String, AtomicReferenceArray<LongAdder>> uriStatusCodeFrequencyCount
             = new ConcurrentHashMap<>();
 
     public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
-        String uri = (String)context.getAttribute(Constants.HTTP_REQUEST_URI);
-        Integer statusCode = response.getStatusLine().getStatusCode();
+        int statusCode = response.getStatusLine().getStatusCode();
+        // An informational response, such as switching to HTTP/2, is followed by the final one.
+        if (statusCode < HttpStatus.SC_OK) {
+            return;
+        }
+        String uri = RequestContext.get(context).getUri();
 
         add(uri, statusCode);
     }
 
-    private void add(String uri, Integer statusCode) {
-        uriStatusCodeFrequencyCount.computeIfAbsent(uri, v -> new ConcurrentHashMap<>())
-                .computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+    private void add(String uri, int statusCode) {
+        counter(uri, statusCode).increment();
+    }
+
+    private LongAdder counter(String uri, int statusCode) {
+        AtomicReferenceArray<LongAdder> counters = uriStatusCodeFrequencyCount.get(uri);
+        if (counters == null) {
+            counters = uriStatusCodeFrequencyCount.computeIfAbsent(uri,
+                    k -> new AtomicReferenceArray<>(MAX_STATUS_CODES));
+        }
+        final int index = statusCode >= 0 && statusCode < MAX_STATUS_CODES ? statusCode : 0;
+        LongAdder counter = counters.get(index);
+        if (counter == null) {
+            counters.compareAndSet(index, null, new LongAdder());
+            counter = counters.get(index);
+        }
+        return counter;
+    }
+
+    /**
+     * Adds the counts of every URI to the snapshot, indexed by status code.
+     */
+    public void saveTo(StatsSnapshot snapshot) {
+        final int[] codes = new int[MAX_STATUS_CODES];
+        final long[] counts = new long[MAX_STATUS_CODES];
+        for (ConcurrentHashMap.Entry<String, AtomicReferenceArray<LongAdder>> pair :
+                uriStatusCodeFrequencyCount.entrySet()) {
+            final AtomicReferenceArray<LongAdder> counters = pair.getValue();
+            int n = 0;
+            for (int statusCode = 0; statusCode < counters.length(); statusCode++) {
+                final LongAdder count = counters.get(statusCode);
+                if (count != null && count.sum() != 0) {
+                    codes[n] = statusCode;
+                    counts[n++] = count.sum();
+                }
+            }
+            snapshot.addStatusCodes(pair.getKey(),
+                    new LogLinearHistogram.Snapshot(Arrays.copyOf(codes, n), Arrays.copyOf(counts, n)));
+        }
+    }
+
+    /**
+     * Adds the counts saved in the snapshot to the current ones, under the keys trackedUris admits
+     * them as.
+     */
+    public void restoreFrom(StatsSnapshot snapshot, TrackedUris trackedUris) {
+        for (Map.Entry<String, LogLinearHistogram.Snapshot> entry : snapshot.getStatusCodes().entrySet()) {
+            final LogLinearHistogram.Snapshot counts = entry.getValue();
+            final String uri = trackedUris.restoredKey(entry.getKey());
+            for (int i = 0; i < counts.size(); i++) {
+                counter(uri, counts.indexAt(i)).add(counts.countAt(i));
+            }
+        }
     }
 
     public void dumpStats() {
         System.out.println("Dumping status code statistics...");
-        for (ConcurrentHashMap.Entry<String, ConcurrentHashMap<Integer, LongAdder>> pair :
+        for (ConcurrentHashMap.Entry<String, AtomicReferenceArray<LongAdder>> pair :
+                uriStatusCodeFrequencyCount.entrySet()) {
+            String uri = pair.getKey();
+            AtomicReferenceArray<LongAdder> counters = pair.getValue();
+            for (int statusCode = 0; statusCode < counters.length(); statusCode++) {
+                LongAdder count = counters.get(statusCode);
+                if (count != null) {
+                    System.out.println("URI: " + uri + " status: " + statusCode + " count: " + count);
+                }
+            }
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_responses", "counter", "Responses sent, per URI and status code.");
+        for (ConcurrentHashMap.Entry<String, AtomicReferenceArray<LongAdder>> pair :
                 uriStatusCodeFrequencyCount.entrySet()) {
             String uri = pair.getKey();
-            for (ConcurrentHashMap.Entry<Integer, LongAdder> statusCodeCount : pair.getValue().entrySet()) {
-                System.out.println("URI: " + uri + " status: " + statusCodeCount.getKey() + " count: " +
-                        statusCodeCount.getValue());
+            AtomicReferenceArray<LongAdder> counters = pair.getValue();
+            for (int statusCode = 0; statusCode < counters.length(); statusCode++) {
+                LongAdder count = counters.get(statusCode);
+                if (count != null) {
+                    writer.sample("proxy_responses_total", "uri", uri, "code", STATUS_CODES[statusCode], count.sum());
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
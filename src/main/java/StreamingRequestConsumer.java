@@ -0,0 +1,272 @@
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Streams the body of a request received by the NIO listener to the worker that forwards it,
+ * instead of buffering the whole body before the request is handled. The body goes through one
+ * buffer from the {@link BodyRelay} pool: the reactor stops reading from the client while the
+ * buffer is full and the worker asks for more once it has made room, so that a slow upstream slows
+ * the client down rather than the body piling up in memory.
+ *
+ * The worker is started once the first octets of the body arrive, or once the request turns out
+ * to have none, and so after a 100-continue expectation has been met. The async service only
+ * hands the request to its handler once the body has been read, which is when the worker's
+ * response can be submitted. Octets the worker leaves unread, because the upstream answered
+ * early, are read and dropped until then. A request over the upload limit fails the exchange with
+ * {@link UploadLimits.RejectedException}, from its head if it has a Content-Length.
+ */
+@ThreadSafe
+class StreamingRequestConsumer implements HttpAsyncRequestConsumer<StreamingRequestConsumer> {
+    private final HttpRequest request;
+    private final UploadLimits uploads;
+    private final BodyRelay buffers;
+    private final Consumer<StreamingRequestConsumer> worker;
+    private final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+
+    // Guarded by this. The buffer is a ring, allocated when the body starts to arrive.
+    private byte[] buffer;
+    private int head;
+    private int count;
+    private long received;
+    private IOControl ioctrl;
+    private boolean suspended;
+    private boolean started;
+    private boolean ended;
+    private boolean closed;
+    // Set once the worker is done with the body, whether or not it has read it all.
+    private boolean abandoned;
+    private IOException failure;
+
+    /**
+     * @param worker starts forwarding the request, which completes {@link #getResponse()} and calls
+     *               {@link #release()} once it is done with the body
+     */
+    StreamingRequestConsumer(HttpRequest request, UploadLimits uploads, BodyRelay buffers,
+                             Consumer<StreamingRequestConsumer> worker) {
+        this.request = request;
+        this.uploads = uploads;
+        this.buffers = buffers;
+        this.worker = worker;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+            final HttpEntity entity = enclosing.getEntity();
+            if (entity != null) {
+                final InputStreamEntity body = new InputStreamEntity(new Content(), entity.getContentLength());
+                body.setChunked(entity.isChunked());
+                body.setContentType(entity.getContentType());
+                body.setContentEncoding(entity.getContentEncoding());
+                enclosing.setEntity(body);
+            }
+        }
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Completed by the worker with the response to submit.
+     */
+    public CompletableFuture<HttpResponse> getResponse() {
+        return response;
+    }
+
+    /**
+     * Rejects a request that {@link UploadLimits} turns down from its head, before its body is read
+     * or 100 Continue is sent.
+     */
+    @Override
+    public void requestReceived(final HttpRequest request) throws UploadLimits.RejectedException {
+        final int status = uploads.check(request);
+        if (status != 0) {
+            throw new UploadLimits.RejectedException(status, "Request rejected with " + status);
+        }
+    }
+
+    @Override
+    public void consumeContent(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+        synchronized (this) {
+            this.ioctrl = ioctrl;
+            if (buffer == null) {
+                buffer = buffers.acquireBuffer();
+            }
+            int n;
+            do {
+                final int tail = (head + count) % buffer.length;
+                // Unread octets are dropped by reading over them.
+                final int space = abandoned ? buffer.length : Math.min(buffer.length - count, buffer.length - tail);
+                if (space == 0) {
+                    ioctrl.suspendInput();
+                    suspended = true;
+                    break;
+                }
+                n = decoder.read(ByteBuffer.wrap(buffer, abandoned ? 0 : tail, space));
+                if (n > 0) {
+                    received += n;
+                    if (!abandoned) {
+                        count += n;
+                    }
+                    if (uploads.getMaxBytes() > 0 && received > uploads.getMaxBytes()) {
+                        failure = uploads.cutOff();
+                        notifyAll();
+                        throw failure;
+                    }
+                }
+            } while (n > 0);
+            notifyAll();
+        }
+        start();
+    }
+
+    @Override
+    public void requestCompleted(final HttpContext context) {
+        synchronized (this) {
+            ended = true;
+            notifyAll();
+        }
+        start();
+    }
+
+    private void start() {
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            started = true;
+        }
+        worker.accept(this);
+    }
+
+    @Override
+    public synchronized void failed(final Exception ex) {
+        if (failure == null) {
+            failure = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!ended && failure == null) {
+                failure = new ConnectionClosedException("Client closed connection");
+            }
+            closed = true;
+            notifyAll();
+            if (started && !abandoned) {
+                return;
+            }
+        }
+        returnBuffer();
+    }
+
+    /**
+     * Called by the worker once it is done with the body.
+     */
+    void release() {
+        synchronized (this) {
+            abandoned = true;
+            count = 0;
+            if (suspended) {
+                suspended = false;
+                ioctrl.requestInput();
+            }
+            if (!closed) {
+                return;
+            }
+        }
+        returnBuffer();
+    }
+
+    private void returnBuffer() {
+        final byte[] buf;
+        synchronized (this) {
+            buf = buffer;
+            buffer = null;
+        }
+        if (buf != null) {
+            buffers.releaseBuffer(buf);
+        }
+    }
+
+    @Override
+    public synchronized Exception getException() {
+        return failure;
+    }
+
+    @Override
+    public StreamingRequestConsumer getResult() {
+        return this;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return ended || failure != null;
+    }
+
+    /**
+     * The body as the worker reads it.
+     */
+    private final class Content extends InputStream {
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (StreamingRequestConsumer.this) {
+                while (count == 0 && !ended && failure == null) {
+                    try {
+                        StreamingRequestConsumer.this.wait();
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted reading the request body");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (count == 0) {
+                    return -1;
+                }
+                final int n = Math.min(len, Math.min(count, buffer.length - head));
+                System.arraycopy(buffer, head, b, off, n);
+                head = (head + n) % buffer.length;
+                count -= n;
+                if (suspended) {
+                    suspended = false;
+                    ioctrl.requestInput();
+                }
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (StreamingRequestConsumer.this) {
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times the TLS handshakes with clients and with upstreams, telling full handshakes
+ * from resumed ones. A resumed handshake reuses a session that was created before it started,
+ * whether it was found in the session cache or came back in a session ticket.
+ */
+@ThreadSafe
+class TlsHandshakes implements Tracker {
+    static final int CLIENT = 0;
+    static final int UPSTREAM = 1;
+
+    private static final String[] SIDES = {"client", "upstream"};
+    private static final int FULL = 0;
+    private static final int RESUMED = 1;
+    private static final String[] KINDS = {"false", "true"};
+
+    // Indexed by side and kind.
+    private final LongAdder[][] counts = adders();
+    private final LongAdder[][] nanos = adders();
+    // Indexed by side.
+    private final LongAdder[] failures = {new LongAdder(), new LongAdder()};
+
+    private static LongAdder[][] adders() {
+        final LongAdder[][] adders = new LongAdder[SIDES.length][KINDS.length];
+        for (final LongAdder[] side : adders) {
+            for (int kind = 0; kind < side.length; kind++) {
+                side[kind] = new LongAdder();
+            }
+        }
+        return adders;
+    }
+
+    /**
+     * Runs the handshake of a connected socket and records it.
+     *
+     * @param side          {@link #CLIENT} or {@link #UPSTREAM}
+     * @param timeoutMillis longest wait for the peer during the handshake, 0 waits as long as reads usually do
+     */
+    public void handshake(SSLSocket socket, int side, int timeoutMillis) throws IOException {
+        final int soTimeout = socket.getSoTimeout();
+        if (timeoutMillis > 0) {
+            socket.setSoTimeout(timeoutMillis);
+        }
+        final long startMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        try {
+            socket.startHandshake();
+        } catch (final IOException ex) {
+            failures[side].increment();
+            throw ex;
+        }
+        record(side, socket.getSession(), startMillis, System.nanoTime() - start);
+        if (timeoutMillis > 0) {
+            socket.setSoTimeout(soTimeout);
+        }
+    }
+
+    /**
+     * Records a completed handshake, for handshakes that are not run by {@link #handshake}.
+     *
+     * @param startMillis when the handshake started
+     * @param nanos       time it took
+     */
+    public void record(int side, SSLSession session, long startMillis, long nanos) {
+        final int kind = kind(session, startMillis);
+        this.nanos[side][kind].add(nanos);
+        counts[side][kind].increment();
+    }
+
+    public void failed(int side) {
+        failures[side].increment();
+    }
+
+    public long getCount(int side, boolean resumed) {
+        return counts[side][resumed ? RESUMED : FULL].sum();
+    }
+
+    // Session creation times have millisecond resolution, a session resumed in the same millisecond it
+    // was created counts as a full handshake.
+    private static int kind(SSLSession session, long startMillis) {
+        return session.getCreationTime() < startMillis ? RESUMED : FULL;
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping TLS handshake statistics...");
+        for (int side = 0; side < SIDES.length; side++) {
+            final StringBuilder line = new StringBuilder("Side: ").append(SIDES[side]);
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                final long count = counts[side][kind].sum();
+                line.append(kind == RESUMED ? " resumed: " : " full: ").append(count);
+                if (count > 0) {
+                    line.append(" (mean ").append(nanos[side][kind].sum() / count / 1000).append(" microsecs)");
+                }
+            }
+            System.out.println(line.append(" failed: ").append(failures[side].sum()));
+        }
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_tls_handshake_seconds", "summary",
+                "Time of completed TLS handshakes, by peer and whether the session was resumed.");
+        for (int side = 0; side < SIDES.length; side++) {
+            for (int kind = 0; kind < KINDS.length; kind++) {
+                writer.sample("proxy_tls_handshake_seconds_count", "side", SIDES[side], "resumed", KINDS[kind],
+                        counts[side][kind].sum());
+                writer.sample("proxy_tls_handshake_seconds_sum", "side", SIDES[side], "resumed", KINDS[kind],
+                        nanos[side][kind].sum() / 1e9);
+            }
+        }
+        writer.family("proxy_tls_handshake_failures", "counter", "TLS handshakes that failed.");
+        for (int side = 0; side < SIDES.length; side++) {
+            writer.sample("proxy_tls_handshake_failures_total", "side", SIDES[side], failures[side].sum());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps request URIs to the keys that trackers count them under. URIs are normalised to templates,
+ * and at most maxKeys distinct templates are admitted; later ones are all counted under the
+ * overflow key. The most requested templates, admitted or not, are counted over fixed windows,
+ * and those of the last completed window are reported, so that dumps and scrapes see the same.
+ */
+@ThreadSafe
+class TrackedUris implements Tracker {
+    static final String OVERFLOW_KEY = "(other)";
+
+    private final int maxKeys;
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder overflowed = new LongAdder();
+    private final HeavyHitters heavyHitters;
+    private final long topWindowNanos;
+    private volatile long topWindowEndNanos;
+    // Most requested templates of the last completed window and their estimates, highest first.
+    private volatile List<Map.Entry<String, Long>> lastTop = Collections.emptyList();
+
+    /**
+     * @param topWindowMillis length of the windows the most requested templates are counted over
+     */
+    public TrackedUris(int maxKeys, int topK, long topWindowMillis) {
+        this.maxKeys = maxKeys;
+        this.heavyHitters = new HeavyHitters(topK, 2048);
+        this.topWindowNanos = topWindowMillis * 1000000L;
+        this.topWindowEndNanos = System.nanoTime() + topWindowNanos;
+    }
+
+    /**
+     * Tracked URIs configured from system properties, see README for the property names.
+     */
+    public static TrackedUris fromSystemProperties() {
+        return new TrackedUris(Integer.getInteger("proxy.stats.maxUris", 1000),
+                Integer.getInteger("proxy.stats.topUris", 10),
+                Long.getLong("proxy.stats.topUrisWindowSecs", 60L) * 1000L);
+    }
+
+    public String key(String uri) {
+        final String template = UriNormalizer.normalize(uri);
+        rollTop(System.nanoTime());
+        heavyHitters.add(template);
+        if (admit(template)) {
+            return template;
+        }
+        overflowed.increment();
+        return OVERFLOW_KEY;
+    }
+
+    /**
+     * Key that counts restored from a snapshot are added under, the saved key if it is tracked or
+     * can still be admitted, so that restored keys count against maxKeys like any other.
+     */
+    public String restoredKey(String key) {
+        return key.equals(OVERFLOW_KEY) || admit(key) ? key : OVERFLOW_KEY;
+    }
+
+    private boolean admit(String template) {
+        if (keys.contains(template)) {
+            return true;
+        }
+        // Reserve a slot before adding, so that racing admissions cannot exceed the limit.
+        if (size.incrementAndGet() > maxKeys) {
+            size.decrementAndGet();
+            return false;
+        }
+        if (!keys.add(template)) {
+            size.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new window of the most requested templates once the current one has ended.
+     */
+    private void rollTop(long now) {
+        if (now - topWindowEndNanos >= 0) {
+            rollTopWindow(now);
+        }
+    }
+
+    private synchronized void rollTopWindow(long now) {
+        final long end = topWindowEndNanos;
+        if (now - end < 0) {
+            return;
+        }
+        // If a whole window has passed since, it was the last completed one and had no requests.
+        lastTop = now - end < topWindowNanos ? heavyHitters.top() : Collections.emptyList();
+        heavyHitters.reset();
+        topWindowEndNanos = now + topWindowNanos - (now - end) % topWindowNanos;
+    }
+
+    public void dumpStats() {
+        rollTop(System.nanoTime());
+        System.out.println("Dumping top URIs of the last " + topWindowNanos / 1000000000L + " seconds...");
+        for (Map.Entry<String, Long> entry : lastTop) {
+            System.out.println("URI: " + entry.getKey() + " requests: ~" + entry.getValue());
+        }
+        System.out.println("Tracked URIs: " + size.get() + " max: " + maxKeys +
+                " requests counted as " + OVERFLOW_KEY + ": " + overflowed.sum());
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_tracked_uris", "gauge", "Distinct URI templates tracked.");
+        writer.sample("proxy_tracked_uris", size.get());
+        writer.family("proxy_overflow_requests", "counter", "Requests counted under " + OVERFLOW_KEY + ".");
+        writer.sample("proxy_overflow_requests_total", overflowed.sum());
+        rollTop(System.nanoTime());
+        writer.family("proxy_top_uri_requests", "gauge", "Estimated requests of the most requested URI templates, " +
+                "in the last completed window of " + topWindowNanos / 1000000000L + " seconds.");
+        for (Map.Entry<String, Long> entry : lastTop) {
+            writer.sample("proxy_top_uri_requests", "uri", entry.getKey(), entry.getValue());
+        }
+    }
+}
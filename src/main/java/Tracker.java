@@ -7,4 +7,10 @@ public interface Tracker {
      * Dump statistics of the tracker to stdout.
      */
     void dumpStats();
+
+    /**
+     * Write the current values of the tracker's metrics. Called from a single thread at a time.
+     */
+    default void collect(MetricsWriter writer) {
+    }
 }
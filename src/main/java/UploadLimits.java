@@ -0,0 +1,264 @@
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HTTP;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the size of request bodies, which are streamed to the upstream as they are read from the
+ * client, through buffers pooled by {@link BodyRelay}. Requests are checked from their head before
+ * any of the body is read: a Content-Length over the cap is answered with 413 and an expectation
+ * other than 100-continue with 417, so that a client that waits for 100 Continue never sends the
+ * body. A chunked body is cut off with 413 once it goes over the cap.
+ *
+ * A body that is left partly read, because it was rejected, failed or was not needed by the
+ * upstream, is not drained. The client connection is closed after the response instead.
+ */
+@ThreadSafe
+class UploadLimits implements Tracker {
+    private final long maxBytes;
+    private final BodyRelay buffers;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder tooLarge = new LongAdder();
+    private final LongAdder tooLargeStreamed = new LongAdder();
+    private final LongAdder expectationFailed = new LongAdder();
+    private final LongAdder clientFailures = new LongAdder();
+
+    /**
+     * @param maxBytes largest request body accepted, 0 for no limit
+     * @param buffers  pool of the buffers bodies are copied through
+     */
+    public UploadLimits(long maxBytes, BodyRelay buffers) {
+        this.maxBytes = maxBytes;
+        this.buffers = buffers;
+    }
+
+    public static UploadLimits fromSystemProperties(BodyRelay buffers) {
+        return new UploadLimits(Long.getLong("proxy.upload.maxBytes", 100L * 1024 * 1024), buffers);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Checks a request from its head.
+     *
+     * @return the status to reject the request with, or 0 if it may go on
+     */
+    public int check(HttpRequest request) {
+        final Header expect = request.getFirstHeader(HTTP.EXPECT_DIRECTIVE);
+        if (expect != null && !HTTP.EXPECT_CONTINUE.equalsIgnoreCase(expect.getValue().trim())) {
+            expectationFailed.increment();
+            return HttpStatus.SC_EXPECTATION_FAILED;
+        }
+        if (maxBytes > 0 && request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            final Header length = request.getFirstHeader(HTTP.CONTENT_LEN);
+            if (entity != null && entity.getContentLength() > maxBytes
+                    || entity == null && length != null && parseLength(length.getValue()) > maxBytes) {
+                tooLarge.increment();
+                return HttpStatus.SC_REQUEST_TOO_LONG;
+            }
+        }
+        return 0;
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException ex) {
+            // Left for the connection to reject.
+            return -1;
+        }
+    }
+
+    /**
+     * Answers a request without reading its body, which is left unread on a connection that is closed.
+     */
+    public static void reject(HttpRequest request, HttpResponse response, int status) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            ((HttpEntityEnclosingRequest) request).setEntity(null);
+        }
+        SimpleReverseProxy.setErrorResponse(response, status);
+        response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+    }
+
+    /**
+     * Replaces the request's body by one that is counted against the cap as it is streamed.
+     */
+    public void stream(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+            if (enclosing.getEntity() != null) {
+                enclosing.setEntity(new Body(enclosing.getEntity()));
+            }
+        }
+    }
+
+    /**
+     * The error reading the request's body from the client, or null if there was none. An upstream
+     * is not to blame for a request that failed this way.
+     */
+    public static IOException getClientFailure(HttpRequest request) {
+        final HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        return entity instanceof Body ? ((Body) entity).failure : null;
+    }
+
+    /**
+     * Answers a request whose body could not be read from the client.
+     */
+    public void rejectClientFailure(HttpRequest request, HttpResponse response, IOException failure) {
+        if (!(failure instanceof RejectedException)) {
+            clientFailures.increment();
+        }
+        reject(request, response, failure instanceof RejectedException
+                ? ((RejectedException) failure).getStatus() : HttpStatus.SC_BAD_REQUEST);
+    }
+
+    /**
+     * Closes the client connection after the response if the request's body has not been read to
+     * its end, rather than draining it.
+     */
+    public static void finish(HttpRequest request, HttpResponse response) {
+        final HttpEntity entity = request instanceof HttpEntityEnclosingRequest
+                ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        if (entity instanceof Body && !((Body) entity).complete) {
+            ((HttpEntityEnclosingRequest) request).setEntity(null);
+            response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+        }
+    }
+
+    /**
+     * Counts a body cut off for going over the cap, and returns the exception to fail it with.
+     */
+    RejectedException cutOff() {
+        tooLargeStreamed.increment();
+        return new RejectedException(HttpStatus.SC_REQUEST_TOO_LONG, "Request body larger than " + maxBytes + " bytes");
+    }
+
+    /**
+     * Thrown to reject a request for its body or expectation, with the status to answer it with.
+     */
+    static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        RejectedException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    private class Body extends HttpEntityWrapper {
+        private InputStream content;
+        private long read;
+        // Set by the thread streaming the body, read by the same thread once it is done.
+        private boolean complete;
+        private IOException failure;
+
+        Body(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content == null) {
+                content = new FilterInputStream(wrappedEntity.getContent()) {
+                    @Override
+                    public int read() throws IOException {
+                        final byte[] b = new byte[1];
+                        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                    }
+
+                    @Override
+                    public int read(final byte[] b, final int off, final int len) throws IOException {
+                        return Body.this.read(in, b, off, len);
+                    }
+                };
+            }
+            return content;
+        }
+
+        private int read(InputStream in, byte[] b, int off, int len) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            final int n;
+            try {
+                n = in.read(b, off, len);
+            } catch (final IOException ex) {
+                failure = ex;
+                throw ex;
+            }
+            if (n < 0) {
+                complete = true;
+                return n;
+            }
+            read += n;
+            bytes.add(n);
+            if (maxBytes > 0 && read > maxBytes) {
+                failure = cutOff();
+                throw failure;
+            }
+            return n;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            final InputStream in = getContent();
+            final byte[] buf = buffers.acquireBuffer();
+            try {
+                int n;
+                while ((n = in.read(buf, 0, buf.length)) >= 0) {
+                    outstream.write(buf, 0, n);
+                }
+            } finally {
+                buffers.releaseBuffer(buf);
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return !complete && failure == null;
+        }
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping upload statistics...");
+        System.out.println("Bytes: " + bytes + " too large: " + tooLarge + " cut off: " + tooLargeStreamed +
+                " expectation failed: " + expectationFailed + " client failures: " + clientFailures);
+    }
+
+    public void collect(MetricsWriter writer) {
+        writer.family("proxy_upload_bytes", "counter", "Request body bytes streamed to upstreams.");
+        writer.sample("proxy_upload_bytes_total", bytes.sum());
+        writer.family("proxy_upload_rejections", "counter", "Requests rejected for their body or expectation.");
+        writer.sample("proxy_upload_rejections_total", "reason", "content_length", tooLarge.sum());
+        writer.sample("proxy_upload_rejections_total", "reason", "streamed", tooLargeStreamed.sum());
+        writer.sample("proxy_upload_rejections_total", "reason", "expectation", expectationFailed.sum());
+        writer.family("proxy_upload_client_failures", "counter", "Request bodies the client failed to send.");
+        writer.sample("proxy_upload_client_failures_total", clientFailures.sum());
+    }
+}
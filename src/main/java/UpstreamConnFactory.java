@@ -0,0 +1,56 @@
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.pool.ConnFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Opens upstream connections for {@link UpstreamConnectionPool}.
+ */
+class UpstreamConnFactory implements ConnFactory<HttpHost, HttpClientConnection> {
+    private final SocketConfig sconfig;
+    private final int connectTimeout;
+    private final int bufferSize;
+    private final UpstreamTls tls;
+
+    /**
+     * @param tls opens connections to https upstreams
+     */
+    public UpstreamConnFactory(SocketConfig sconfig, int connectTimeout, int bufferSize, UpstreamTls tls) {
+        this.sconfig = sconfig;
+        this.connectTimeout = connectTimeout;
+        this.bufferSize = bufferSize;
+        this.tls = tls;
+    }
+
+    public HttpClientConnection create(HttpHost host) throws IOException {
+        final boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+        final Socket socket = secure ? tls.createSocket() : new Socket();
+        int port = host.getPort();
+        if (port < 0) {
+            port = secure ? 443 : 80;
+        }
+        try {
+            socket.setSoTimeout(sconfig.getSoTimeout());
+            socket.setTcpNoDelay(sconfig.isTcpNoDelay());
+            socket.setKeepAlive(sconfig.isSoKeepAlive());
+            final int linger = sconfig.getSoLinger();
+            if (linger >= 0) {
+                socket.setSoLinger(linger > 0, linger);
+            }
+            socket.connect(new InetSocketAddress(host.getHostName(), port), connectTimeout);
+            if (secure) {
+                tls.handshake(socket);
+            }
+        } catch (final IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        final RelayClientConnection conn = new RelayClientConnection(bufferSize);
+        conn.bind(socket);
+        return conn;
+    }
+}
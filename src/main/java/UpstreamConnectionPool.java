@@ -0,0 +1,221 @@
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.pool.BasicConnPool;
+import org.apache.http.impl.pool.BasicPoolEntry;
+import org.apache.http.pool.PoolStats;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Upstream connections shared by all client connections and keyed by target host.
+ * Connections are only checked for staleness when they have been idle for longer than
+ * validateAfterInactivity, idle and expired connections are closed by a background evictor.
+ */
+@ThreadSafe
+class UpstreamConnectionPool implements Tracker {
+    private final BasicConnPool pool;
+    private final long idleTimeoutMillis;
+    private final long validateAfterInactivityMillis;
+    private final long leaseTimeoutMillis;
+    private final ScheduledExecutorService evictor;
+
+    public UpstreamConnectionPool(int maxTotal, int maxPerRoute, long idleTimeoutMillis,
+                                  long validateAfterInactivityMillis, long leaseTimeoutMillis,
+                                  int connectTimeoutMillis, int socketTimeoutMillis, int bufferSize,
+                                  UpstreamTls tls) {
+        this.pool = new BasicConnPool(new UpstreamConnFactory(
+                SocketConfig.custom().setTcpNoDelay(true).setSoTimeout(socketTimeoutMillis).build(),
+                connectTimeoutMillis, bufferSize, tls));
+        this.pool.setMaxTotal(maxTotal);
+        this.pool.setDefaultMaxPerRoute(maxPerRoute);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "upstream-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        final long evictionPeriod = Math.max(idleTimeoutMillis / 2, 1000L);
+        this.evictor.scheduleWithFixedDelay(() -> {
+            pool.closeExpired();
+            pool.closeIdle(this.idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }, evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pool configured from system properties, see README for the property names.
+     */
+    public static UpstreamConnectionPool fromSystemProperties(int bufferSize, UpstreamTls tls) {
+        return new UpstreamConnectionPool(
+                Integer.getInteger("proxy.pool.maxTotal", 200),
+                Integer.getInteger("proxy.pool.maxPerRoute", 50),
+                Long.getLong("proxy.pool.idleTimeoutMillis", 30000L),
+                Long.getLong("proxy.pool.validateAfterInactivityMillis", 2000L),
+                Long.getLong("proxy.pool.leaseTimeoutMillis", 5000L),
+                Integer.getInteger("proxy.upstream.connectTimeoutMillis", 2000),
+                Integer.getInteger("proxy.upstream.socketTimeoutMillis", 30000),
+                bufferSize,
+                tls);
+    }
+
+    public BasicPoolEntry lease(HttpHost host) throws IOException {
+        while (true) {
+            final BasicPoolEntry entry;
+            try {
+                entry = pool.lease(host, null).get(leaseTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while leasing connection to " + host);
+            } catch (TimeoutException e) {
+                throw new InterruptedIOException("Timeout leasing connection to " + host);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+
+            // Only connections that sat idle for a while pay for the stale check. Fresh entries have
+            // never been released and hence never updated.
+            final long updated = entry.getUpdated();
+            final HttpClientConnection conn = entry.getConnection();
+            if (updated > 0 && System.currentTimeMillis() - updated >= validateAfterInactivityMillis
+                    && conn.isStale()) {
+                release(entry, false);
+                continue;
+            }
+            return entry;
+        }
+    }
+
+    public void release(BasicPoolEntry entry, boolean reusable) {
+        if (reusable) {
+            entry.updateExpiry(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            entry.close();
+        }
+        pool.release(entry, reusable);
+    }
+
+    /**
+     * Wraps the upstream entity so that the connection goes back to the pool once the body has been
+     * fully transferred, or is closed if the transfer is abandoned half way.
+     *
+     * @param onCompletion run once the connection has been released
+     */
+    public HttpEntity releaseOnCompletion(HttpEntity entity, BasicPoolEntry entry, boolean reusable,
+                                          Runnable onCompletion) {
+        return new ReleasingEntity(entity, entry, reusable, onCompletion);
+    }
+
+    public void shutdown() throws IOException {
+        evictor.shutdownNow();
+        pool.shutdown();
+    }
+
+    public void dumpStats() {
+        System.out.println("Dumping upstream connection pool statistics...");
+        final PoolStats stats = pool.getTotalStats();
+        System.out.println("Leased: " + stats.getLeased() + " available: " + stats.getAvailable() +
+                " pending: " + stats.getPending() + " max: " + stats.getMax());
+    }
+
+    public void collect(MetricsWriter writer) {
+        final PoolStats stats = pool.getTotalStats();
+        writer.family("proxy_upstream_connections", "gauge", "Upstream connections in the pool, per state.");
+        writer.sample("proxy_upstream_connections", "state", "leased", stats.getLeased());
+        writer.sample("proxy_upstream_connections", "state", "available", stats.getAvailable());
+        writer.family("proxy_upstream_connection_requests_pending", "gauge", "Requests waiting for a connection.");
+        writer.sample("proxy_upstream_connection_requests_pending", stats.getPending());
+        writer.family("proxy_upstream_connections_max", "gauge", "Maximum upstream connections in the pool.");
+        writer.sample("proxy_upstream_connections_max", stats.getMax());
+    }
+
+    private class ReleasingEntity extends HttpEntityWrapper {
+        private final BasicPoolEntry entry;
+        private final boolean reusable;
+        private final Runnable onCompletion;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        ReleasingEntity(HttpEntity entity, BasicPoolEntry entry, boolean reusable, Runnable onCompletion) {
+            super(entity);
+            this.entry = entry;
+            this.reusable = reusable;
+            this.onCompletion = onCompletion;
+        }
+
+        private void releaseOnce(boolean completed) {
+            if (released.compareAndSet(false, true)) {
+                release(entry, completed && reusable);
+                onCompletion.run();
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(wrappedEntity.getContent()) {
+                private boolean eof;
+
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b == -1) {
+                        eof = true;
+                        releaseOnce(true);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int n = super.read(b, off, len);
+                    if (n == -1) {
+                        eof = true;
+                        releaseOnce(true);
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (eof) {
+                        super.close();
+                        return;
+                    }
+                    // Abandoned before the end, draining could take arbitrarily long.
+                    releaseOnce(false);
+                    try {
+                        super.close();
+                    } catch (final IOException ignore) {}
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            boolean completed = false;
+            try {
+                wrappedEntity.writeTo(outstream);
+                completed = true;
+            } finally {
+                releaseOnce(completed);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.ThreadSafe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Load, latency and health of one upstream instance. Instances are shared by every route that
+ * lists the host, so balancers see its load across routes and route reloads keep what has been learnt.
+ *
+ * Each host has a circuit breaker. It opens after a run of consecutive failures (5xx responses or
+ * no response at all), which ejects the host from balancing. Once the ejection time is up a single
+ * trial request is let through (half open); success closes the circuit, failure opens it again for
+ * twice as long. An active health probe may be the trial instead of a request.
+ */
+@ThreadSafe
+class UpstreamHost {
+    private static final Logger LOG = Logger.getLogger(UpstreamHost.class.getName());
+    private static final ConcurrentHashMap<HttpHost, UpstreamHost> INSTANCES = new ConcurrentHashMap<>();
+
+    // Latency samples older than this no longer count against a host, so that a host that was slow
+    // once is tried again instead of being starved of the requests that would show it recovered.
+    private static final long LATENCY_EXPIRY_NANOS =
+            Long.getLong("proxy.balancer.latencyExpiryMillis", 10000L) * 1000000L;
+    private static final int FAILURE_THRESHOLD = Integer.getInteger("proxy.health.failureThreshold", 5);
+    private static final long EJECT_MILLIS = Long.getLong("proxy.health.ejectMillis", 5000L);
+    private static final long MAX_EJECT_MILLIS = Long.getLong("proxy.health.maxEjectMillis", 60000L);
+
+    // Circuit breaker states.
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+    static final String[] STATE_NAMES = {"closed", "open", "half-open"};
+
+    private final HttpHost host;
+    private final String name;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Exponentially weighted moving average of the time to the response head, -1 until sampled.
+    private final AtomicLong latencyMicros = new AtomicLong(-1);
+    private volatile long lastSampleNanos;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntilNanos;
+    private volatile long ejectMillis = EJECT_MILLIS;
+    private final AtomicLong ejections = new AtomicLong();
+
+    private UpstreamHost(HttpHost host) {
+        this.host = host;
+        this.name = host.toURI();
+    }
+
+    public static UpstreamHost of(HttpHost host) {
+        return INSTANCES.computeIfAbsent(host, UpstreamHost::new);
+    }
+
+    public HttpHost getHost() {
+        return host;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Average latency in microseconds, or -1 when there is no recent sample.
+     */
+    public long getLatencyMicros(long now) {
+        final long latency = latencyMicros.get();
+        return latency < 0 || now - lastSampleNanos > LATENCY_EXPIRY_NANOS ? -1 : latency;
+    }
+
+    /**
+     * Whether a request may be sent to this host. When an ejection has run out the first caller is
+     * let through as the half open trial, so a true result must be followed by {@link #begin}, or by
+     * the outcome of a health probe.
+     */
+    public boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - openUntilNanos >= 0 && state.compareAndSet(OPEN, HALF_OPEN);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Marks a request as sent to this host and returns its start time for {@link #end}.
+     */
+    public long begin() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * @param status upstream response status, or -1 if no response was received
+     */
+    public void end(long startNanos, int status) {
+        outstanding.decrementAndGet();
+        if (status < 0 || status >= 500) {
+            recordFailure();
+        } else {
+            recordSuccess();
+        }
+        if (status < 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long sample = (now - startNanos) / 1000L;
+        final boolean expired = now - lastSampleNanos > LATENCY_EXPIRY_NANOS;
+        while (true) {
+            final long current = latencyMicros.get();
+            // New samples weigh 1/4, an expired average is replaced outright.
+            final long next = current < 0 || expired ? sample : current + ((sample - current) >> 2);
+            if (latencyMicros.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        lastSampleNanos = now;
+    }
+
+    /**
+     * Ends a request that was abandoned before its outcome was known, which counts as neither success
+     * nor failure. If the circuit is half open the trial may have been this request, so the circuit is
+     * opened again with its ejection already over, to let the next request through as the trial.
+     */
+    public void cancel() {
+        outstanding.decrementAndGet();
+        if (state.get() == HALF_OPEN) {
+            openUntilNanos = System.nanoTime();
+            state.compareAndSet(HALF_OPEN, OPEN);
+        }
+    }
+
+    public void recordSuccess() {
+        // Read first, so that the common case does not write to a shared cache line.
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        recordProbeSuccess();
+    }
+
+    /**
+     * A passed health probe closes a half open circuit, but leaves the failures of requests counted,
+     * so that a host failing requests while passing probes is still ejected.
+     */
+    public void recordProbeSuccess() {
+        if (state.get() == HALF_OPEN && state.compareAndSet(HALF_OPEN, CLOSED)) {
+            ejectMillis = EJECT_MILLIS;
+            LOG.info("Upstream " + host + " is healthy again, returning it to service");
+        }
+    }
+
+    public void recordFailure() {
+        final int current = state.get();
+        if (current == HALF_OPEN) {
+            open(HALF_OPEN, Math.min(ejectMillis * 2, MAX_EJECT_MILLIS));
+        } else if (current == CLOSED && consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+            open(CLOSED, ejectMillis);
+        }
+    }
+
+    private void open(int from, long millis) {
+        // Set the deadline first so that nobody sees the circuit open with a stale deadline.
+        openUntilNanos = System.nanoTime() + millis * 1000000L;
+        if (state.compareAndSet(from, OPEN)) {
+            ejectMillis = millis;
+            ejections.incrementAndGet();
+            consecutiveFailures.set(0);
+            LOG.warning("Ejecting upstream " + host + " for " + millis + " ms");
+        }
+    }
+
+    public String getCircuitState() {
+        return STATE_NAMES[state.get()];
+    }
+
+    public long getEjections() {
+        return ejections.get();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
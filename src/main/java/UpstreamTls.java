@@ -0,0 +1,87 @@
+import org.apache.http.annotation.ThreadSafe;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS to https upstreams. All upstream connections, pooled ones and health checks alike, share one
+ * SSL context, so that a new connection to an upstream resumes the session of an earlier one
+ * instead of running a full handshake. Upstream certificates are checked against the configured
+ * truststore, or the JVM's default one, and against the upstream's host name.
+ */
+@ThreadSafe
+class UpstreamTls {
+    private final SSLContext context;
+    private final boolean verifyHostname;
+    private final TlsHandshakes handshakes;
+
+    /**
+     * @param context        context whose client session cache upstream sessions are resumed from
+     * @param verifyHostname whether upstream certificates must match the upstream host name
+     */
+    public UpstreamTls(SSLContext context, boolean verifyHostname, TlsHandshakes handshakes) {
+        this.context = context;
+        this.verifyHostname = verifyHostname;
+        this.handshakes = handshakes;
+    }
+
+    /**
+     * Upstream TLS configured from system properties, see README for the property names.
+     */
+    public static UpstreamTls fromSystemProperties(TlsHandshakes handshakes) {
+        final String truststore = System.getProperty("proxy.upstream.tls.truststore");
+        try {
+            TrustManagerFactory trust = null;
+            if (truststore != null) {
+                final KeyStore keyStore = KeyStore.getInstance(
+                        System.getProperty("proxy.upstream.tls.truststoreType", "PKCS12"));
+                try (InputStream in = Files.newInputStream(Paths.get(truststore))) {
+                    keyStore.load(in, System.getProperty("proxy.upstream.tls.truststorePassword", "").toCharArray());
+                }
+                trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trust.init(keyStore);
+            }
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust != null ? trust.getTrustManagers() : null, null);
+            final SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(Integer.getInteger("proxy.tls.sessionCacheSize", 20480));
+            sessions.setSessionTimeout(Integer.getInteger("proxy.tls.sessionTimeoutSecs", 86400));
+            return new UpstreamTls(context,
+                    Boolean.parseBoolean(System.getProperty("proxy.upstream.tls.verifyHostname", "true")),
+                    handshakes);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot set up upstream TLS with truststore " + truststore, e);
+        }
+    }
+
+    /**
+     * Unconnected socket, to be connected to the upstream by host name, so that sessions are cached
+     * and names are verified under it.
+     */
+    public Socket createSocket() throws IOException {
+        final SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket();
+        if (verifyHostname) {
+            final SSLParameters params = socket.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(params);
+        }
+        return socket;
+    }
+
+    /**
+     * Runs the handshake of a connected socket, so that its cost is counted apart from the request's.
+     */
+    public void handshake(Socket socket) throws IOException {
+        handshakes.handshake((SSLSocket) socket, TlsHandshakes.UPSTREAM, 0);
+    }
+}
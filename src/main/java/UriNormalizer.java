@@ -0,0 +1,173 @@
+/**
+ * Reduces request URIs to templates for use as statistics keys: the query string and fragment are
+ * dropped and path segments that look like identifiers are replaced by placeholders, so that
+ * /titles/80100172/images?size=large becomes /titles/{id}/images.
+ *
+ * A segment is an identifier if it is all digits ({id}), a UUID ({uuid}), at least 8 hex
+ * characters including a digit ({hex}) or at least 16 characters of which a quarter or more are
+ * digits ({token}). URIs that are already templates are returned as is, without allocating.
+ * Other templates are remembered in a small direct mapped cache, so that normalizing a URI whose
+ * template was seen recently does not allocate either.
+ */
+final class UriNormalizer {
+    private static final int CACHE_SIZE = 4096;
+    // Strings are immutable, so racy reads and overwrites of slots are safe.
+    private static final String[] TEMPLATES = new String[CACHE_SIZE];
+
+    private UriNormalizer() {
+    }
+
+    public static String normalize(String uri) {
+        int from = 0;
+        if (uri.startsWith("http://") || uri.startsWith("https://")) {
+            final int slash = uri.indexOf('/', uri.indexOf("//") + 2);
+            if (slash < 0) {
+                return "/";
+            }
+            from = slash;
+        }
+        int end = uri.length();
+        for (int i = from; i < end; i++) {
+            final char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+            }
+        }
+
+        // Fast path, nothing to replace.
+        int segment = from;
+        String placeholder = null;
+        while (segment < end) {
+            final int next = nextSlash(uri, segment + 1, end);
+            placeholder = placeholder(uri, segment + 1, next);
+            if (placeholder != null) {
+                break;
+            }
+            segment = next;
+        }
+        if (placeholder == null && from == 0 && end == uri.length()) {
+            return uri;
+        }
+
+        final int hash = templateHash(uri, from, segment, end);
+        final int slot = hash & (CACHE_SIZE - 1);
+        final String cached = TEMPLATES[slot];
+        if (cached != null && cached.hashCode() == hash && matches(cached, uri, from, segment, end)) {
+            return cached;
+        }
+        final String template = template(uri, from, segment, end);
+        TEMPLATES[slot] = template;
+        return template;
+    }
+
+    // Builds the template of uri[from, end), of which [from, segment) has no identifiers.
+    private static String template(String uri, int from, int segment, int end) {
+        final StringBuilder template = new StringBuilder(end - from).append(uri, from, segment);
+        while (segment < end) {
+            final int next = nextSlash(uri, segment + 1, end);
+            final String replacement = placeholder(uri, segment + 1, next);
+            template.append('/');
+            if (replacement != null) {
+                template.append(replacement);
+            } else {
+                template.append(uri, segment + 1, next);
+            }
+            segment = next;
+        }
+        return template.toString();
+    }
+
+    // Hash code of the template, as String.hashCode() would compute it, without building it.
+    private static int templateHash(String uri, int from, int segment, int end) {
+        int hash = 0;
+        for (int i = from; i < segment; i++) {
+            hash = 31 * hash + uri.charAt(i);
+        }
+        while (segment < end) {
+            final int next = nextSlash(uri, segment + 1, end);
+            final String replacement = placeholder(uri, segment + 1, next);
+            hash = 31 * hash + '/';
+            if (replacement != null) {
+                for (int i = 0; i < replacement.length(); i++) {
+                    hash = 31 * hash + replacement.charAt(i);
+                }
+            } else {
+                for (int i = segment + 1; i < next; i++) {
+                    hash = 31 * hash + uri.charAt(i);
+                }
+            }
+            segment = next;
+        }
+        return hash;
+    }
+
+    // Whether the template of uri[from, end) equals the given one.
+    private static boolean matches(String template, String uri, int from, int segment, int end) {
+        int t = segment - from;
+        if (t > template.length() || !template.regionMatches(0, uri, from, t)) {
+            return false;
+        }
+        while (segment < end) {
+            final int next = nextSlash(uri, segment + 1, end);
+            final String replacement = placeholder(uri, segment + 1, next);
+            if (t >= template.length() || template.charAt(t++) != '/') {
+                return false;
+            }
+            if (replacement != null) {
+                if (!template.startsWith(replacement, t)) {
+                    return false;
+                }
+                t += replacement.length();
+            } else {
+                final int length = next - segment - 1;
+                if (!template.regionMatches(t, uri, segment + 1, length)) {
+                    return false;
+                }
+                t += length;
+            }
+            segment = next;
+        }
+        return t == template.length();
+    }
+
+    private static int nextSlash(String uri, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (uri.charAt(i) == '/') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // Placeholder for the segment [from, to), or null if it is not an identifier.
+    private static String placeholder(String uri, int from, int to) {
+        final int length = to - from;
+        if (length == 0) {
+            return null;
+        }
+        int digits = 0;
+        int hex = 0;
+        for (int i = from; i < to; i++) {
+            final char c = uri.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+                hex++;
+            }
+        }
+        if (digits == length) {
+            return "{id}";
+        }
+        if (length == 36 && digits + hex == 32 && uri.charAt(from + 8) == '-' && uri.charAt(from + 13) == '-'
+                && uri.charAt(from + 18) == '-' && uri.charAt(from + 23) == '-') {
+            return "{uuid}";
+        }
+        if (length >= 8 && digits > 0 && digits + hex == length) {
+            return "{hex}";
+        }
+        if (length >= 16 && digits * 4 >= length) {
+            return "{token}";
+        }
+        return null;
+    }
+}